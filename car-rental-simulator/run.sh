@@ -2,8 +2,26 @@
 BASE="$(pwd)"
 CLASSES="$BASE/target/classes"
 
+# With the CDS archive of mvn -Pcds package every JVM starts from the jar it was trained with, with the carrental classes
+# already loaded, and with the options for short runs (see carrental.StartupBenchmark). Without it, plain java on target/classes.
+JAR="$BASE/target/car-rental-simulator-1.0-SNAPSHOT.jar"
+ARCHIVE="$BASE/target/carrental.jsa"
+if [ -f "$ARCHIVE" ] && [ -f "$JAR" ] && [ ! "$JAR" -nt "$ARCHIVE" ]; then
+    CLASSES="$JAR"
+    export JAVA_OPTS="-XX:SharedArchiveFile=$ARCHIVE -Xshare:auto -Xlog:cds=off,cds+dynamic=off -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -XX:-UsePerfData"
+    echo "=== Using CDS archive $ARCHIVE ==="
+fi
+
 echo "=== Executing tests from lot ==="
 bash "$BASE/tests/lot/lot-scenarios.sh" "$CLASSES"
+bash "$BASE/tests/lot/replay-scenarios.sh" "$CLASSES"
+bash "$BASE/tests/lot/archive-scenarios.sh" "$CLASSES"
 
 echo "=== Executing tests from shop ==="
-bash "$BASE/tests/shop/rental-scenarios.sh" "$CLASSES"
\ No newline at end of file
+bash "$BASE/tests/shop/rental-scenarios.sh" "$CLASSES"
+bash "$BASE/tests/shop/crash-scenarios.sh" "$CLASSES"
+bash "$BASE/tests/shop/reservation-scenarios.sh" "$CLASSES"
+bash "$BASE/tests/shop/export-scenarios.sh" "$CLASSES"
+
+echo "=== Executing tests from sim ==="
+bash "$BASE/tests/sim/sim-scenarios.sh" "$CLASSES"
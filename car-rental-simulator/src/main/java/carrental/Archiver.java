@@ -0,0 +1,597 @@
+/*
+By Jennifer Vicentes
+Purpose: This class moves cold records out of the files that LotManager and the shops read and lock all the time, into compressed
+archive segments under "archive/":
+    java carrental.Archiver --plates                        plates of plates_registry.txt that are not in the plate index (their
+                                                            vehicles left the system) go to archive/plates/
+    java carrental.Archiver --lot=Central [--keep=10]       vehicles of the lot that were never rented, beyond the first <keep> of
+                                                            every type, go to archive/lots/
+    java carrental.Archiver --restore-lot=Central [--type=SUV] [--count=5]   brings archived vehicles back to the lot
+    java carrental.Archiver --transactions=SanJose [--from=2024-01-01] [--to=2024-12-31]   lists the archived transactions of a shop
+    java carrental.Archiver --stats                         segments, records and compression of every archive
+Shops archive their own old transactions with the shop command ARCHIVE <DAYS>, only the shop writes its state files.
+
+A segment is never changed once written ("<name>.<n>.seg", a new one for every run). It has sorted lines ("key,fields"), BLOCK_LINES
+per block, every block compressed on its own, and at the end a sparse index with the first key, offset and sizes of every block.
+The index is kept in memory: a lookup finds the only blocks that can hold a key with a binary search and inflates just those, so
+a plate is found without reading the whole archive, and a range of transactions only inflates the blocks of the range.
+
+Archived plates are still issued: LotManager, LotManifest and BulkVehicleGenerator never issue them again and the Reconciler counts
+them as registered. Archived vehicles still exist: the plate index has them as ARCHIVED and the event log as removed from their lot
+until they are restored.
+*/
+package carrental;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public class Archiver {
+    static final String DIR = "archive";
+    // Archive tiers, one directory each
+    static final String PLATES = "plates";
+    static final String LOTS = "lots";
+    static final String SHOPS = "shops";
+    private static final String PLATES_NAME = "plates_registry";
+    private static final int BLOCK_LINES = 512;
+    private static final byte[] MAGIC = "CRARCH".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int DEFAULT_KEEP = 10;
+    // Biggest time that fits the 16 digits of a transaction key
+    private static final long MAX_TIME = 9_999_999_999_999_999L;
+
+    public static void main(String[] args) {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        try {
+            if (flags.containsKey("--plates")) {
+                archivePlates();
+            } else if (flags.containsKey("--lot")) {
+                archiveLot(flags.get("--lot"), Integer.parseInt(flags.getOrDefault("--keep", String.valueOf(DEFAULT_KEEP))));
+            } else if (flags.containsKey("--restore-lot")) {
+                String type = flags.containsKey("--type") ? flags.get("--type").toUpperCase() : null;
+                int count = Integer.parseInt(flags.getOrDefault("--count", String.valueOf(Integer.MAX_VALUE)));
+                restoreLot(flags.get("--restore-lot"), type, count);
+            } else if (flags.containsKey("--transactions")) {
+                long from = flags.containsKey("--from") ? LocalDate.parse(flags.get("--from")).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() : 0;
+                long to = flags.containsKey("--to")
+                        ? LocalDate.parse(flags.get("--to")).plusDays(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli() - 1 : MAX_TIME;
+                listTransactions(flags.get("--transactions"), from, to);
+            } else if (flags.containsKey("--stats")) {
+                showStats();
+            } else {
+                System.err.println("Error: use --plates, --lot=<name>, --restore-lot=<name>, --transactions=<shop> or --stats.");
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println("Error archiving: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // --- Plates ---
+
+    // Moves the plates that are in the registry but not in the plate index to a new segment and rewrites the registry without them
+    static void archivePlates() throws IOException {
+        try (FileLocks.Handle lock = FileLocks.lock(LotManager.REGISTRY_FILE)) {
+            Path registry = Paths.get(LotManager.REGISTRY_FILE);
+            if (!Files.exists(registry)) {
+                System.out.println("Nothing to archive, " + LotManager.REGISTRY_FILE + " does not exist.");
+                return;
+            }
+            // Plates in a lot, a shop, rented or archived with their lot. "XXX-000" plates go to a BitSet so millions fit in memory.
+            BitSet liveCodes = new BitSet(BulkVehicleGenerator.PLATE_SPACE);
+            Set<String> liveOthers = new HashSet<>();
+            new PlateIndex().shards().forEachLine(line -> {
+                String plate = ShardedRegistry.firstField(line);
+                int code = BulkVehicleGenerator.plateCode(plate);
+                if (code >= 0) liveCodes.set(code);
+                else liveOthers.add(plate);
+            });
+            List<String> cold = new ArrayList<>();
+            long kept = 0;
+            Path tmp = Paths.get(LotManager.REGISTRY_FILE + ".tmp");
+            try (BufferedReader br = Files.newBufferedReader(registry, StandardCharsets.UTF_8);
+                 BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String plate = line.trim();
+                    if (plate.isEmpty()) continue;
+                    int code = BulkVehicleGenerator.plateCode(plate);
+                    if (code >= 0 ? liveCodes.get(code) : liveOthers.contains(plate)) {
+                        w.write(plate);
+                        w.newLine();
+                        kept++;
+                    } else {
+                        cold.add(plate);
+                    }
+                }
+            }
+            if (cold.isEmpty()) {
+                Files.delete(tmp);
+                System.out.println("Nothing to archive, every plate of " + LotManager.REGISTRY_FILE + " is in use.");
+                return;
+            }
+            // Sorted for the segment, a plate listed twice in the registry is archived once
+            cold = new ArrayList<>(new TreeSet<>(cold));
+            // The segment is on disk before the plates leave the registry, a crash in between leaves them in both (never in none)
+            Path segment = writeSegment(PLATES, PLATES_NAME, cold);
+            Files.move(tmp, registry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Archived " + cold.size() + " plates to " + segment + ", " + kept + " plates stay in "
+                    + LotManager.REGISTRY_FILE + ".");
+        }
+    }
+
+    // Plates of every plates segment, read once and checked by LotManager before a plate is issued
+    public static class PlateArchive {
+        private final List<Segment> segments;
+
+        private PlateArchive(List<Segment> segments) {
+            this.segments = segments;
+        }
+
+        public static PlateArchive load() throws IOException {
+            return new PlateArchive(segments(PLATES, PLATES_NAME));
+        }
+
+        // Synchronized because LotManifest issues plates from several threads and the segments keep their last block
+        public synchronized boolean contains(String plate) throws IOException {
+            for (Segment s : segments) {
+                if (s.find(plate) != null) return true;
+            }
+            return false;
+        }
+    }
+
+    static void forEachArchivedPlate(Consumer<String> consumer) throws IOException {
+        for (Segment s : segments(PLATES, PLATES_NAME)) {
+            s.forEach(null, null, consumer);
+        }
+    }
+
+    // --- Lots ---
+
+    // Moves the vehicles of the lot that were never rented (no kilometers), except the first keep of every type, to a new segment
+    static void archiveLot(String lot, int keep) throws IOException {
+        String lotFile = lot + ".txt";
+        List<Vehicle> cold = new ArrayList<>();
+        try (FileLocks.Handle lock = FileLocks.lock(lotFile);
+             LotFile.Writer writer = new LotFile.Writer(lotFile)) {
+            Map<String, Integer> kept = new HashMap<>();
+            LotFile.Status status;
+            try {
+                status = LotFile.forEach(lotFile, v -> {
+                    boolean neverRented = v.getKilometers() == 0 && v.getKmAtLastService() == 0;
+                    if (neverRented && kept.merge(v.getType(), 1, Integer::sum) > keep) {
+                        cold.add(v);
+                    } else {
+                        try {
+                            writer.add(v);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (status == LotFile.Status.MISSING || status == LotFile.Status.TORN) {
+                System.err.println("Error: lot " + lot + " is " + (status == LotFile.Status.MISSING ? "missing" : "torn") + ", nothing was archived.");
+                return;
+            }
+            if (cold.isEmpty()) {
+                System.out.println("Nothing to archive in lot " + lot + ".");
+                return;
+            }
+            cold.sort(Comparator.comparing(Vehicle::getLicensePlate));
+            List<String> lines = new ArrayList<>(cold.size());
+            for (Vehicle v : cold) {
+                lines.add(LotFile.lineOf(v));
+            }
+            // Segment first, then the lot: a crash in between leaves the vehicles in both, never in none
+            Path segment = writeSegment(LOTS, lot, lines);
+            writer.commit();
+            System.out.println("Archived " + cold.size() + " never rented vehicles of lot " + lot + " to " + segment + ", "
+                    + writer.getCount() + " vehicles stay in the lot.");
+        }
+        Map<String, String> index = new HashMap<>();
+        List<EventLog.Event> events = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Vehicle v : cold) {
+            index.put(v.getLicensePlate(), PlateIndex.entry(v.getLicensePlate(), PlateIndex.ARCHIVED, lot));
+            events.add(EventLog.removed(v, lot, now));
+        }
+        new PlateIndex().recordAll(index);
+        EventLog.append(EventLog.FILE, events);
+    }
+
+    // Puts archived vehicles of the lot (of the type, or any type when type is null) back in the lot
+    static void restoreLot(String lot, String type, int count) throws IOException {
+        String lotFile = lot + ".txt";
+        List<Vehicle> back = new ArrayList<>();
+        try (FileLocks.Handle lock = FileLocks.lock(lotFile)) {
+            List<Segment> old = segments(LOTS, lot);
+            List<String> rest = new ArrayList<>();
+            for (Segment s : old) {
+                s.forEach(null, null, line -> {
+                    Vehicle v = LotFile.parseLine(line);
+                    if (v != null && back.size() < count && (type == null || v.getType().equals(type))) back.add(v);
+                    else rest.add(line);
+                });
+            }
+            if (back.isEmpty()) {
+                System.out.println("No archived " + (type == null ? "vehicles" : type) + " for lot " + lot + ".");
+                return;
+            }
+            // Lot first, then the archive: a crash in between leaves the vehicles in both, never in none
+            try (LotFile.Writer writer = new LotFile.Writer(lotFile)) {
+                try {
+                    LotFile.forEach(lotFile, v -> {
+                        try {
+                            writer.add(v);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                for (Vehicle v : back) {
+                    writer.add(v);
+                }
+                writer.commit();
+                System.out.println("Restored " + back.size() + " vehicles to lot " + lot + ", " + writer.getCount() + " vehicles in the lot, "
+                        + rest.size() + " still archived.");
+            }
+            // The vehicles left are written to one new segment (already sorted), then the old segments go
+            if (!rest.isEmpty()) {
+                Collections.sort(rest);
+                writeSegment(LOTS, lot, rest);
+            }
+            for (Segment s : old) {
+                Files.delete(s.path);
+            }
+        }
+        Map<String, String> index = new HashMap<>();
+        List<EventLog.Event> events = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Vehicle v : back) {
+            index.put(v.getLicensePlate(), PlateIndex.entry(v.getLicensePlate(), PlateIndex.LOT, lot));
+            events.add(EventLog.added(v, lot, now));
+        }
+        new PlateIndex().recordAll(index);
+        EventLog.append(EventLog.FILE, events);
+    }
+
+    // Every archived vehicle with its lot
+    static void forEachArchivedVehicle(BiConsumer<String, Vehicle> consumer) throws IOException {
+        for (Map.Entry<String, List<Segment>> e : segmentsByName(LOTS).entrySet()) {
+            for (Segment s : e.getValue()) {
+                s.forEach(null, null, line -> {
+                    Vehicle v = LotFile.parseLine(line);
+                    if (v != null) consumer.accept(e.getKey(), v);
+                });
+            }
+        }
+    }
+
+    // --- Shop transactions ---
+
+    // Writes old transactions of a shop (in return order) to a new segment. Called by the shop (ARCHIVE) with its lock held.
+    static Path archiveTransactions(String location, List<Transaction> transactions) throws IOException {
+        List<String> lines = new ArrayList<>(transactions.size());
+        for (Transaction t : transactions) {
+            lines.add(transactionLine(t));
+        }
+        // Sorted by return time already, the sort keeps the order of equal times
+        Collections.sort(lines, Comparator.comparing(Archiver::keyOf));
+        return writeSegment(SHOPS, location, lines);
+    }
+
+    // Number of archived transactions of a shop, from the segment indexes only
+    static long archivedTransactions(String location) throws IOException {
+        long n = 0;
+        for (Segment s : segments(SHOPS, location)) {
+            n += s.lines();
+        }
+        return n;
+    }
+
+    // Archived transactions of a shop returned between from and to (inclusive), only the blocks of that range are inflated
+    static void forEachArchivedTransaction(String location, long from, long to, Consumer<Transaction> consumer) throws IOException {
+        for (Segment s : segments(SHOPS, location)) {
+            s.forEach(timeKey(from), timeKey(to), line -> consumer.accept(parseTransaction(line)));
+        }
+    }
+
+    static void listTransactions(String location, long from, long to) throws IOException {
+        System.out.println("----- Archived Transactions (" + location + ") -----");
+        long[] totals = new long[3];
+        forEachArchivedTransaction(location, from, to, t -> {
+            System.out.println(t);
+            totals[0]++;
+            totals[1] += t.getChargeCents();
+            totals[2] += t.getDiscountCents();
+        });
+        System.out.println(totals[0] + " transactions, earnings $" + Money.format(totals[1]) + ", lost due to discounts $"
+                + Money.format(totals[2]) + ".");
+    }
+
+    // "returnedAt,plate,type,km,discountApplied,chargeCents,discountCents,rentedAt,rule", the key is the return time
+    static String transactionLine(Transaction t) {
+        return timeKey(t.getReturnedAt()) + "," + t.getLicensePlate() + "," + t.getVehicleType() + "," + t.getKilometers() + ","
+                + t.isDiscountApplied() + "," + t.getChargeCents() + "," + t.getDiscountCents() + "," + t.getRentedAt() + ","
+                + t.getPricingRule();
+    }
+
+    static Transaction parseTransaction(String line) {
+        String[] f = line.split(",", 9);
+        return new Transaction(f[1], f[2], Integer.parseInt(f[3]), Boolean.parseBoolean(f[4]), Long.parseLong(f[5]),
+                Long.parseLong(f[6]), f[8].equals("null") ? null : f[8], Long.parseLong(f[7]), Long.parseLong(f[0]));
+    }
+
+    // Fixed width so the text order is the time order
+    private static String timeKey(long millis) {
+        return String.format("%016d", Math.min(MAX_TIME, Math.max(0, millis)));
+    }
+
+    // --- Stats ---
+
+    static void showStats() throws IOException {
+        for (String tier : new String[]{PLATES, LOTS, SHOPS}) {
+            for (Map.Entry<String, List<Segment>> e : segmentsByName(tier).entrySet()) {
+                long lines = 0, raw = 0, bytes = 0;
+                for (Segment s : e.getValue()) {
+                    lines += s.lines();
+                    raw += s.rawBytes();
+                    bytes += Files.size(s.path);
+                }
+                System.out.println(tier + "/" + e.getKey() + ": " + e.getValue().size() + " segments, " + lines + " records, "
+                        + bytes + " bytes (" + (raw == 0 ? 0 : 100 * bytes / raw) + "% of the " + raw + " bytes of text)");
+            }
+        }
+    }
+
+    // --- Segments ---
+
+    static String keyOf(String line) {
+        int comma = line.indexOf(',');
+        return comma < 0 ? line : line.substring(0, comma);
+    }
+
+    // Segments of one name in the order they were written
+    static List<Segment> segments(String tier, String name) throws IOException {
+        List<Segment> list = segmentsByName(tier).get(name);
+        return list == null ? new ArrayList<>() : list;
+    }
+
+    private static Map<String, List<Segment>> segmentsByName(String tier) throws IOException {
+        Map<String, TreeMap<Integer, Path>> found = new TreeMap<>();
+        Path dir = Paths.get(DIR, tier);
+        if (Files.isDirectory(dir)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.seg")) {
+                for (Path p : files) {
+                    String file = p.getFileName().toString();
+                    String stem = file.substring(0, file.length() - 4);
+                    int dot = stem.lastIndexOf('.');
+                    if (dot < 0) continue;
+                    try {
+                        found.computeIfAbsent(stem.substring(0, dot), k -> new TreeMap<>()).put(Integer.parseInt(stem.substring(dot + 1)), p);
+                    } catch (NumberFormatException e) {
+                        // Not a segment
+                    }
+                }
+            }
+        }
+        Map<String, List<Segment>> byName = new TreeMap<>();
+        for (Map.Entry<String, TreeMap<Integer, Path>> e : found.entrySet()) {
+            List<Segment> list = new ArrayList<>();
+            for (Path p : e.getValue().values()) {
+                list.add(Segment.open(p));
+            }
+            byName.put(e.getKey(), list);
+        }
+        return byName;
+    }
+
+    // Writes sorted lines to the next segment of the name through a temporary file, forced to disk before the rename
+    static Path writeSegment(String tier, String name, List<String> sortedLines) throws IOException {
+        Path dir = Paths.get(DIR, tier);
+        Files.createDirectories(dir);
+        int next = 1;
+        for (Segment s : segments(tier, name)) {
+            String file = s.path.getFileName().toString();
+            String stem = file.substring(0, file.length() - 4);
+            next = Math.max(next, Integer.parseInt(stem.substring(stem.lastIndexOf('.') + 1)) + 1);
+        }
+        Path target = dir.resolve(name + "." + next + ".seg");
+        Path tmp = dir.resolve(name + "." + next + ".seg.tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 256 * 1024))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            long offset = MAGIC.length + 4;
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexOut = new DataOutputStream(index);
+            int blocks = (sortedLines.size() + BLOCK_LINES - 1) / BLOCK_LINES;
+            indexOut.writeInt(blocks);
+            byte[] compressed = new byte[64 * 1024];
+            CRC32 crc = new CRC32();
+            for (int b = 0; b < blocks; b++) {
+                List<String> lines = sortedLines.subList(b * BLOCK_LINES, Math.min(sortedLines.size(), (b + 1) * BLOCK_LINES));
+                byte[] raw = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+                deflater.reset();
+                deflater.setInput(raw);
+                deflater.finish();
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == compressed.length) compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+                out.write(compressed, 0, length);
+                crc.reset();
+                crc.update(raw);
+                indexOut.writeUTF(keyOf(lines.get(0)));
+                indexOut.writeLong(offset);
+                indexOut.writeInt(length);
+                indexOut.writeInt(raw.length);
+                indexOut.writeInt(lines.size());
+                indexOut.writeInt((int) crc.getValue());
+                offset += length;
+            }
+            out.write(index.toByteArray());
+            out.writeLong(offset);
+            out.write(MAGIC);
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            deflater.end();
+        }
+        Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        return target;
+    }
+
+    // One segment file. Only the sparse index is read when it is opened, blocks are inflated when they are needed.
+    static class Segment {
+        final Path path;
+        private final String[] firstKeys;
+        private final long[] offsets;
+        private final int[] compressedLengths;
+        private final int[] rawLengths;
+        private final int[] lineCounts;
+        private final int[] crcs;
+        // Last block inflated, lookups of near keys (the retries of a plate) often hit it again
+        private int cachedBlock = -1;
+        private String[] cachedLines;
+
+        private Segment(Path path, int blocks) {
+            this.path = path;
+            firstKeys = new String[blocks];
+            offsets = new long[blocks];
+            compressedLengths = new int[blocks];
+            rawLengths = new int[blocks];
+            lineCounts = new int[blocks];
+            crcs = new int[blocks];
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
+                long length = raf.length();
+                byte[] magic = new byte[MAGIC.length];
+                if (length < 2 * MAGIC.length + 4 + 8 + 4) throw new IOException(path + " is not an archive segment");
+                raf.seek(length - MAGIC.length - 8);
+                long indexOffset = raf.readLong();
+                raf.readFully(magic);
+                if (!Arrays.equals(magic, MAGIC) || indexOffset < 0 || indexOffset > length) {
+                    throw new IOException(path + " is not a complete archive segment");
+                }
+                raf.seek(indexOffset);
+                byte[] index = new byte[(int) (length - MAGIC.length - 8 - indexOffset)];
+                raf.readFully(index);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(index));
+                Segment s = new Segment(path, in.readInt());
+                for (int b = 0; b < s.firstKeys.length; b++) {
+                    s.firstKeys[b] = in.readUTF();
+                    s.offsets[b] = in.readLong();
+                    s.compressedLengths[b] = in.readInt();
+                    s.rawLengths[b] = in.readInt();
+                    s.lineCounts[b] = in.readInt();
+                    s.crcs[b] = in.readInt();
+                }
+                return s;
+            }
+        }
+
+        long lines() {
+            long n = 0;
+            for (int c : lineCounts) n += c;
+            return n;
+        }
+
+        long rawBytes() {
+            long n = 0;
+            for (int r : rawLengths) n += r;
+            return n;
+        }
+
+        // The line with the key, or null. Keys are unique in plates and lots segments.
+        String find(String key) throws IOException {
+            for (int b = firstBlockFor(key); b < firstKeys.length && firstKeys[b].compareTo(key) <= 0; b++) {
+                String[] lines = block(b);
+                int lo = 0, hi = lines.length - 1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    int c = keyOf(lines[mid]).compareTo(key);
+                    if (c == 0) return lines[mid];
+                    if (c < 0) lo = mid + 1;
+                    else hi = mid - 1;
+                }
+            }
+            return null;
+        }
+
+        // Lines with from <= key <= to (null means no limit), in order
+        void forEach(String from, String to, Consumer<String> consumer) throws IOException {
+            for (int b = from == null ? 0 : firstBlockFor(from); b < firstKeys.length; b++) {
+                if (to != null && firstKeys[b].compareTo(to) > 0) return;
+                for (String line : block(b)) {
+                    String key = keyOf(line);
+                    if (from != null && key.compareTo(from) < 0) continue;
+                    if (to != null && key.compareTo(to) > 0) return;
+                    consumer.accept(line);
+                }
+            }
+        }
+
+        // First block that can hold the key: the last one whose first key is smaller (equal keys may end the block before)
+        private int firstBlockFor(String key) {
+            int lo = 0, hi = firstKeys.length - 1, found = 0;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (firstKeys[mid].compareTo(key) < 0) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        private String[] block(int b) throws IOException {
+            if (b == cachedBlock) return cachedLines;
+            byte[] compressed = new byte[compressedLengths[b]];
+            try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "r")) {
+                raf.seek(offsets[b]);
+                raf.readFully(compressed);
+            }
+            byte[] raw = new byte[rawLengths[b]];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int n = inflater.inflate(raw);
+                if (n != raw.length) throw new IOException("block " + b + " of " + path + " is damaged");
+            } catch (DataFormatException e) {
+                throw new IOException("block " + b + " of " + path + " is damaged: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(raw);
+            if ((int) crc.getValue() != crcs[b]) throw new IOException("block " + b + " of " + path + " has a bad checksum");
+            String[] lines = new String(raw, StandardCharsets.UTF_8).split("\n");
+            cachedBlock = b;
+            cachedLines = lines;
+            return lines;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+/*
+By Jennifer Vicentes
+Purpose: This class adds millions of new vehicles to a lot in one run, used by LotManager for big --add-sedan/--add-suv/--add-van
+counts (or with --bulk). The normal path makes every plate with its own retry loop against a HashSet of every plate ever issued,
+which gets slow and needs a lot of memory when the registry has millions of plates.
+
+Here a plate "XXX-000" is a number from 0 to 17,575,999 (letters * 1000 + digits) and the registry is loaded as a BitSet of the
+plates already issued. The plate space is split in RANGES ranges, every range gets a share of the new plates proportional to its
+free plates, and fork/join workers pick their share among the free plates of their own range (selection sampling). The ranges do
+not overlap and only free plates are picked, so there are no collisions and no retries, and the result only depends on the seed.
+The vehicle types are shuffled once over all the new plates.
+
+The lines of the lot, the registry, the plate index and the event log are encoded by the workers a few ranges at a time (so memory
+does not grow with the number of vehicles) and written with big NIO writes. The existing vehicles of the lot are streamed through.
+The caller holds the locks of the lot and of the plate registry.
+*/
+package carrental;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+
+public class BulkVehicleGenerator {
+    // Adds of at least this many vehicles use this class
+    public static final int BULK_THRESHOLD = 100_000;
+    // Number of "XXX-000" plates
+    static final int PLATE_SPACE = 26 * 26 * 26 * 1000;
+    // Fixed (not the number of cores), so the same seed gives the same plates on any machine
+    private static final int RANGES = 256;
+    // Ranges encoded at the same time before they are written
+    private static final int WAVE = 16;
+    private static final String[] TYPES = {"SEDAN", "SUV", "VAN"};
+    private static final byte[][] TYPE_BYTES = {"SEDAN".getBytes(StandardCharsets.ISO_8859_1),
+            "SUV".getBytes(StandardCharsets.ISO_8859_1), "VAN".getBytes(StandardCharsets.ISO_8859_1)};
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.ISO_8859_1);
+
+    // Plates picked in every range and the type of every new vehicle (in range order)
+    private final int[][] plates = new int[RANGES][];
+    private final int[] firstOfRange = new int[RANGES + 1];
+    private byte[] types;
+    private final String lotName;
+
+    private BulkVehicleGenerator(String lotName) {
+        this.lotName = lotName;
+    }
+
+    // Adds the vehicles to the lot. Returns false (changing nothing) when there are not enough free plates.
+    public static boolean run(String lotName, int sedans, int suvs, int vans, long seed) throws IOException {
+        long start = System.nanoTime();
+        BitSet issued = loadRegistryBits();
+        int total = sedans + suvs + vans;
+        int free = PLATE_SPACE - issued.cardinality();
+        if (total > free) {
+            System.err.println("Error: only " + free + " plates are left, cannot add " + total + " vehicles.");
+            return false;
+        }
+        BulkVehicleGenerator generator = new BulkVehicleGenerator(lotName);
+        generator.pick(issued, total, seed);
+        generator.shuffleTypes(sedans, suvs, vans, seed);
+        long picked = System.nanoTime();
+
+        // Same order as LotManager: the lot, the registry, the plate index and the events
+        int lotSize = generator.writeLot();
+        generator.appendRegistry();
+        generator.appendIndex();
+        generator.appendEvents(System.currentTimeMillis());
+        long end = System.nanoTime();
+        System.out.println("Added " + total + " vehicles to lot " + lotName + " (" + sedans + " sedans, " + suvs + " SUVs, " + vans
+                + " vans) in " + (end - start) / 1_000_000 + " ms (plates picked in " + (picked - start) / 1_000_000 + " ms).");
+        System.out.println("Lot " + lotName + " updated successfully. Total vehicles: " + lotSize);
+        return true;
+    }
+
+    // Number of a plate "XXX-000", or -1 for plates of other formats (they can never be picked, so they do not matter)
+    static int plateCode(byte[] text, int offset, int length) {
+        if (length != 7 || text[offset + 3] != '-') return -1;
+        int letters = 0;
+        for (int i = 0; i < 3; i++) {
+            int c = text[offset + i] - 'A';
+            if (c < 0 || c >= 26) return -1;
+            letters = letters * 26 + c;
+        }
+        int digits = 0;
+        for (int i = 4; i < 7; i++) {
+            int d = text[offset + i] - '0';
+            if (d < 0 || d > 9) return -1;
+            digits = digits * 10 + d;
+        }
+        return letters * 1000 + digits;
+    }
+
+    static int plateCode(String plate) {
+        byte[] text = plate.getBytes(StandardCharsets.ISO_8859_1);
+        return plateCode(text, 0, text.length);
+    }
+
+    // Writes the 7 characters of the plate
+    static void putPlate(byte[] out, int at, int code) {
+        int letters = code / 1000;
+        int digits = code % 1000;
+        out[at] = (byte) ('A' + letters / 676);
+        out[at + 1] = (byte) ('A' + letters / 26 % 26);
+        out[at + 2] = (byte) ('A' + letters % 26);
+        out[at + 3] = '-';
+        out[at + 4] = (byte) ('0' + digits / 100);
+        out[at + 5] = (byte) ('0' + digits / 10 % 10);
+        out[at + 6] = (byte) ('0' + digits % 10);
+    }
+
+    static String plateText(int code) {
+        byte[] text = new byte[7];
+        putPlate(text, 0, code);
+        return new String(text, StandardCharsets.ISO_8859_1);
+    }
+
+    // String.hashCode() of the plate, to find its shard without building the String
+    static int plateHash(int code) {
+        byte[] text = new byte[7];
+        putPlate(text, 0, code);
+        int h = 0;
+        for (byte b : text) h = 31 * h + b;
+        return h;
+    }
+
+    // Reads plates_registry.txt (and the archived plates) as a BitSet of the "XXX-000" plates, without building a String per line
+    static BitSet loadRegistryBits() throws IOException {
+        BitSet issued = new BitSet(PLATE_SPACE);
+        Path path = Paths.get(LotManager.REGISTRY_FILE);
+        if (!Files.exists(path)) return issued;
+        byte[] line = new byte[64];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] buf = new byte[1 << 20];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buf[i];
+                    if (b == '\n') {
+                        markIssued(issued, line, length);
+                        length = 0;
+                    } else if (length < line.length) {
+                        line[length++] = b;
+                    }
+                }
+            }
+        }
+        markIssued(issued, line, length);
+        // Archived plates were issued too (see Archiver)
+        Archiver.forEachArchivedPlate(plate -> {
+            int code = plateCode(plate);
+            if (code >= 0) issued.set(code);
+        });
+        return issued;
+    }
+
+    private static void markIssued(BitSet issued, byte[] line, int length) {
+        // The same trim() as LotManager.loadRegistry
+        int from = 0;
+        while (from < length && line[from] <= ' ') from++;
+        while (length > from && line[length - 1] <= ' ') length--;
+        int code = plateCode(line, from, length - from);
+        if (code >= 0) issued.set(code);
+    }
+
+    // Splits the new plates between the ranges (by their free plates) and lets the workers pick them
+    private void pick(BitSet issued, int total, long seed) {
+        int rangeSize = (PLATE_SPACE + RANGES - 1) / RANGES;
+        int[] freeInRange = new int[RANGES];
+        runAll(RANGES, r -> {
+            int from = r * rangeSize;
+            int to = Math.min(PLATE_SPACE, from + rangeSize);
+            freeInRange[r] = (to - from) - issued.get(from, to).cardinality();
+            return null;
+        });
+        long free = 0;
+        for (int f : freeInRange) free += f;
+        // Proportional shares, the plates left by the rounding go to the ranges with the biggest remainders
+        int[] share = new int[RANGES];
+        double[] remainder = new double[RANGES];
+        int given = 0;
+        for (int r = 0; r < RANGES; r++) {
+            double exact = free == 0 ? 0 : (double) total * freeInRange[r] / free;
+            share[r] = (int) Math.min(freeInRange[r], Math.floor(exact));
+            remainder[r] = exact - share[r];
+            given += share[r];
+        }
+        while (given < total) {
+            int best = -1;
+            for (int r = 0; r < RANGES; r++) {
+                if (share[r] < freeInRange[r] && (best < 0 || remainder[r] > remainder[best])) best = r;
+            }
+            share[best]++;
+            remainder[best] = -1;
+            given++;
+        }
+        for (int r = 0; r < RANGES; r++) {
+            firstOfRange[r + 1] = firstOfRange[r] + share[r];
+        }
+        runAll(RANGES, r -> {
+            // Selection sampling: every free plate is picked with probability (still needed / free plates still to see)
+            SplittableRandom random = new SplittableRandom(seed * 31 + r);
+            int from = r * rangeSize;
+            int to = Math.min(PLATE_SPACE, from + rangeSize);
+            int[] picked = new int[share[r]];
+            int need = share[r];
+            int left = freeInRange[r];
+            int n = 0;
+            for (int code = issued.nextClearBit(from); code < to && need > 0; code = issued.nextClearBit(code + 1)) {
+                if (random.nextInt(left) < need) {
+                    picked[n++] = code;
+                    need--;
+                }
+                left--;
+            }
+            plates[r] = picked;
+            return null;
+        });
+    }
+
+    // The exact number of every type, in random order
+    private void shuffleTypes(int sedans, int suvs, int vans, long seed) {
+        types = new byte[sedans + suvs + vans];
+        for (int i = sedans; i < sedans + suvs; i++) types[i] = 1;
+        for (int i = sedans + suvs; i < types.length; i++) types[i] = 2;
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = types.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            byte t = types[i];
+            types[i] = types[j];
+            types[j] = t;
+        }
+    }
+
+    // Streams the current lot and then the new vehicles to a new lot file. Returns the vehicles in the lot.
+    private int writeLot() throws IOException {
+        String lotFile = lotName + ".txt";
+        try (LotFile.Writer writer = new LotFile.Writer(lotFile)) {
+            LotFile.Status status = LotFile.forEach(lotFile, v -> {
+                try {
+                    writer.add(v);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            if (status == LotFile.Status.TORN) {
+                throw new IOException("lot file " + lotFile + " is torn, run LotManager without bulk adds on it to recover it first");
+            }
+            inWaves(r -> {
+                // "XXX-000,TYPE,0\n"
+                byte[] out = new byte[plates[r].length * 16];
+                int at = 0;
+                for (int i = 0; i < plates[r].length; i++) {
+                    putPlate(out, at, plates[r][i]);
+                    out[at + 7] = ',';
+                    byte[] type = TYPE_BYTES[types[firstOfRange[r] + i]];
+                    System.arraycopy(type, 0, out, at + 8, type.length);
+                    at += 8 + type.length;
+                    out[at++] = ',';
+                    out[at++] = '0';
+                    out[at++] = '\n';
+                }
+                return ByteBuffer.wrap(out, 0, at);
+            }, (r, lines) -> writer.addLines(lines.array(), 0, lines.limit(), plates[r].length));
+            writer.commit();
+            return writer.getCount();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // The new plates are not in the registry, so they are appended instead of rewriting it
+    private void appendRegistry() throws IOException {
+        // A registry edited by hand may not end with a new line
+        boolean needsNewline = false;
+        try (RandomAccessFile file = new RandomAccessFile(LotManager.REGISTRY_FILE, "rw")) {
+            if (file.length() > 0) {
+                file.seek(file.length() - 1);
+                needsNewline = file.read() != '\n';
+            }
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(LotManager.REGISTRY_FILE), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            if (needsNewline) writeFully(channel, ByteBuffer.wrap(NEWLINE));
+            inWaves(r -> {
+                byte[] out = new byte[plates[r].length * (7 + NEWLINE.length)];
+                int at = 0;
+                for (int code : plates[r]) {
+                    putPlate(out, at, code);
+                    System.arraycopy(NEWLINE, 0, out, at + 7, NEWLINE.length);
+                    at += 7 + NEWLINE.length;
+                }
+                return ByteBuffer.wrap(out, 0, at);
+            }, (r, lines) -> writeFully(channel, lines));
+        }
+    }
+
+    // Every plate goes to the shard of the index that owns it, the shards are written in parallel (each one has its own lock)
+    private void appendIndex() throws IOException {
+        ShardedRegistry index = new PlateIndex().shards();
+        int shards = index.getShardCount();
+        // Counting sort of the plates by shard
+        int[] shardOf = new int[types.length];
+        int[] counts = new int[shards];
+        runAll(RANGES, r -> {
+            for (int i = 0; i < plates[r].length; i++) {
+                shardOf[firstOfRange[r] + i] = index.shardOf(plateHash(plates[r][i]));
+            }
+            return null;
+        });
+        for (int s : shardOf) counts[s]++;
+        int[][] byShard = new int[shards][];
+        for (int s = 0; s < shards; s++) byShard[s] = new int[counts[s]];
+        int[] filled = new int[shards];
+        for (int r = 0; r < RANGES; r++) {
+            for (int i = 0; i < plates[r].length; i++) {
+                int s = shardOf[firstOfRange[r] + i];
+                byShard[s][filled[s]++] = plates[r][i];
+            }
+        }
+        byte[] suffix = ("," + PlateIndex.LOT + "," + PlateIndex.lotId(lotName) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        runAll(shards, s -> {
+            if (byShard[s].length == 0) return null;
+            byte[] out = new byte[byShard[s].length * (7 + suffix.length)];
+            int at = 0;
+            for (int code : byShard[s]) {
+                putPlate(out, at, code);
+                System.arraycopy(suffix, 0, out, at + 7, suffix.length);
+                at += 7 + suffix.length;
+            }
+            try {
+                index.appendToShard(s, ByteBuffer.wrap(out, 0, at));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return null;
+        });
+    }
+
+    // One VehicleAdded per vehicle (it also means the plate was issued)
+    private void appendEvents(long time) throws IOException {
+        int maxRecord = EventLog.recordSize(2 + 7 + 2 + 5 + 2 + 2 + lotName.getBytes(StandardCharsets.ISO_8859_1).length);
+        try (EventLog.Writer writer = new EventLog.Writer(EventLog.FILE)) {
+            inWaves(r -> {
+                ByteBuffer out = ByteBuffer.allocate(plates[r].length * maxRecord);
+                CRC32 crc = new CRC32();
+                try {
+                    for (int i = 0; i < plates[r].length; i++) {
+                        String type = TYPES[types[firstOfRange[r] + i]];
+                        EventLog.encode(new EventLog.Event(EventLog.VEHICLE_ADDED, time, plateText(plates[r][i]), type, "", lotName, 0, 0),
+                                out, crc);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                out.flip();
+                return out;
+            }, (r, records) -> writer.appendEncoded(records, plates[r].length));
+        }
+    }
+
+    // Writes the output of every range in range order
+    private interface RangeSink {
+        void write(int range, ByteBuffer data) throws IOException;
+    }
+
+    // Encodes WAVE ranges at a time in parallel, then writes them in order
+    private static void inWaves(IntFunction<ByteBuffer> encoder, RangeSink sink) throws IOException {
+        try {
+            for (int first = 0; first < RANGES; first += WAVE) {
+                List<RecursiveTask<ByteBuffer>> tasks = new ArrayList<>();
+                for (int r = first; r < Math.min(RANGES, first + WAVE); r++) {
+                    tasks.add(task(encoder, r));
+                }
+                ForkJoinTask.invokeAll(tasks);
+                for (int i = 0; i < tasks.size(); i++) {
+                    sink.write(first + i, tasks.get(i).join());
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Runs the function for 0..n-1 on the fork/join pool and waits for all
+    private static void runAll(int n, IntFunction<Void> work) throws UncheckedIOException {
+        List<RecursiveTask<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            tasks.add(task(work, i));
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    private static <T> RecursiveTask<T> task(IntFunction<T> work, int i) {
+        return new RecursiveTask<T>() {
+            @Override
+            protected T compute() {
+                return work.apply(i);
+            }
+        };
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+By Jennifer Vicentes
+Purpose: This class decides if a shop can take a RENT or a RETURN, instead of every command counting the free parking slots itself.
+It keeps the occupied slots (vehicles in the shop plus vehicles rented out, both use a slot) in an atomic counter, and an average of
+how long the lot files take to read and write (lock wait included), so the CAPACITY command and the counter terminals of ShopServer
+can read them without waiting for the shop lock.
+
+When the lots get slow (a huge lot, many shops fighting for the same lot lock) rents that need a vehicle from a lot are shed
+(RENT) or queued (RENT <type> WAIT <seconds>) until the average goes down again. Rents from the shop inventory and returns never
+touch the lots and are always accepted, a return only delays moving a vehicle back to a lot until the shop is over its spaces.
+The limit is absolute, so it is off unless the shop is started with --lot-latency-limit=<ms>: lots bigger than what LotCache keeps in
+memory are read from disk on every access and are always slower than a fixed number, so a default limit would turn away most rents.
+Pick a limit above the normal lot time of the shop (the CAPACITY command shows the current average).
+
+The average is an exponentially weighted moving average of the lot I/O times. It also fades with time (half of it every
+LATENCY_HALF_LIFE_MS), otherwise a throttled shop would never touch the lots again and never see that they are fast again.
+*/
+package carrental;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class CapacityManager {
+    // Average lot I/O time above which rents from the lots are throttled, --lot-latency-limit=<ms> sets it (0, the default, is off)
+    public static final long DEFAULT_LATENCY_LIMIT_MS = 0;
+    // Weight of the newest lot I/O time in the average
+    static final double ALPHA = 0.2;
+    static final long LATENCY_HALF_LIFE_MS = 2000;
+    // How often the first waiting customer tries again while the lots are throttled (a RETURN may not come to wake it up)
+    static final long THROTTLED_RETRY_MS = 250;
+
+    private final AtomicInteger spaces = new AtomicInteger();
+    private final AtomicInteger occupied = new AtomicInteger();
+    private volatile long latencyLimitNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATENCY_LIMIT_MS);
+    // Average (double bits, updated by compare and set) and when it was last updated. Right after an update a reader may see the
+    // new average with the old time, it only fades it a little more for that moment.
+    private final AtomicLong averageBits = new AtomicLong(Double.doubleToLongBits(0));
+    private final AtomicLong averageAt = new AtomicLong(System.nanoTime());
+
+    // Decisions, shown by CAPACITY
+    private final LongAdder rentsAdmitted = new LongAdder();
+    private final LongAdder rentsNoSlot = new LongAdder();
+    private final LongAdder rentsThrottled = new LongAdder();
+    private final LongAdder returnsAccepted = new LongAdder();
+    private final LongAdder movesDeferred = new LongAdder();
+    private final LongAdder lotOperations = new LongAdder();
+
+    // Sets the parking spaces and the slots in use, when the shop is created or loaded
+    public void reset(int spaces, int occupied) {
+        this.spaces.set(spaces);
+        this.occupied.set(occupied);
+    }
+
+    public void setLatencyLimit(long millis) {
+        latencyLimitNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    public int freeSlots() {
+        return spaces.get() - occupied.get();
+    }
+
+    // RENT: there has to be a free slot (the shop keeps one for the vehicle it may need to take from a lot)
+    public boolean admitRent() {
+        if (freeSlots() <= 0) {
+            rentsNoSlot.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // RENT that needs a vehicle from the lots: false while the lots are throttled
+    public boolean admitLotRent() {
+        if (lotsThrottled()) {
+            rentsThrottled.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // Takes a slot for a vehicle coming from a lot, false when another counter took the last one first
+    public boolean tryTakeSlot() {
+        while (true) {
+            int used = occupied.get();
+            if (used >= spaces.get()) return false;
+            if (occupied.compareAndSet(used, used + 1)) return true;
+        }
+    }
+
+    // The lots had no vehicle for the slot taken with tryTakeSlot
+    public void releaseSlot() {
+        occupied.decrementAndGet();
+    }
+
+    public void rentDone() {
+        rentsAdmitted.increment();
+    }
+
+    // RETURN is always accepted. A vehicle rented by another shop takes a new slot, even if the shop is full.
+    public void returnAccepted(boolean newVehicle) {
+        returnsAccepted.increment();
+        if (newVehicle) occupied.incrementAndGet();
+    }
+
+    // After a RETURN: should a vehicle go back to a lot? Yes when the shop is full once the returned vehicle is parked (it is not
+    // parked yet, so its slot still counts as free). While the lots are throttled the move waits until the shop is over its spaces.
+    public boolean shouldMoveToLot() {
+        int free = freeSlots() + 1;
+        if (free >= 2) return false;
+        if (free >= 1 && lotsThrottled()) {
+            movesDeferred.increment();
+            return false;
+        }
+        return true;
+    }
+
+    // A vehicle of the shop went back to a lot
+    public void vehicleMovedOut() {
+        occupied.decrementAndGet();
+    }
+
+    // Adds the time of one read or write of a lot (lock wait included) to the average
+    public void recordLotIo(long nanos) {
+        lotOperations.increment();
+        while (true) {
+            long bits = averageBits.get();
+            long now = System.nanoTime();
+            double next = ALPHA * nanos + (1 - ALPHA) * decayed(Double.longBitsToDouble(bits), now);
+            if (averageBits.compareAndSet(bits, Double.doubleToLongBits(next))) {
+                averageAt.set(now);
+                return;
+            }
+        }
+    }
+
+    // Current average lot I/O time in nanoseconds
+    public long lotLatencyNanos() {
+        return (long) decayed(Double.longBitsToDouble(averageBits.get()), System.nanoTime());
+    }
+
+    public boolean lotsThrottled() {
+        long limit = latencyLimitNanos;
+        return limit > 0 && lotLatencyNanos() > limit;
+    }
+
+    private double decayed(double average, long now) {
+        long elapsed = now - averageAt.get();
+        if (elapsed <= 0) return average;
+        return average * Math.pow(0.5, (double) elapsed / TimeUnit.MILLISECONDS.toNanos(LATENCY_HALF_LIFE_MS));
+    }
+
+    // CAPACITY command
+    public String report() {
+        long limit = latencyLimitNanos;
+        StringBuilder sb = new StringBuilder();
+        sb.append("----- Capacity -----").append(System.lineSeparator());
+        sb.append("Slots: ").append(occupied.get()).append(" used of ").append(spaces.get()).append(", ").append(freeSlots())
+                .append(" free").append(System.lineSeparator());
+        sb.append("Lot I/O: ").append(String.format("%.1f", lotLatencyNanos() / 1e6)).append(" ms average over ")
+                .append(lotOperations.sum()).append(" operations, limit ")
+                .append(limit > 0 ? TimeUnit.NANOSECONDS.toMillis(limit) + " ms" : "off")
+                .append(lotsThrottled() ? " (THROTTLED: rents from the lots are shed or queued)" : " (OK)").append(System.lineSeparator());
+        sb.append("Rents: ").append(rentsAdmitted.sum()).append(" admitted, ").append(rentsNoSlot.sum()).append(" without a free slot, ")
+                .append(rentsThrottled.sum()).append(" throttled").append(System.lineSeparator());
+        sb.append("Returns: ").append(returnsAccepted.sum()).append(" accepted, ").append(movesDeferred.sum())
+                .append(" moves to a lot deferred").append(System.lineSeparator());
+        return sb.toString();
+    }
+}
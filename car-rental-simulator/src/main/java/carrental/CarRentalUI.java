@@ -243,7 +243,9 @@ public class CarRentalUI extends JFrame {
         String[] files = cwd.list((d,n) ->
             n.toLowerCase().endsWith(".txt")
             && !n.equalsIgnoreCase("plates_registry.txt")
-            && !n.equalsIgnoreCase("rented_registry.txt")
+            && !n.toLowerCase().startsWith("rented_registry")
+            && !n.toLowerCase().startsWith("plates_index")
+            && !n.equalsIgnoreCase(PricingEngine.OLD_RULES_FILE)
             && !n.equalsIgnoreCase(shopLocationField.getText().trim()+".txt")
         );
         if(files != null) {
@@ -277,6 +279,9 @@ public class CarRentalUI extends JFrame {
             return;
         }
         int spaces = (Integer)spacesSpinner.getValue();
+        if(shop != null) {
+            shop.close();
+        }
         shop = new RentalShop(loc, spaces, selectedLots);
         shopOutputArea.append("Initialized shop at " + loc + "\n\n");
     }
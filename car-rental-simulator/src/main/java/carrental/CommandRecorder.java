@@ -0,0 +1,111 @@
+/*
+By Jennifer Vicentes
+Purpose: This class records the traffic of the network so it can be replayed against another build (see CommandReplay).
+    java carrental.LotManager --lot-name=LotA --add-sedan=10 --record=traffic.rec
+    java carrental.RentalShop --location=SanJose --spaces-available=10 --lots=LotA --record=traffic.rec
+Every program appends its lines to the same recording, one line per step, fields separated by tabs:
+    LOT    <time> <seed> <LotManager arguments...>                        a LotManager run and the seed of its plates
+    START  <time> <location> <spaces> <lots> <pricing rules> <durability>  a shop started
+    CMD    <time> <location> <sequence> <crc32 of the output> <command>    a command of a shop and what it printed
+A replay starts from an empty directory, so the recording should start with the network: record the LotManager runs that fill the
+lots and start the shops with --record before they have a state.
+
+Time is what makes a replay different from the original run, so a recording shop reads the clock only once per command (SteppedClock)
+and the replay gives the shop that same time.
+*/
+package carrental;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CommandRecorder {
+    static final String HEADER = "#CARRENTAL-RECORDING,1";
+    static final String LOT = "LOT";
+    static final String START = "START";
+    static final String CMD = "CMD";
+
+    // Clock that only moves when it is told to: set once per command while recording, and to the recorded time while replaying
+    public static class SteppedClock extends Clock {
+        private volatile long millis;
+
+        public SteppedClock(long millis) {
+            this.millis = millis;
+        }
+
+        public void set(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            // Only UTC is used by the shops
+            return this;
+        }
+    }
+
+    private final String fileName;
+
+    public CommandRecorder(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public void recordLot(long time, long seed, List<String> args) {
+        append(LOT + "\t" + time + "\t" + seed + "\t" + String.join("\t", args));
+    }
+
+    public void recordStart(long time, String location, int spaces, List<String> lots, String pricingRules, String durability) {
+        append(START + "\t" + time + "\t" + location + "\t" + spaces + "\t" + String.join(",", lots) + "\t"
+                + (pricingRules == null ? "" : Paths.get(pricingRules).toAbsolutePath()) + "\t" + (durability == null ? "" : durability));
+    }
+
+    public void recordCommand(long time, String location, long sequence, long crc, String command) {
+        // A command is one line of text, tabs are not part of any command
+        append(CMD + "\t" + time + "\t" + location + "\t" + sequence + "\t" + Long.toHexString(crc) + "\t" + command.replace('\t', ' '));
+    }
+
+    // Several programs record at the same time, every line is appended while holding the lock of the recording
+    private void append(String line) {
+        try (FileLocks.Handle lock = FileLocks.lock(fileName)) {
+            Path path = Paths.get(fileName);
+            String text = (Files.exists(path) && Files.size(path) > 0 ? "" : HEADER + "\n") + line + "\n";
+            Files.write(path, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.err.println("Error writing recording (" + fileName + "): " + e.getMessage());
+        }
+    }
+
+    // The lines of a recording split in fields, without the header
+    static List<String[]> read(String fileName) throws IOException {
+        List<String[]> steps = new ArrayList<>();
+        List<String> lines = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+        if (lines.isEmpty() || !lines.get(0).equals(HEADER)) {
+            throw new IOException(fileName + " is not a recording");
+        }
+        for (String line : lines.subList(1, lines.size())) {
+            if (!line.isEmpty()) steps.add(line.split("\t", -1));
+        }
+        return steps;
+    }
+}
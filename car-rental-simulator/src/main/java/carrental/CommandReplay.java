@@ -0,0 +1,297 @@
+/*
+By Jennifer Vicentes
+Purpose: This class replays a recording (see CommandRecorder) against one or two builds and compares them:
+    java carrental.CommandReplay --recording=traffic.rec [--build-a=<classpath>] [--build-b=<classpath>] [--runs=3] [--work=replay.tmp] [--show=10]
+Every build runs in its own JVM (java -cp <build> carrental.CommandReplay --execute=...) inside a new empty directory under --work,
+so the two builds never share files. The LotManager runs are repeated with their recorded seed, the shops are started like they were
+and every command gets the time it had when it was recorded, so a build that behaves the same prints exactly the same.
+
+The report says which commands printed something different from the recording and between the two builds (showing both outputs),
+and the latency of every kind of command (median and 95th percentile) for each build with the difference. With --runs every build
+runs the whole recording that many times and the fastest time of every command is kept, which takes out most of the noise.
+Without --build-a the classpath of this JVM is used. Both builds must have this class (the child side is --execute).
+*/
+package carrental;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+public class CommandReplay {
+    static final String RESULTS_FILE = "replay-results.tsv";
+    static final String OUTPUTS_FILE = "replay-outputs.txt";
+
+    // One replayed command of one build
+    private static class Result {
+        final String location;
+        final String command;
+        final String recordedCrc;
+        long nanos;
+        final String crc;
+
+        Result(String[] fields) {
+            location = fields[1];
+            recordedCrc = fields[2];
+            crc = fields[3];
+            nanos = Long.parseLong(fields[4]);
+            command = fields[5];
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        try {
+            if (flags.containsKey("--execute")) {
+                execute(flags.get("--execute"));
+                return;
+            }
+            String recording = flags.get("--recording");
+            if (recording == null) {
+                System.err.println("Error: --recording must be provided.");
+                System.exit(1);
+            }
+            Path work = Paths.get(flags.getOrDefault("--work", "replay.tmp"));
+            int runs = Integer.parseInt(flags.getOrDefault("--runs", "1"));
+            int show = Integer.parseInt(flags.getOrDefault("--show", "10"));
+            String buildA = flags.getOrDefault("--build-a", System.getProperty("java.class.path"));
+            String buildB = flags.get("--build-b");
+
+            List<Result> a = runBuild("a", buildA, recording, work, runs);
+            List<Result> b = buildB != null ? runBuild("b", buildB, recording, work, runs) : null;
+            report(a, b, work, show);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error replaying recording: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Runs the recording with one build, runs times, each time in a new directory. Keeps the fastest time of every command.
+    private static List<Result> runBuild(String label, String classpath, String recording, Path work, int runs)
+            throws IOException, InterruptedException {
+        List<Result> best = null;
+        for (int run = 1; run <= runs; run++) {
+            Path dir = work.resolve(label + "-" + run);
+            deleteTree(dir);
+            Files.createDirectories(dir);
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            Process process = new ProcessBuilder(java, "-cp", classpath, "carrental.CommandReplay",
+                    "--execute=" + Paths.get(recording).toAbsolutePath())
+                    .directory(dir.toFile())
+                    .redirectErrorStream(true)
+                    .redirectOutput(dir.resolve("replay-console.txt").toFile())
+                    .start();
+            int exit = process.waitFor();
+            if (exit != 0 || !Files.exists(dir.resolve(RESULTS_FILE))) {
+                throw new IOException("build " + label + " failed (exit " + exit + "), see " + dir.resolve("replay-console.txt"));
+            }
+            List<Result> results = new ArrayList<>();
+            for (String line : Files.readAllLines(dir.resolve(RESULTS_FILE), StandardCharsets.UTF_8)) {
+                results.add(new Result(line.split("\t", 6)));
+            }
+            if (best == null) {
+                best = results;
+            } else {
+                for (int i = 0; i < best.size() && i < results.size(); i++) {
+                    best.get(i).nanos = Math.min(best.get(i).nanos, results.get(i).nanos);
+                }
+            }
+            System.out.println("Build " + label + " run " + run + ": replayed " + results.size() + " commands in " + dir + ".");
+        }
+        return best;
+    }
+
+    // Child side: runs the recording in the current directory and writes the results and the outputs
+    private static void execute(String recording) throws IOException {
+        List<String[]> steps = ordered(CommandRecorder.read(recording));
+        Map<String, RentalShop> shops = new HashMap<>();
+        Map<String, CommandRecorder.SteppedClock> clocks = new HashMap<>();
+        try (BufferedWriter results = Files.newBufferedWriter(Paths.get(RESULTS_FILE), StandardCharsets.UTF_8);
+             BufferedWriter outputs = Files.newBufferedWriter(Paths.get(OUTPUTS_FILE), StandardCharsets.UTF_8)) {
+            int index = 0;
+            for (String[] step : steps) {
+                switch (step[0]) {
+                    case CommandRecorder.LOT: {
+                        // LOT time seed args...
+                        List<String> lotArgs = new ArrayList<>(Arrays.asList(step).subList(3, step.length));
+                        if (!step[2].equals("null")) lotArgs.add("--seed=" + step[2]);
+                        LotManager.main(lotArgs.toArray(new String[0]));
+                        break;
+                    }
+                    case CommandRecorder.START: {
+                        // START time location spaces lots pricingRules durability
+                        // A shop started again was stopped before, its state must be on disk before the new one loads it
+                        RentalShop stopped = shops.remove(step[2]);
+                        if (stopped != null) stopped.close();
+                        CommandRecorder.SteppedClock clock = new CommandRecorder.SteppedClock(Long.parseLong(step[1]));
+                        List<String> lots = step[4].isEmpty() ? new ArrayList<>() : Arrays.asList(step[4].split(","));
+                        RentalShop shop = new RentalShop(step[2], Integer.parseInt(step[3]), lots, clock);
+                        if (!step[5].isEmpty()) shop.usePricingRules(step[5]);
+                        if (!step[6].isEmpty()) shop.setDurability(step[6]);
+                        shops.put(step[2], shop);
+                        clocks.put(step[2], clock);
+                        break;
+                    }
+                    case CommandRecorder.CMD: {
+                        // CMD time location sequence crc command
+                        RentalShop shop = shops.get(step[2]);
+                        if (shop == null) {
+                            System.err.println("Skipping command of shop " + step[2] + " that was not started in the recording: " + step[5]);
+                            break;
+                        }
+                        clocks.get(step[2]).set(Long.parseLong(step[1]));
+                        CRC32 crc = new CRC32();
+                        ByteArrayOutputStream text = new ByteArrayOutputStream();
+                        PrintStream out = new PrintStream(new CheckedOutputStream(text, crc), true);
+                        long start = System.nanoTime();
+                        shop.executeCommand(step[5], out);
+                        long nanos = System.nanoTime() - start;
+                        out.flush();
+                        index++;
+                        results.write(index + "\t" + step[2] + "\t" + step[4] + "\t" + Long.toHexString(crc.getValue()) + "\t"
+                                + nanos + "\t" + step[5] + "\n");
+                        outputs.write("### " + index + "\n" + text + "\n");
+                        break;
+                    }
+                    default:
+                        System.err.println("Unknown step in recording: " + step[0]);
+                }
+            }
+        }
+        for (RentalShop shop : shops.values()) {
+            shop.close();
+        }
+    }
+
+    // Steps in the order of the recording, except that the commands of every shop go in the order the shop ran them (sequence).
+    // A shop with several connections (ShopServer) may finish, and record, its commands in another order.
+    // The sequence starts again every time the shop starts, so the commands are grouped by shop and start.
+    private static List<String[]> ordered(List<String[]> steps) {
+        Map<String, Integer> starts = new HashMap<>();
+        List<String> keys = new ArrayList<>(steps.size());
+        Map<String, List<String[]>> bySession = new HashMap<>();
+        for (String[] step : steps) {
+            String key = null;
+            if (step[0].equals(CommandRecorder.START)) {
+                starts.merge(step[2], 1, Integer::sum);
+            } else if (step[0].equals(CommandRecorder.CMD)) {
+                key = step[2] + "#" + starts.getOrDefault(step[2], 0);
+                bySession.computeIfAbsent(key, k -> new ArrayList<>()).add(step);
+            }
+            keys.add(key);
+        }
+        Map<String, Iterator<String[]>> next = new HashMap<>();
+        for (Map.Entry<String, List<String[]>> e : bySession.entrySet()) {
+            e.getValue().sort(Comparator.comparingLong(s -> Long.parseLong(s[3])));
+            next.put(e.getKey(), e.getValue().iterator());
+        }
+        List<String[]> result = new ArrayList<>(steps.size());
+        for (int i = 0; i < steps.size(); i++) {
+            result.add(keys.get(i) != null ? next.get(keys.get(i)).next() : steps.get(i));
+        }
+        return result;
+    }
+
+    private static void report(List<Result> a, List<Result> b, Path work, int show) throws IOException {
+        System.out.println();
+        System.out.println("Outputs:");
+        differences("a", a, null, work, show);
+        if (b != null) {
+            differences("b", b, null, work, show);
+            differences("b", b, a, work, show);
+        }
+        System.out.println();
+        System.out.println("Latency per command (microseconds):");
+        Map<String, List<Long>> latA = byVerb(a);
+        Map<String, List<Long>> latB = b != null ? byVerb(b) : new HashMap<>();
+        System.out.println(String.format("%-14s %7s %10s %10s", "command", "count", "a p50", "a p95")
+                + (b != null ? String.format(" %10s %10s %9s", "b p50", "b p95", "p50 delta") : ""));
+        for (Map.Entry<String, List<Long>> e : latA.entrySet()) {
+            List<Long> times = e.getValue();
+            long p50 = percentile(times, 50);
+            String line = String.format("%-14s %7d %10d %10d", e.getKey(), times.size(), p50 / 1000, percentile(times, 95) / 1000);
+            List<Long> other = latB.get(e.getKey());
+            if (other != null) {
+                long otherP50 = percentile(other, 50);
+                line += String.format(" %10d %10d %8.1f%%", otherP50 / 1000, percentile(other, 95) / 1000,
+                        p50 == 0 ? 0.0 : 100.0 * (otherP50 - p50) / p50);
+            }
+            System.out.println(line);
+        }
+    }
+
+    // Prints the commands whose output differs from the recording (against == null) or from the other build
+    private static void differences(String label, List<Result> results, List<Result> against, Path work, int show) throws IOException {
+        String other = against == null ? "the recording" : "build a";
+        List<Integer> different = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            String expected = against == null ? results.get(i).recordedCrc : (i < against.size() ? against.get(i).crc : "");
+            if (!results.get(i).crc.equals(expected)) different.add(i);
+        }
+        if (against != null && against.size() != results.size()) {
+            System.out.println("Build " + label + " replayed " + results.size() + " commands, " + other + " " + against.size() + ".");
+        }
+        System.out.println("Build " + label + " vs " + other + ": " + (different.isEmpty() ? "all " + results.size() + " outputs match."
+                : different.size() + " of " + results.size() + " outputs differ."));
+        Map<Integer, String> outputs = different.isEmpty() ? Collections.emptyMap() : readOutputs(work.resolve(label + "-1"));
+        Map<Integer, String> otherOutputs = against == null || different.isEmpty() ? Collections.emptyMap() : readOutputs(work.resolve("a-1"));
+        for (int k = 0; k < different.size() && k < show; k++) {
+            int i = different.get(k);
+            Result r = results.get(i);
+            System.out.println("  #" + (i + 1) + " " + r.location + ": " + r.command);
+            if (against != null) {
+                System.out.println("    a: " + otherOutputs.getOrDefault(i + 1, "").trim().replace("\n", "\n       "));
+            }
+            System.out.println("    " + label + ": " + outputs.getOrDefault(i + 1, "").trim().replace("\n", "\n       "));
+        }
+    }
+
+    private static Map<Integer, String> readOutputs(Path dir) throws IOException {
+        Map<Integer, String> outputs = new HashMap<>();
+        Integer current = null;
+        StringBuilder text = new StringBuilder();
+        for (String line : Files.readAllLines(dir.resolve(OUTPUTS_FILE), StandardCharsets.UTF_8)) {
+            if (line.startsWith("### ")) {
+                if (current != null) outputs.put(current, text.toString());
+                current = Integer.parseInt(line.substring(4).trim());
+                text.setLength(0);
+            } else {
+                text.append(line).append('\n');
+            }
+        }
+        if (current != null) outputs.put(current, text.toString());
+        return outputs;
+    }
+
+    // Times by the first word of the command (RENT, RETURN, LIST...)
+    private static Map<String, List<Long>> byVerb(List<Result> results) {
+        Map<String, List<Long>> times = new TreeMap<>();
+        for (Result r : results) {
+            String verb = r.command.trim().split("\\s+")[0].toUpperCase();
+            times.computeIfAbsent(verb, k -> new ArrayList<>()).add(r.nanos);
+        }
+        return times;
+    }
+
+    private static long percentile(List<Long> times, int p) {
+        List<Long> sorted = new ArrayList<>(times);
+        Collections.sort(sorted);
+        int i = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(i, sorted.size() - 1)));
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path p : stream) paths.add(p);
+        }
+        for (Path p : paths) {
+            if (Files.isDirectory(p)) deleteTree(p);
+            else Files.delete(p);
+        }
+        Files.delete(dir);
+    }
+}
@@ -0,0 +1,340 @@
+/*
+By Jennifer Vicentes
+Purpose: This class keeps an append-only log of everything that happens to the vehicles of the network ("network_events.log").
+The lots, the shop states and the registries are still the files the programs work with, but every change to them is also written
+here as an event, so the history can be audited and the state of every lot and shop can be rebuilt from it (see EventReplay).
+Events: a plate issued, a vehicle added to or removed from a lot, moved from a lot to a shop, rented, returned and moved to a lot.
+A VehicleAdded also means its plate was issued (bulk adds of millions of vehicles only write that one, see BulkVehicleGenerator).
+
+The log is binary and compact. Every record is:
+    magic (2 bytes) | body length (4) | body | crc32 of the body (4)
+    body = type (1) | time (8) | plate | vehicle type | from | to (each one 2 bytes length + ISO-8859-1 text) | km (4) | cents (8)
+Appends hold FileLocks.lock(log) so records of different processes never mix. The log is not forced to disk on every append:
+a crash can lose or cut the last records, the reader checks the crc and looks for the next magic, so a cut record never hides the
+records appended after it.
+*/
+package carrental;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.CRC32;
+
+public class EventLog {
+    public static final String FILE = "network_events.log";
+
+    // Event types
+    public static final byte PLATE_ISSUED = 1;
+    public static final byte VEHICLE_ADDED = 2;
+    public static final byte VEHICLE_REMOVED = 3;
+    public static final byte VEHICLE_MOVED_TO_SHOP = 4;
+    public static final byte VEHICLE_RENTED = 5;
+    public static final byte VEHICLE_RETURNED = 6;
+    public static final byte VEHICLE_MOVED_TO_LOT = 7;
+    private static final String[] NAMES = {"?", "PlateIssued", "VehicleAdded", "VehicleRemoved", "VehicleMovedToShop",
+            "VehicleRented", "VehicleReturned", "VehicleMovedToLot"};
+
+    static final short MAGIC = (short) 0xE7E7;
+    // magic + length + crc
+    private static final int FRAME_BYTES = 2 + 4 + 4;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // A record must fit in the buffer, a longer length means the bytes are not a record
+    private static final int MAX_BODY = BUFFER_SIZE - FRAME_BYTES;
+
+    // One event. Fields an event type does not use are "" or 0.
+    public static class Event {
+        final byte type;
+        final long time;
+        final String plate;
+        final String vehicleType;
+        final String from;
+        final String to;
+        final int km;
+        final long cents;
+
+        public Event(byte type, long time, String plate, String vehicleType, String from, String to, int km, long cents) {
+            this.type = type;
+            this.time = time;
+            this.plate = plate;
+            this.vehicleType = vehicleType == null ? "" : vehicleType;
+            this.from = from == null ? "" : from;
+            this.to = to == null ? "" : to;
+            this.km = km;
+            this.cents = cents;
+        }
+
+        @Override
+        public String toString() {
+            String name = type > 0 && type < NAMES.length ? NAMES[type] : "?";
+            return time + " " + name + " " + plate + " " + vehicleType + " " + from + " -> " + to + " km=" + km + " cents=" + cents;
+        }
+    }
+
+    private EventLog() {
+    }
+
+    public static Event plateIssued(String plate, long time) {
+        return new Event(PLATE_ISSUED, time, plate, "", "", "", 0, 0);
+    }
+
+    public static Event added(Vehicle v, String lot, long time) {
+        return new Event(VEHICLE_ADDED, time, v.getLicensePlate(), v.getType(), "", lot, v.getKilometers(), 0);
+    }
+
+    public static Event removed(Vehicle v, String lot, long time) {
+        return new Event(VEHICLE_REMOVED, time, v.getLicensePlate(), v.getType(), lot, "", v.getKilometers(), 0);
+    }
+
+    public static Event movedToShop(Vehicle v, String lot, String shop, long time) {
+        return new Event(VEHICLE_MOVED_TO_SHOP, time, v.getLicensePlate(), v.getType(), lot, shop, v.getKilometers(), 0);
+    }
+
+    // from is the lot the vehicle came from, or "" when it was in the shop
+    public static Event rented(Vehicle v, String lot, String shop, long time) {
+        return new Event(VEHICLE_RENTED, time, v.getLicensePlate(), v.getType(), lot, shop, v.getKilometers(), 0);
+    }
+
+    // km are the kilometers of the rental, cents what the customer paid
+    public static Event returned(Vehicle v, String shop, int km, long cents, long time) {
+        return new Event(VEHICLE_RETURNED, time, v.getLicensePlate(), v.getType(), "", shop, km, cents);
+    }
+
+    // from is a shop or another lot
+    public static Event movedToLot(Vehicle v, String from, String lot, long time) {
+        return new Event(VEHICLE_MOVED_TO_LOT, time, v.getLicensePlate(), v.getType(), from, lot, v.getKilometers(), 0);
+    }
+
+    // Appends the events to a log in one locked write
+    public static void append(String fileName, List<Event> events) {
+        if (events.isEmpty()) return;
+        try (Writer writer = new Writer(fileName)) {
+            for (Event e : events) {
+                writer.append(e);
+            }
+        } catch (IOException e) {
+            System.err.println("Error appending to event log (" + fileName + "): " + e.getMessage());
+        }
+    }
+
+    // Appends events to the end of a log while holding its lock. Records are buffered and written when the buffer is full and on close().
+    public static class Writer implements Closeable {
+        private final FileLocks.Handle lock;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        private long count = 0;
+
+        public Writer(String fileName) throws IOException {
+            lock = FileLocks.lock(fileName);
+            try {
+                channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                lock.close();
+                throw e;
+            }
+        }
+
+        public void append(Event e) throws IOException {
+            if (!encode(e, buffer, crc)) {
+                drain();
+                encode(e, buffer, crc);
+            }
+            count++;
+        }
+
+        // Appends records already encoded with encode() (count of them), after the buffered ones
+        public void appendEncoded(ByteBuffer records, long recordCount) throws IOException {
+            drain();
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+            count += recordCount;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+                channel.close();
+            } finally {
+                lock.close();
+            }
+        }
+    }
+
+    // Writes the record of the event at the position of a heap buffer. Returns false (writing nothing) when it does not fit.
+    // Every thread needs its own crc. BulkVehicleGenerator encodes in parallel with it and appends with Writer.appendEncoded.
+    static boolean encode(Event e, ByteBuffer buffer, CRC32 crc) throws IOException {
+        byte[] plate = e.plate.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] type = e.vehicleType.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] from = e.from.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] to = e.to.getBytes(StandardCharsets.ISO_8859_1);
+        int body = 1 + 8 + 8 + plate.length + type.length + from.length + to.length + 4 + 8;
+        if (body > MAX_BODY || Math.max(Math.max(plate.length, type.length), Math.max(from.length, to.length)) > 0xFFFF) {
+            throw new IOException("Event too big: " + e);
+        }
+        if (buffer.remaining() < body + FRAME_BYTES) {
+            return false;
+        }
+        buffer.putShort(MAGIC);
+        buffer.putInt(body);
+        int start = buffer.position();
+        buffer.put(e.type);
+        buffer.putLong(e.time);
+        putText(buffer, plate);
+        putText(buffer, type);
+        putText(buffer, from);
+        putText(buffer, to);
+        buffer.putInt(e.km);
+        buffer.putLong(e.cents);
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + start, body);
+        buffer.putInt((int) crc.getValue());
+        return true;
+    }
+
+    // Bytes of the record of an event with these texts (same layout as encode)
+    static int recordSize(int textBytes) {
+        return FRAME_BYTES + 1 + 8 + 8 + textBytes + 4 + 8;
+    }
+
+    private static void putText(ByteBuffer buffer, byte[] text) {
+        buffer.putShort((short) text.length);
+        buffer.put(text);
+    }
+
+    // Receives the events of a log, see Reader
+    public interface Visitor {
+        void visit(Event e);
+    }
+
+    // Reads the records of a log from a channel (a file, or memory for the benchmark).
+    // Bad records (cut by a crash) are skipped by looking for the next magic.
+    public static class Reader {
+        private final ReadableByteChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+        // Offset in the log of the first byte of the buffer
+        private long position;
+        private long skippedBytes = 0;
+        // Bytes the reader may still take from the channel
+        private long unread;
+        private boolean eof = false;
+
+        // position is where the channel starts in the log, length how many bytes of it to read
+        // (a replay reads up to the size the log had, so it never sees a record that is being appended)
+        public Reader(ReadableByteChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.unread = length;
+            buffer.flip();
+        }
+
+        // Reads every record until the end of the channel. Returns the number of events delivered.
+        public long forEach(Visitor visitor) throws IOException {
+            long count = 0;
+            while (true) {
+                if (!ensure(FRAME_BYTES)) break;
+                int at = buffer.position();
+                int body = buffer.getInt(at + 2);
+                if (buffer.getShort(at) != MAGIC || body < 0 || body > MAX_BODY) {
+                    skip(1);
+                    continue;
+                }
+                if (!ensure(FRAME_BYTES + body)) {
+                    // A record cut at the end of the log, or a cut record whose length goes past the records written after it
+                    skip(1);
+                    continue;
+                }
+                at = buffer.position();
+                crc.reset();
+                crc.update(buffer.array(), at + 6, body);
+                if (buffer.getInt(at + 6 + body) != (int) crc.getValue()) {
+                    skip(1);
+                    continue;
+                }
+                buffer.position(at + 6);
+                visitor.visit(decode());
+                buffer.position(at + FRAME_BYTES + body);
+                position += FRAME_BYTES + body;
+                count++;
+            }
+            // Less than a frame is left
+            skippedBytes += buffer.remaining();
+            return count;
+        }
+
+        // Offset right after the last complete record read, a later replay can start there
+        public long getPosition() {
+            return position;
+        }
+
+        // Bytes that were not part of a valid record
+        public long getSkippedBytes() {
+            return skippedBytes;
+        }
+
+        private Event decode() {
+            byte type = buffer.get();
+            long time = buffer.getLong();
+            String plate = getText();
+            String vehicleType = getText();
+            String from = getText();
+            String to = getText();
+            int km = buffer.getInt();
+            long cents = buffer.getLong();
+            return new Event(type, time, plate, vehicleType, from, to, km, cents);
+        }
+
+        private String getText() {
+            int length = buffer.getShort() & 0xFFFF;
+            String text = length == 0 ? "" : new String(buffer.array(), buffer.position(), length, StandardCharsets.ISO_8859_1);
+            buffer.position(buffer.position() + length);
+            return text;
+        }
+
+        private void skip(int n) {
+            buffer.position(buffer.position() + n);
+            position += n;
+            skippedBytes += n;
+        }
+
+        // Makes sure n bytes are in the buffer, reading more from the channel. False at the end of the channel.
+        private boolean ensure(int n) throws IOException {
+            if (buffer.remaining() >= n) return true;
+            if (eof || n > buffer.capacity()) return false;
+            buffer.compact();
+            while (buffer.position() < n) {
+                buffer.limit(buffer.position() + (int) Math.min(buffer.remaining(), unread));
+                int read = unread == 0 ? -1 : channel.read(buffer);
+                buffer.limit(buffer.capacity());
+                if (read < 0) {
+                    eof = true;
+                    break;
+                }
+                unread -= read;
+            }
+            buffer.flip();
+            return buffer.remaining() >= n;
+        }
+    }
+}
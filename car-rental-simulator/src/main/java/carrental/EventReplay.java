@@ -0,0 +1,646 @@
+/*
+By Jennifer Vicentes
+Purpose: This class rebuilds the state of the network (what is in every lot and every shop) from the event log (see EventLog):
+    java carrental.EventReplay [--log=network_events.log] [--show=<lot or shop>] [--verify] [--snapshot] [--full]
+    java carrental.EventReplay --history=<plate>
+    java carrental.EventReplay --bench=5000000
+The projection keeps, for every plate, its type, kilometers and where it is (in a lot, in a shop or rented from a shop), plus the
+money earned by every shop and the plates issued. It prints a summary per lot and per shop, --show lists the vehicles of one of them
+and --verify compares it with the lot files and the shop snapshots (only networks started with the event log can match).
+
+Snapshots: --snapshot saves the projection to "<log>.snap" with the offset of the log it covers. The next replay loads it and only
+reads the events appended after that offset (--full ignores it). --history reads the whole log and prints the events of one plate.
+--bench writes a synthetic log of N events to a temporary file and replays it, reporting events per second for both.
+*/
+package carrental;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+public class EventReplay {
+    private static final byte[] SNAPSHOT_MAGIC = {'E', 'V', 'S', 'N', 'A', 'P'};
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // Where a vehicle is
+    static final byte IN_LOT = 0, IN_SHOP = 1, RENTED = 2;
+    private static final String[] STATES = {"lot", "shop", "rented"};
+
+    // Receives the vehicles of a projection, see Projection.forEachVehicle
+    interface VehicleVisitor {
+        void visit(String plate, String type, byte state, String where, int km);
+    }
+
+    // State rebuilt from the events.
+    // Plates have at most 8 characters ("XXX-000"), so a plate is packed in a long and the place of the vehicle (state, type,
+    // where and km) in another long, both side by side in an open addressing table. Every event costs one or two memory accesses
+    // instead of the nodes, strings and objects of a HashMap, that is what keeps replay at millions of events per second.
+    // Longer plates go to a normal map.
+    static class Projection implements EventLog.Visitor {
+        private final PlateTable vehicles = new PlateTable();
+        private final Map<String, Long> longPlateVehicles = new HashMap<>();
+        private final PlateTable issued = new PlateTable();
+        private final Set<String> longPlatesIssued = new HashSet<>();
+        final Map<String, Long> earnedCents = new TreeMap<>();
+        // Vehicle types and lot or shop names by id, the packed places keep the ids
+        private final Names types = new Names(0x3FF);
+        private final Names places = new Names(0xFFFFF);
+        // Offset of the log after the last event applied, and number of events applied
+        long position = 0;
+        long events = 0;
+        long unknown = 0;
+
+        @Override
+        public void visit(EventLog.Event e) {
+            events++;
+            switch (e.type) {
+                case EventLog.PLATE_ISSUED:
+                    addIssued(e.plate);
+                    break;
+                case EventLog.VEHICLE_ADDED:
+                    addIssued(e.plate);
+                    place(e, IN_LOT, e.km);
+                    break;
+                case EventLog.VEHICLE_MOVED_TO_LOT:
+                    place(e, IN_LOT, e.km);
+                    break;
+                case EventLog.VEHICLE_REMOVED:
+                    long key = PlateTable.pack(e.plate);
+                    if (key != 0) vehicles.remove(key);
+                    else longPlateVehicles.remove(e.plate);
+                    break;
+                case EventLog.VEHICLE_MOVED_TO_SHOP:
+                    place(e, IN_SHOP, e.km);
+                    break;
+                case EventLog.VEHICLE_RENTED:
+                    place(e, RENTED, e.km);
+                    break;
+                case EventLog.VEHICLE_RETURNED:
+                    // The kilometers of a return are the ones of the rental
+                    long before = get(e.plate);
+                    place(e, IN_SHOP, (before == 0 ? 0 : kmOf(before)) + e.km);
+                    earnedCents.merge(e.to, e.cents, Long::sum);
+                    break;
+                default:
+                    unknown++;
+            }
+        }
+
+        // Vehicle type comes from the first event of the plate, later events only move it
+        private void place(EventLog.Event e, byte state, int km) {
+            long before = get(e.plate);
+            int type = before != 0 ? typeOf(before) : types.id(e.vehicleType);
+            put(e.plate, pack(state, type, places.id(e.to), km));
+        }
+
+        void addIssued(String plate) {
+            long key = PlateTable.pack(plate);
+            if (key != 0) issued.put(key, 1);
+            else longPlatesIssued.add(plate);
+        }
+
+        void putVehicle(String plate, String type, byte state, String where, int km) {
+            put(plate, pack(state, types.id(type), places.id(where), km));
+        }
+
+        int vehicleCount() {
+            return vehicles.size() + longPlateVehicles.size();
+        }
+
+        int issuedCount() {
+            return issued.size() + longPlatesIssued.size();
+        }
+
+        void forEachIssued(java.util.function.Consumer<String> consumer) {
+            issued.forEach((key, value) -> consumer.accept(PlateTable.unpack(key)));
+            longPlatesIssued.forEach(consumer);
+        }
+
+        void forEachVehicle(VehicleVisitor visitor) {
+            vehicles.forEach((key, value) -> visit(visitor, PlateTable.unpack(key), value));
+            longPlateVehicles.forEach((plate, value) -> visit(visitor, plate, value));
+        }
+
+        private void visit(VehicleVisitor visitor, String plate, long value) {
+            visitor.visit(plate, types.get(typeOf(value)), (byte) (value & 3), places.get((int) (value >>> 12) & 0xFFFFF), kmOf(value));
+        }
+
+        // 0 when the vehicle is not in the projection
+        private long get(String plate) {
+            long key = PlateTable.pack(plate);
+            if (key != 0) return vehicles.get(key);
+            Long value = longPlateVehicles.get(plate);
+            return value == null ? 0 : value;
+        }
+
+        private void put(String plate, long value) {
+            long key = PlateTable.pack(plate);
+            if (key != 0) vehicles.put(key, value);
+            else longPlateVehicles.put(plate, value);
+        }
+
+        // km (32 bits) | where (20 bits) | type (10 bits) | state (2 bits)
+        private static long pack(byte state, int type, int where, int km) {
+            return ((km & 0xFFFFFFFFL) << 32) | ((long) where << 12) | ((long) type << 2) | state;
+        }
+
+        private static int typeOf(long value) {
+            return (int) (value >>> 2) & 0x3FF;
+        }
+
+        private static int kmOf(long value) {
+            return (int) (value >>> 32);
+        }
+    }
+
+    // Names numbered in the order they are seen. Id 0 is not used, so the type of a packed place is at least 1 and a packed
+    // place is never 0.
+    private static class Names {
+        private final List<String> list = new ArrayList<>(Collections.singletonList(null));
+        private final Map<String, Integer> ids = new HashMap<>();
+        private final int maxId;
+
+        Names(int maxId) {
+            this.maxId = maxId;
+        }
+
+        int id(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                if (list.size() > maxId) throw new IllegalStateException("Too many different names in the event log: " + name);
+                id = list.size();
+                list.add(name);
+                ids.put(name, id);
+            }
+            return id;
+        }
+
+        String get(int id) {
+            return list.get(id);
+        }
+    }
+
+    // Open addressing hash table from a packed plate to a long, with linear probing. Keys and values are stored side by side
+    // (slot i uses table[2i] and table[2i+1]) so a lookup usually reads one cache line. 0 is never a key, get() returns 0 when missing.
+    static class PlateTable {
+        private long[] table = new long[2 * 1024];
+        private int size = 0;
+
+        // The plate packed in a long (8 ISO-8859-1 characters at most), or 0 when it does not fit
+        static long pack(String plate) {
+            int n = plate.length();
+            if (n == 0 || n > 8) return 0;
+            long key = 0;
+            for (int i = 0; i < n; i++) {
+                char c = plate.charAt(i);
+                if (c == 0 || c > 0xFF) return 0;
+                key = (key << 8) | c;
+            }
+            return key;
+        }
+
+        static String unpack(long key) {
+            StringBuilder sb = new StringBuilder(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                int c = (int) (key >>> shift) & 0xFF;
+                if (c != 0) sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        int size() {
+            return size;
+        }
+
+        long get(long key) {
+            int mask = capacity() - 1;
+            for (int i = slot(key, mask); ; i = (i + 1) & mask) {
+                long k = table[2 * i];
+                if (k == key) return table[2 * i + 1];
+                if (k == 0) return 0;
+            }
+        }
+
+        void put(long key, long value) {
+            int mask = capacity() - 1;
+            int i = slot(key, mask);
+            while (table[2 * i] != 0 && table[2 * i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (table[2 * i] == 0) {
+                table[2 * i] = key;
+                size++;
+            }
+            table[2 * i + 1] = value;
+            // Kept at most 3/4 full: probes stay short and a log with the 10M vehicles of a bulk lot still fits in a normal heap
+            if ((long) size * 4 > (long) capacity() * 3) grow();
+        }
+
+        void remove(long key) {
+            int mask = capacity() - 1;
+            int i = slot(key, mask);
+            while (table[2 * i] != key) {
+                if (table[2 * i] == 0) return;
+                i = (i + 1) & mask;
+            }
+            // Moves back the keys after the hole that would not be found any more (no tombstones)
+            for (int j = (i + 1) & mask; table[2 * j] != 0; j = (j + 1) & mask) {
+                int home = slot(table[2 * j], mask);
+                boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+                if (!stays) {
+                    table[2 * i] = table[2 * j];
+                    table[2 * i + 1] = table[2 * j + 1];
+                    i = j;
+                }
+            }
+            table[2 * i] = 0;
+            table[2 * i + 1] = 0;
+            size--;
+        }
+
+        interface EntryVisitor {
+            void visit(long key, long value);
+        }
+
+        void forEach(EntryVisitor visitor) {
+            for (int i = 0; i < table.length; i += 2) {
+                if (table[i] != 0) visitor.visit(table[i], table[i + 1]);
+            }
+        }
+
+        private int capacity() {
+            return table.length / 2;
+        }
+
+        private static int slot(long key, int mask) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        private void grow() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            size = 0;
+            for (int i = 0; i < old.length; i += 2) {
+                if (old[i] != 0) put(old[i], old[i + 1]);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        if (flags.containsKey("--bench")) {
+            bench(Long.parseLong(flags.get("--bench")));
+            return;
+        }
+        String logFile = flags.getOrDefault("--log", EventLog.FILE);
+        if (!new File(logFile).exists()) {
+            System.err.println("Error: event log " + logFile + " does not exist.");
+            System.exit(1);
+        }
+        try {
+            if (flags.containsKey("--history")) {
+                printHistory(logFile, flags.get("--history").trim().toUpperCase());
+                return;
+            }
+            long start = System.nanoTime();
+            Projection p = replay(logFile, !flags.containsKey("--full"));
+            System.out.println("Replayed " + p.events + " events in " + millisSince(start) + " ms.");
+            printSummary(p);
+            if (flags.containsKey("--show")) {
+                printVehicles(p, flags.get("--show"));
+            }
+            if (flags.containsKey("--verify")) {
+                verify(p);
+            }
+            if (flags.containsKey("--snapshot")) {
+                saveSnapshot(p, logFile + ".snap");
+                System.out.println("Snapshot " + logFile + ".snap saved at offset " + p.position + ".");
+            }
+        } catch (IOException e) {
+            System.err.println("Error replaying event log (" + logFile + "): " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Rebuilds the projection, starting from the snapshot of the log when there is a usable one
+    static Projection replay(String logFile, boolean useSnapshot) throws IOException {
+        long size = logSize(logFile);
+        Projection p = useSnapshot ? loadSnapshot(logFile + ".snap") : null;
+        if (p != null && p.position > size) {
+            // The log was replaced by a shorter one, the snapshot is not about it
+            System.err.println("Snapshot " + logFile + ".snap is newer than the log, replaying the whole log.");
+            p = null;
+        }
+        if (p == null) {
+            p = new Projection();
+        } else {
+            System.out.println("Loaded snapshot at offset " + p.position + " (" + p.events + " events).");
+        }
+        long fromEvents = p.events;
+        try (FileChannel channel = FileChannel.open(Paths.get(logFile), StandardOpenOption.READ)) {
+            channel.position(p.position);
+            EventLog.Reader reader = new EventLog.Reader(channel, p.position, size - p.position);
+            reader.forEach(p);
+            p.position = reader.getPosition();
+            if (reader.getSkippedBytes() > 0) {
+                System.err.println("Event log " + logFile + ": skipped " + reader.getSkippedBytes() + " bytes of cut records.");
+            }
+        }
+        if (p.unknown > 0) {
+            System.err.println("Event log " + logFile + ": " + p.unknown + " events of unknown type were ignored.");
+        }
+        if (fromEvents > 0) {
+            System.out.println("Read " + (p.events - fromEvents) + " events appended after the snapshot.");
+        }
+        return p;
+    }
+
+    // Size of the log taken under its lock, so every record before it is complete (unless a writer crashed)
+    private static long logSize(String logFile) throws IOException {
+        try (FileLocks.Handle lock = FileLocks.lock(logFile)) {
+            return Files.size(Paths.get(logFile));
+        }
+    }
+
+    private static void printHistory(String logFile, String plate) throws IOException {
+        long size = logSize(logFile);
+        long[] found = {0};
+        try (FileChannel channel = FileChannel.open(Paths.get(logFile), StandardOpenOption.READ)) {
+            new EventLog.Reader(channel, 0, size).forEach(e -> {
+                if (e.plate.equals(plate)) {
+                    System.out.println(e);
+                    found[0]++;
+                }
+            });
+        }
+        System.out.println(found[0] + " events for plate " + plate + ".");
+    }
+
+    private static void printSummary(Projection p) {
+        // name -> vehicles per type, and for shops the rented ones too
+        Map<String, Map<String, Integer>> lots = new TreeMap<>();
+        Map<String, int[]> shops = new TreeMap<>();
+        p.forEachVehicle((plate, type, state, where, km) -> {
+            if (state == IN_LOT) {
+                lots.computeIfAbsent(where, k -> new TreeMap<>()).merge(type, 1, Integer::sum);
+            } else {
+                shops.computeIfAbsent(where, k -> new int[2])[state == RENTED ? 1 : 0]++;
+            }
+        });
+        for (Map.Entry<String, Map<String, Integer>> e : lots.entrySet()) {
+            int total = 0;
+            for (int n : e.getValue().values()) total += n;
+            System.out.println("Lot " + e.getKey() + ": " + total + " vehicles " + e.getValue());
+        }
+        Set<String> shopNames = new TreeSet<>(shops.keySet());
+        shopNames.addAll(p.earnedCents.keySet());
+        for (String shop : shopNames) {
+            int[] counts = shops.getOrDefault(shop, new int[2]);
+            System.out.println("Shop " + shop + ": " + counts[0] + " in inventory, " + counts[1] + " rented, earned $"
+                    + Money.format(p.earnedCents.getOrDefault(shop, 0L)));
+        }
+        System.out.println("Plates issued: " + p.issuedCount() + ", vehicles in the network: " + p.vehicleCount() + ".");
+    }
+
+    // Lists the vehicles of one lot or shop as "plate,type,km (state)"
+    private static void printVehicles(Projection p, String name) {
+        List<String> lines = new ArrayList<>();
+        p.forEachVehicle((plate, type, state, where, km) -> {
+            if (where.equals(name)) {
+                lines.add(plate + "," + type + "," + km + " (" + STATES[state] + ")");
+            }
+        });
+        Collections.sort(lines);
+        for (String line : lines) {
+            System.out.println(line);
+        }
+        System.out.println(lines.size() + " vehicles in " + name + ".");
+    }
+
+    // Compares the projection with the lot files and the shop snapshots, printing the plates that differ
+    private static void verify(Projection p) {
+        Map<String, Set<String>> expectedLots = new TreeMap<>();
+        Map<String, Set<String>> expectedShops = new TreeMap<>();
+        p.forEachVehicle((plate, type, state, where, km) -> {
+            Map<String, Set<String>> target = state == IN_LOT ? expectedLots : expectedShops;
+            // Shop entries remember if the vehicle is rented, "R:" or "S:" before the plate
+            String key = state == IN_LOT ? plate : (state == RENTED ? "R:" : "S:") + plate;
+            target.computeIfAbsent(where, k -> new HashSet<>()).add(key);
+        });
+        int differences = 0;
+        for (Map.Entry<String, Set<String>> e : expectedLots.entrySet()) {
+            Set<String> actual = new HashSet<>();
+            LotFile.forEach(e.getKey() + ".txt", v -> actual.add(v.getLicensePlate()));
+            differences += compare("Lot " + e.getKey(), e.getValue(), actual);
+        }
+        for (Map.Entry<String, Set<String>> e : expectedShops.entrySet()) {
+            Set<String> actual = new HashSet<>();
+            try {
+                RentalShop.forEachSavedVehicle(e.getKey(), (vehicle, rented, discount, rentedAt) ->
+                        actual.add((rented ? "R:" : "S:") + vehicle.getLicensePlate()));
+            } catch (IOException | ClassNotFoundException ex) {
+                System.err.println("Error reading shop state (" + e.getKey() + ".ser): " + ex.getMessage());
+            }
+            differences += compare("Shop " + e.getKey(), e.getValue(), actual);
+        }
+        System.out.println(differences == 0 ? "Verify: the lots and shops match the event log."
+                : "Verify: " + differences + " differences between the event log and the files.");
+    }
+
+    private static int compare(String what, Set<String> expected, Set<String> actual) {
+        Set<String> missing = new TreeSet<>(expected);
+        missing.removeAll(actual);
+        Set<String> extra = new TreeSet<>(actual);
+        extra.removeAll(expected);
+        if (!missing.isEmpty()) {
+            System.out.println(what + ": " + missing.size() + " vehicles of the log are not in the file " + firstOf(missing));
+        }
+        if (!extra.isEmpty()) {
+            System.out.println(what + ": " + extra.size() + " vehicles of the file are not in the log " + firstOf(extra));
+        }
+        return missing.size() + extra.size();
+    }
+
+    private static String firstOf(Set<String> plates) {
+        List<String> first = new ArrayList<>();
+        for (String p : plates) {
+            if (first.size() == 10) break;
+            first.add(p);
+        }
+        return first + (plates.size() > first.size() ? " ..." : "");
+    }
+
+    // Writes the projection to a temporary file and renames it over the snapshot
+    static void saveSnapshot(Projection p, String fileName) throws IOException {
+        Path tmp = Paths.get(fileName + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 256 * 1024))) {
+            out.write(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(p.position);
+            out.writeLong(p.events);
+            // The visitors cannot throw IOException
+            try {
+                out.writeInt(p.issuedCount());
+                p.forEachIssued(plate -> {
+                    try {
+                        out.writeUTF(plate);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                out.writeInt(p.vehicleCount());
+                p.forEachVehicle((plate, type, state, where, km) -> {
+                    try {
+                        out.writeUTF(plate);
+                        out.writeUTF(type);
+                        out.writeByte(state);
+                        out.writeUTF(where);
+                        out.writeInt(km);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.writeInt(p.earnedCents.size());
+            for (Map.Entry<String, Long> e : p.earnedCents.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+        }
+        Files.move(tmp, Paths.get(fileName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns null when there is no snapshot or it cannot be read
+    static Projection loadSnapshot(String fileName) {
+        if (!new File(fileName).exists()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 256 * 1024))) {
+            byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, SNAPSHOT_MAGIC) || in.readInt() != SNAPSHOT_VERSION) {
+                System.err.println("Snapshot " + fileName + " has an unknown format, ignoring it.");
+                return null;
+            }
+            Projection p = new Projection();
+            p.position = in.readLong();
+            p.events = in.readLong();
+            int issued = in.readInt();
+            for (int i = 0; i < issued; i++) {
+                p.addIssued(in.readUTF());
+            }
+            int vehicles = in.readInt();
+            for (int i = 0; i < vehicles; i++) {
+                String plate = in.readUTF();
+                String type = in.readUTF();
+                byte state = in.readByte();
+                String where = in.readUTF();
+                p.putVehicle(plate, type, state, where, in.readInt());
+            }
+            int shops = in.readInt();
+            for (int i = 0; i < shops; i++) {
+                p.earnedCents.put(in.readUTF(), in.readLong());
+            }
+            return p;
+        } catch (IOException e) {
+            System.err.println("Error reading snapshot " + fileName + ", replaying the whole log: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Writes n synthetic events (a fleet moving between 4 lots and 8 shops) to a temporary log and replays it
+    private static void bench(long n) {
+        int fleet = (int) Math.max(1, Math.min(n / 10, 1_000_000));
+        String[] lots = {"BenchLot0", "BenchLot1", "BenchLot2", "BenchLot3"};
+        String[] shops = new String[8];
+        for (int i = 0; i < shops.length; i++) shops[i] = "BenchShop" + i;
+        String[] types = {"SEDAN", "SUV", "VAN"};
+        String[] plates = new String[fleet];
+        // Plates like the real ones ("XXX-000"), letters from i / 1000 and digits from i % 1000
+        for (int i = 0; i < fleet; i++) {
+            int letters = i / 1000;
+            plates[i] = "" + (char) ('A' + letters / 676) + (char) ('A' + letters / 26 % 26) + (char) ('A' + letters % 26)
+                    + String.format("-%03d", i % 1000);
+        }
+        // Where every vehicle is, IN_LOT, IN_SHOP or RENTED, and which shop
+        byte[] state = new byte[fleet];
+        byte[] shopOf = new byte[fleet];
+        Random random = new Random(42);
+        Path log = null;
+        try {
+            log = Files.createTempFile(Paths.get("."), "bench_events", ".log");
+            long start = System.nanoTime();
+            long written = 0;
+            long time = 1_700_000_000_000L;
+            try (EventLog.Writer writer = new EventLog.Writer(log.toString())) {
+                for (int i = 0; i < fleet && written < n; i++, written += 2) {
+                    writer.append(new EventLog.Event(EventLog.PLATE_ISSUED, time, plates[i], "", "", "", 0, 0));
+                    writer.append(new EventLog.Event(EventLog.VEHICLE_ADDED, time, plates[i], types[i % 3], "", lots[i % 4], 0, 0));
+                }
+                for (; written < n; written++) {
+                    int i = random.nextInt(fleet);
+                    time += 1000;
+                    String type = types[i % 3];
+                    EventLog.Event e;
+                    if (state[i] == IN_LOT) {
+                        shopOf[i] = (byte) random.nextInt(shops.length);
+                        e = new EventLog.Event(EventLog.VEHICLE_MOVED_TO_SHOP, time, plates[i], type, lots[i % 4], shops[shopOf[i]], 0, 0);
+                        state[i] = IN_SHOP;
+                    } else if (state[i] == RENTED) {
+                        e = new EventLog.Event(EventLog.VEHICLE_RETURNED, time, plates[i], type, "", shops[shopOf[i]], 120, 6000);
+                        state[i] = IN_SHOP;
+                    } else if (random.nextInt(4) == 0) {
+                        e = new EventLog.Event(EventLog.VEHICLE_MOVED_TO_LOT, time, plates[i], type, shops[shopOf[i]], lots[i % 4], 0, 0);
+                        state[i] = IN_LOT;
+                    } else {
+                        e = new EventLog.Event(EventLog.VEHICLE_RENTED, time, plates[i], type, "", shops[shopOf[i]], 0, 0);
+                        state[i] = RENTED;
+                    }
+                    writer.append(e);
+                }
+            }
+            long writeNanos = System.nanoTime() - start;
+            long bytes = Files.size(log);
+            System.out.println("Wrote " + written + " events (" + bytes / (1024 * 1024) + " MB, " + fleet + " vehicles) in "
+                    + writeNanos / 1_000_000 + " ms: " + perSecond(written, writeNanos) + " events/s.");
+
+            start = System.nanoTime();
+            Projection p = replay(log.toString(), false);
+            long replayNanos = System.nanoTime() - start;
+            System.out.println("Replayed " + p.events + " events in " + replayNanos / 1_000_000 + " ms: "
+                    + perSecond(p.events, replayNanos) + " events/s.");
+
+            Path snapshot = Paths.get(log + ".snap");
+            start = System.nanoTime();
+            saveSnapshot(p, snapshot.toString());
+            long saveNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            Projection loaded = loadSnapshot(snapshot.toString());
+            long loadNanos = System.nanoTime() - start;
+            System.out.println("Snapshot of " + loaded.vehicleCount() + " vehicles: saved in " + saveNanos / 1_000_000
+                    + " ms, loaded in " + loadNanos / 1_000_000 + " ms (" + Files.size(snapshot) / 1024 + " KB).");
+            Files.deleteIfExists(snapshot);
+        } catch (IOException e) {
+            System.err.println("Error running the event log benchmark: " + e.getMessage());
+        } finally {
+            if (log != null) {
+                try {
+                    Files.deleteIfExists(log);
+                    Files.deleteIfExists(Paths.get(log.toAbsolutePath() + ".lock"));
+                } catch (IOException e) {
+                    System.err.println("Error deleting " + log + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static long perSecond(long count, long nanos) {
+        return nanos == 0 ? count : count * 1_000_000_000L / nanos;
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+By Jennifer Vicentes
+Purpose: This class gives exclusive access to a shared file both between processes and between threads of the same process.
+A FileLock alone is not enough: it belongs to the whole JVM, so a second thread asking for the same lock gets an OverlappingFileLockException
+instead of waiting. Here every file has a ReentrantLock for the threads of this JVM and, while a thread holds it, a FileLock on a separate
+"<file>.lock" file for the other processes. The lock lives on a separate file because the data files are replaced with an atomic rename,
+and a lock taken on the old file would not protect the new one.
+*/
+package carrental;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class FileLocks {
+    // One lock per file (absolute normalized path, so "Central.txt" and "./Central.txt" share it) for the threads of this JVM
+    private static final ConcurrentHashMap<String, ReentrantLock> LOCAL_LOCKS = new ConcurrentHashMap<>();
+
+    private FileLocks() {
+    }
+
+    // Blocks until this thread has exclusive access to the file. Use it with try-with-resources.
+    public static Handle lock(String fileName) throws IOException {
+        String key = LotFile.pathOf(fileName);
+        ReentrantLock local = LOCAL_LOCKS.computeIfAbsent(key, k -> new ReentrantLock());
+        local.lock();
+        // Only the first (outer) acquisition of this thread takes the lock between processes
+        if (local.getHoldCount() > 1) {
+            return new Handle(local, null, null);
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(key + ".lock", "rw");
+            FileChannel channel = raf.getChannel();
+            FileLock fileLock = channel.lock();
+            return new Handle(local, raf, fileLock);
+        } catch (IOException | RuntimeException e) {
+            if (raf != null) raf.close();
+            local.unlock();
+            throw e;
+        }
+    }
+
+    // Releases the process lock (if this handle took it) and then the thread lock
+    public static class Handle implements AutoCloseable {
+        private final ReentrantLock local;
+        private final RandomAccessFile raf;
+        private final FileLock fileLock;
+
+        private Handle(ReentrantLock local, RandomAccessFile raf, FileLock fileLock) {
+            this.local = local;
+            this.raf = raf;
+            this.fileLock = fileLock;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (fileLock != null) fileLock.release();
+                if (raf != null) raf.close();
+            } catch (IOException e) {
+                System.err.println("Error releasing file lock: " + e.getMessage());
+            } finally {
+                local.unlock();
+            }
+        }
+    }
+}
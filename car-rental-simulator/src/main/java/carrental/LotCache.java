@@ -0,0 +1,107 @@
+/*
+By Jennifer Vicentes
+Purpose: This class keeps the lots a shop process uses in memory, so RENT and RETURN do not read and parse the whole lot file every time.
+Before using its copy of a lot, the cache compares the modification time and size of the file with the ones it saw when it read or
+wrote the lot, and then always the version in the trailer, which every write of every process increases (it only reads the last bytes
+of the file). The file key (inode) and the time are not enough on their own: the inode of a replaced lot is often given to the next
+temporary file, and two writes in the same clock tick can leave the same size. If anything changed the lot is read again.
+
+Callers must hold FileLocks.lock(lotFile) from read() until write(). The list returned by read() is the cached copy: callers change it
+and give it back to write(), which writes the lot and keeps the list as the new cached copy.
+*/
+package carrental;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class LotCache {
+    // Bigger lots are not kept in memory
+    public static final int MAX_CACHED_VEHICLES = 1_000_000;
+
+    // What the lot file looked like when the copy was made
+    private static class Entry {
+        final Object fileKey;
+        final long modified;
+        final long size;
+        final long version;
+        final List<Vehicle> vehicles;
+
+        Entry(BasicFileAttributes attrs, long version, List<Vehicle> vehicles) {
+            this.fileKey = attrs.fileKey();
+            this.modified = attrs.lastModifiedTime().toMillis();
+            this.size = attrs.size();
+            this.version = version;
+            this.vehicles = vehicles;
+        }
+    }
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private LotCache() {
+    }
+
+    // The vehicles of the lot, from memory when the file did not change
+    public static List<Vehicle> read(String fileName) {
+        String key = LotFile.pathOf(fileName);
+        BasicFileAttributes attrs = stat(fileName);
+        Entry e = entries.get(key);
+        if (attrs != null && e != null && isCurrent(e, attrs, fileName)) {
+            hits.incrementAndGet();
+            return e.vehicles;
+        }
+        misses.incrementAndGet();
+        entries.remove(key);
+        List<Vehicle> vehicles = LotFile.read(fileName);
+        if (attrs != null && vehicles.size() <= MAX_CACHED_VEHICLES) {
+            // The lock is held, so the file is still the one stat() saw
+            entries.put(key, new Entry(attrs, LotFile.readVersion(fileName), vehicles));
+        }
+        return vehicles;
+    }
+
+    // Writes the lot and keeps the list as the cached copy
+    public static void write(String fileName, List<Vehicle> vehicles) throws IOException {
+        String key = LotFile.pathOf(fileName);
+        // If the write fails the cache must not keep a list that is not on disk
+        Entry old = entries.remove(key);
+        long version = (old != null ? old.version : Math.max(0, LotFile.readVersion(fileName))) + 1;
+        LotFile.write(fileName, vehicles, version);
+        BasicFileAttributes attrs = stat(fileName);
+        if (attrs != null && vehicles.size() <= MAX_CACHED_VEHICLES) {
+            entries.put(key, new Entry(attrs, version, vehicles));
+        }
+    }
+
+    // "hits/reads" of this process, for reports
+    public static String stats() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return h + "/" + total + " reads from memory";
+    }
+
+    private static boolean isCurrent(Entry e, BasicFileAttributes attrs, String fileName) {
+        if (e.modified != attrs.lastModifiedTime().toMillis() || e.size != attrs.size()) {
+            return false;
+        }
+        if (e.fileKey != null && !Objects.equals(e.fileKey, attrs.fileKey())) {
+            return false;
+        }
+        return LotFile.readVersion(fileName) == e.version;
+    }
+
+    private static BasicFileAttributes stat(String fileName) {
+        try {
+            return Files.readAttributes(Paths.get(fileName), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+By Jennifer Vicentes
+Purpose: This class reads and writes lot files in a crash-safe way. It is shared by LotManager and RentalShop so both agree on the format.
+A lot file still has one vehicle per line (licensePlate,type,kilometers[,kmAtLastService]) and now ends with a trailer line "#END,<count>,<crc32>,<version>".
+The version goes up by one on every write, LotCache uses it to tell if its copy of a lot is still current.
+Writes never touch the live file: the lines are built in a buffer, written with one gathering write (vehicles + trailer) to "<lot>.tmp",
+forced to disk and then atomically renamed over the lot file. So a crash leaves either the old lot or the new lot, never half of it.
+The directory is forced after the rename too (like StateCommitter does), otherwise a power loss could undo the rename.
+Reads check the trailer. Files without trailer (written by older versions) are accepted as long as their last line is complete.
+A torn file (bad checksum or cut in the middle of a line) is recovered from a complete .tmp file when there is one, otherwise
+the complete lines are salvaged and a warning is printed. Callers must hold FileLocks.lock(lotFile) while reading and writing.
+*/
+package carrental;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+public class LotFile {
+    // Prefix of the last line of every lot file
+    static final String TRAILER = "#END";
+    // Size of the write buffer, big lots are written in chunks of this size
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Called with the absolute path of every lot file written in this JVM (RentalShop uses it to wake customers waiting for a vehicle)
+    private static final List<Consumer<String>> commitListeners = new CopyOnWriteArrayList<>();
+
+    // How a lot file looked like when it was read
+    public enum Status { VALID, LEGACY, TORN, MISSING }
+
+    private LotFile() {
+    }
+
+    // Reads all the vehicles of a lot, recovering torn files. Returns an empty list if the lot does not exist.
+    public static List<Vehicle> read(String fileName) {
+        List<Vehicle> vehicles = new ArrayList<>();
+        Status status = forEach(fileName, vehicles::add);
+        if (status == Status.TORN) {
+            // A complete .tmp file is the newest state (the crash happened right before the rename)
+            List<Vehicle> fromTmp = new ArrayList<>();
+            if (forEach(fileName + ".tmp", fromTmp::add) == Status.VALID) {
+                System.err.println("Lot file " + fileName + " was torn, recovered " + fromTmp.size() + " vehicles from " + fileName + ".tmp");
+                return fromTmp;
+            }
+            System.err.println("Lot file " + fileName + " was torn, salvaged " + vehicles.size() + " complete vehicle lines.");
+        }
+        return vehicles;
+    }
+
+    // Streams the vehicles of a lot file to the consumer without loading the whole file, and tells if the file was complete.
+    // Vehicles of a torn file are still delivered (every complete line), the caller decides what to do with them.
+    public static Status forEach(String fileName, Consumer<Vehicle> consumer) {
+        File file = new File(fileName);
+        if (!file.exists()) {
+            return Status.MISSING;
+        }
+        CRC32 crc = new CRC32();
+        int count = 0;
+        boolean trailerOk = false;
+        boolean trailerSeen = false;
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte b = buf[i];
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    // A complete line
+                    String text = line.toString(StandardCharsets.ISO_8859_1);
+                    line.reset();
+                    if (trailerSeen) {
+                        // Nothing may follow the trailer
+                        return Status.TORN;
+                    }
+                    if (text.startsWith(TRAILER)) {
+                        trailerSeen = true;
+                        trailerOk = checkTrailer(text, count, crc.getValue());
+                        continue;
+                    }
+                    crc.update(text.getBytes(StandardCharsets.ISO_8859_1));
+                    crc.update('\n');
+                    Vehicle v = parseLine(text.endsWith("\r") ? text.substring(0, text.length() - 1) : text);
+                    if (v != null) {
+                        count++;
+                        consumer.accept(v);
+                    } else if (!text.isBlank()) {
+                        System.err.println("Invalid line in lot file: " + text);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Error reading lot file (" + fileName + "): " + e.getMessage());
+            return Status.TORN;
+        }
+        if (line.size() > 0) {
+            // The file was cut in the middle of a line
+            return Status.TORN;
+        }
+        if (trailerSeen) {
+            return trailerOk ? Status.VALID : Status.TORN;
+        }
+        return Status.LEGACY;
+    }
+
+    // Writes the whole lot (see Writer)
+    public static void write(String fileName, List<Vehicle> vehicles) throws IOException {
+        write(fileName, vehicles, Math.max(0, readVersion(fileName)) + 1);
+    }
+
+    // Writes the whole lot with a known version
+    static void write(String fileName, List<Vehicle> vehicles, long version) throws IOException {
+        try (Writer writer = new Writer(fileName, version)) {
+            for (Vehicle v : vehicles) {
+                writer.add(v);
+            }
+            writer.commit();
+        }
+    }
+
+    // Line of a vehicle without the new line, also used by Archiver for the archived vehicles.
+    // The service kilometers are only written for vehicles that were serviced, so other lines keep the old format.
+    static String lineOf(Vehicle v) {
+        return v.getLicensePlate() + "," + v.getType() + "," + v.getKilometers()
+                + (v.getKmAtLastService() != 0 ? "," + v.getKmAtLastService() : "");
+    }
+
+    // Parses "licensePlate,type,kilometers[,kmAtLastService]", returns null if the line is not a vehicle
+    static Vehicle parseLine(String line) {
+        String[] parts = line.split(",");
+        if (parts.length < 3) return null;
+        try {
+            int kmAtLastService = parts.length > 3 ? Integer.parseInt(parts[3].trim()) : 0;
+            return new Vehicle(parts[0].trim(), parts[1].trim(), Integer.parseInt(parts[2].trim()), kmAtLastService);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Version written in the trailer of the lot ("#END,<count>,<crc>,<version>"), reading only the end of the file.
+    // 0 for lots without trailer or written before the version existed, -1 when the lot does not exist.
+    static long readVersion(String fileName) {
+        try (RandomAccessFile raf = new RandomAccessFile(fileName, "r")) {
+            long length = raf.length();
+            int n = (int) Math.min(length, 96);
+            byte[] tail = new byte[n];
+            raf.seek(length - n);
+            raf.readFully(tail);
+            String text = new String(tail, StandardCharsets.ISO_8859_1).trim();
+            String last = text.substring(text.lastIndexOf('\n') + 1);
+            if (!last.startsWith(TRAILER)) return 0;
+            String[] parts = last.split(",");
+            return parts.length > 3 ? Long.parseLong(parts[3].trim()) : 0;
+        } catch (FileNotFoundException e) {
+            return -1;
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // "#END,<count>,<crc32 in hex>[,<version>]"
+    private static boolean checkTrailer(String text, int count, long crc) {
+        String[] parts = text.split(",");
+        if (parts.length < 3) return false;
+        try {
+            return Integer.parseInt(parts[1].trim()) == count && Long.parseLong(parts[2].trim(), 16) == crc;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public static void addCommitListener(Consumer<String> listener) {
+        commitListeners.add(listener);
+    }
+
+    public static void removeCommitListener(Consumer<String> listener) {
+        commitListeners.remove(listener);
+    }
+
+    // Absolute path used to name a lot file to the listeners
+    static String pathOf(String fileName) {
+        return Paths.get(fileName).toAbsolutePath().normalize().toString();
+    }
+
+    // Streaming writer of a lot file. Vehicles are added one by one and buffered, nothing is visible in the lot file until commit().
+    // Closing without commit() throws the temporary file away.
+    public static class Writer implements Closeable {
+        private final Path target;
+        private final Path tmp;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final CRC32 crc = new CRC32();
+        private final long version;
+        private int count = 0;
+        private boolean committed = false;
+
+        // The new lot gets the version after the one of the current lot
+        public Writer(String fileName) throws IOException {
+            this(fileName, Math.max(0, readVersion(fileName)) + 1);
+        }
+
+        public Writer(String fileName, long version) throws IOException {
+            this.version = version;
+            this.target = Paths.get(fileName);
+            this.tmp = Paths.get(fileName + ".tmp");
+            this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        // Appends one vehicle line to the buffer, writing the buffer out when it is full
+        public void add(Vehicle v) throws IOException {
+            byte[] line = (lineOf(v) + "\n").getBytes(StandardCharsets.ISO_8859_1);
+            if (buffer.remaining() < line.length) {
+                drain();
+            }
+            buffer.put(line);
+            crc.update(line);
+            count++;
+        }
+
+        // Appends lines that are already encoded ("licensePlate,type,kilometers\n" each), lineCount is how many lines there are.
+        // Used by BulkVehicleGenerator, which encodes the lines of millions of vehicles in parallel.
+        public void addLines(byte[] lines, int offset, int length, int lineCount) throws IOException {
+            crc.update(lines, offset, length);
+            count += lineCount;
+            if (buffer.remaining() < length) {
+                drain();
+            }
+            if (buffer.remaining() >= length) {
+                buffer.put(lines, offset, length);
+            } else {
+                // Bigger than the buffer, written as it is
+                ByteBuffer direct = ByteBuffer.wrap(lines, offset, length);
+                while (direct.hasRemaining()) {
+                    channel.write(direct);
+                }
+            }
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        // Writes the last buffered lines together with the trailer, forces the file, renames it over the lot and forces the directory
+        public void commit() throws IOException {
+            ByteBuffer trailer = ByteBuffer.wrap((TRAILER + "," + count + "," + Long.toHexString(crc.getValue()) + "," + version + "\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            buffer.flip();
+            ByteBuffer[] parts = {buffer, trailer};
+            while (buffer.hasRemaining() || trailer.hasRemaining()) {
+                channel.write(parts);
+            }
+            channel.force(false);
+            channel.close();
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            StateCommitter.forceDirectory(target.toAbsolutePath().getParent());
+            committed = true;
+            if (!commitListeners.isEmpty()) {
+                String path = pathOf(target.toString());
+                for (Consumer<String> listener : commitListeners) {
+                    listener.accept(path);
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                channel.close();
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+}
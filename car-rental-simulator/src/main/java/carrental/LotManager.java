@@ -4,6 +4,8 @@ Purpose: This class manages a car rental lot, allowing the addition and removal
 It handles command line arguments to specify the lot name and the number of vehicles to add or remove.
 It also generates unique license plates for the vehicles, ensuring they follow Costa Rican regulations.
 It reads and writes vehicle data to a file, maintaining a registry of license plates to avoid duplicates.
+Adds of 100,000 vehicles or more (or any add with --bulk) are done by BulkVehicleGenerator, which picks the plates in parallel
+and streams the lot, so test lots of millions of vehicles can be seeded quickly.
 
 All the comments I wrote were put for me to keep track while developing, they are not AI generated. 
 */
@@ -15,69 +17,254 @@ import java.util.*;
 
 public class LotManager {
     // This keeps track of the license plates in the registry and ensures that no two vehicles have the same plate.
-    private static final String REGISTRY_FILE = "plates_registry.txt";
+    static final String REGISTRY_FILE = "plates_registry.txt";
 
     public static void main(String[] args) {
         // Parse command line arguments into a map. The map allows for easy access to the flags and their values.
         Map<String, String> flags = parseArgs(args);
+        // --seed makes the plates of the run repeatable. A recorded run (--record) always has a seed, so a replay issues the same plates.
+        Long seed = null;
+        if(flags.containsKey("--seed")){
+            seed = Long.parseLong(flags.get("--seed"));
+        } else if(flags.containsKey("--record")){
+            seed = new Random().nextLong();
+        }
+        // A manifest applies many adds, removes and transfers over many lots in one run, see LotManifest.
+        if(flags.containsKey("--manifest")){
+            if(flags.containsKey("--record")){
+                System.err.println("Warning: manifest runs are not recorded (the manifest file and the parallel plates cannot be replayed).");
+            }
+            LotManifest.run(flags.get("--manifest"));
+            return;
+        }
+        // --locate answers from the plate index, no lot file is read.
+        if(flags.containsKey("--locate")){
+            String plate = flags.get("--locate").trim().toUpperCase();
+            String[] location = new PlateIndex().locate(plate);
+            if(location == null){
+                System.out.println("Vehicle with license " + plate + " is not in the plate index.");
+            } else {
+                System.out.println("Vehicle with license " + plate + " is " + PlateIndex.describe(location) + ".");
+            }
+            return;
+        }
         // Check if the --lot-name flag is provided. If not, print an error message and exit.
         String lotName = flags.get("--lot-name");
         if(lotName == null || lotName.isEmpty()){
             System.err.println("Error: --lot-name must be provided.");
             System.exit(1);
         }
+        // --maintenance lists the vehicles of the lot that need a service, most worn first (read only, see MaintenanceQueue).
+        if(flags.containsKey("--maintenance")){
+            int interval = Integer.parseInt(flags.getOrDefault("--service-interval", String.valueOf(MaintenanceQueue.SERVICE_INTERVAL_KM)));
+            List<Vehicle> lotVehicles = readLotFile(lotName + ".txt");
+            List<Vehicle> due = MaintenanceQueue.of(lotVehicles, interval).due();
+            for(Vehicle v : due){
+                System.out.println(v + ", " + v.getKmSinceService() + " km since last service");
+            }
+            System.out.println("Lot " + lotName + ": " + due.size() + " of " + lotVehicles.size() + " vehicles due for service (every " + interval + " km).");
+            return;
+        }
+        // Process transfer flag, which moves vehicles to another lot keeping their plates and kilometers (see LotTransfer).
+        if(flags.containsKey("--transfer-to")){
+            String plates = flags.get("--transfer-plates");
+            if(plates != null){
+                Set<String> plateSet = new LinkedHashSet<>();
+                for(String p : plates.split(",")){
+                    if(!p.isBlank()) plateSet.add(p.trim().toUpperCase());
+                }
+                LotTransfer.run(lotName, flags.get("--transfer-to"), null, 0, plateSet);
+            } else if(flags.containsKey("--transfer-type")){
+                int n = Integer.parseInt(flags.getOrDefault("--transfer-count", "1"));
+                LotTransfer.run(lotName, flags.get("--transfer-to"), flags.get("--transfer-type").toUpperCase(), n, null);
+            } else {
+                System.err.println("Error: --transfer-to needs --transfer-plates or --transfer-type (and --transfer-count).");
+                System.exit(1);
+            }
+            record(flags, args, seed);
+            return;
+        }
         // Read the lot file. Each lot is represented by a text file where each line contains vehicle information.
+        // The lot stays locked until it is written back, so a shop cannot take a vehicle in the middle of the update.
         String lotFile = lotName + ".txt";
+        // The plate registry is locked after the lot (LotManifest uses the same order), it is loaded once and saved once.
+        try (FileLocks.Handle lock = FileLocks.lock(lotFile);
+             FileLocks.Handle registryLock = FileLocks.lock(REGISTRY_FILE)) {
+            // Big adds (or --bulk) use the parallel generator, which does not load the registry as a set of strings.
+            // It only adds vehicles, so it is not used when the run also removes, services or reindexes.
+            if(useBulk(flags)){
+                int sedans = Integer.parseInt(flags.getOrDefault("--add-sedan", "0"));
+                int suvs = Integer.parseInt(flags.getOrDefault("--add-suv", "0"));
+                int vans = Integer.parseInt(flags.getOrDefault("--add-van", "0"));
+                try {
+                    if(BulkVehicleGenerator.run(lotName, sedans, suvs, vans, seed == null ? new Random().nextLong() : seed)){
+                        record(flags, args, seed);
+                    }
+                } catch(IOException e){
+                    System.err.println("Error adding vehicles to lot " + lotName + ": " + e.getMessage());
+                }
+                return;
+            }
+            Set<String> registry = loadRegistry();
+            int before = registry.size();
+            updateLot(lotName, lotFile, flags, registry, Archiver.PlateArchive.load(), seed == null ? new Random() : new Random(seed));
+            // Only save the registry when new plates were issued
+            if(registry.size() != before){
+                saveRegistry(registry);
+            }
+            // Recorded while the lot is still locked, so the recording has the runs in the order they changed the lot
+            record(flags, args, seed);
+        } catch(IOException e){
+            System.err.println("Error locking lot file: " + e.getMessage());
+        }
+    }
+
+    // Applies the add and remove flags to one lot while its lock is held.
+    private static void updateLot(String lotName, String lotFile, Map<String, String> flags, Set<String> registry,
+                                  Archiver.PlateArchive archived, Random random) throws IOException{
         List<Vehicle> lotVehicles = readLotFile(lotFile);
+        // One random generator (given by main, seeded when --seed or --record is used) for all the plates of this run
+        // Changes for the plate index, written once at the end (null means the plate left the system)
+        PlateIndex plateIndex = new PlateIndex();
+        Map<String, String> indexChanges = new HashMap<>();
+        // Events for the event log of the network, appended once the lot is written
+        List<EventLog.Event> events = new ArrayList<>();
+        long now = System.currentTimeMillis();
         
         // Process add flags, which specify the number of vehicles to add to the lot.
         if(flags.containsKey("--add-sedan")){
             // Get the number of sedans to add from the command line arguments.
             int n = Integer.parseInt(flags.get("--add-sedan"));
             for(int i = 0; i < n; i++){
-                lotVehicles.add(new Vehicle(generateUniquePlate(), "SEDAN", 0));
+                String plate = generateUniquePlate(registry, archived, random);
+                Vehicle v = new Vehicle(plate, "SEDAN", 0);
+                lotVehicles.add(v);
+                indexChanges.put(plate, PlateIndex.entry(plate, PlateIndex.LOT, lotName));
+                events.add(EventLog.plateIssued(plate, now));
+                events.add(EventLog.added(v, lotName, now));
             }
         }
         // Process add flags for SUVs and vans in a similar manner.
         if(flags.containsKey("--add-suv")){
             int n = Integer.parseInt(flags.get("--add-suv"));
             for(int i = 0; i < n; i++){
-                lotVehicles.add(new Vehicle(generateUniquePlate(), "SUV", 0));
+                String plate = generateUniquePlate(registry, archived, random);
+                Vehicle v = new Vehicle(plate, "SUV", 0);
+                lotVehicles.add(v);
+                indexChanges.put(plate, PlateIndex.entry(plate, PlateIndex.LOT, lotName));
+                events.add(EventLog.plateIssued(plate, now));
+                events.add(EventLog.added(v, lotName, now));
             }
         }
         // Process add flags for vans.
         if(flags.containsKey("--add-van")){
             int n = Integer.parseInt(flags.get("--add-van"));
             for(int i = 0; i < n; i++){
-                lotVehicles.add(new Vehicle(generateUniquePlate(), "VAN", 0));
+                String plate = generateUniquePlate(registry, archived, random);
+                Vehicle v = new Vehicle(plate, "VAN", 0);
+                lotVehicles.add(v);
+                indexChanges.put(plate, PlateIndex.entry(plate, PlateIndex.LOT, lotName));
+                events.add(EventLog.plateIssued(plate, now));
+                events.add(EventLog.added(v, lotName, now));
             }
         }
         // Process remove flag, which specifies a vehicle to remove from the lot.
         if(flags.containsKey("--remove-vehicle")){
-            String plateToRemove = flags.get("--remove-vehicle");
-            // Check if the vehicle with the specified license plate exists in the lot.
-            // If it does, remove it from the lot. If not, print an error message.
-            // The removeIf method is used to remove the vehicle based on its license plate.
-            // The equalsIgnoreCase method is used to ensure that the comparison is case-insensitive.
-            // This is important because license plates can be entered in different cases (e.g., "ABC-123" vs "abc-123").
-            boolean removed = lotVehicles.removeIf(v -> v.getLicensePlate().equalsIgnoreCase(plateToRemove));
-            if(!removed){
-                System.out.println("Vehicle with license " + plateToRemove 
-                        + " not found in lot " + lotName 
-                        + " (possibly assigned to a shop or is in use).");
+            String plateToRemove = flags.get("--remove-vehicle").trim().toUpperCase();
+            // The plate index tells where the vehicle is, so a vehicle in another lot or in a shop is reported right away.
+            String[] location = plateIndex.locate(plateToRemove);
+            if(location != null && !PlateIndex.isInLot(location, lotName)){
+                System.out.println("Vehicle with license " + plateToRemove
+                        + " not found in lot " + lotName + ", it is " + PlateIndex.describe(location) + ".");
             } else {
-                // If the vehicle was successfully removed, print a success message.
-                System.out.println("Vehicle with license " + plateToRemove + " successfully removed from lot " + lotName + ".");
+                // Check if the vehicle with the specified license plate exists in the lot.
+                // If it does, remove it from the lot. If not, print an error message.
+                // The iterator removes the vehicle based on its license plate, the removed vehicle is kept for the event log.
+                // The equalsIgnoreCase method is used to ensure that the comparison is case-insensitive.
+                // This is important because license plates can be entered in different cases (e.g., "ABC-123" vs "abc-123").
+                boolean removed = false;
+                for(Iterator<Vehicle> iter = lotVehicles.iterator(); iter.hasNext(); ){
+                    Vehicle v = iter.next();
+                    if(v.getLicensePlate().equalsIgnoreCase(plateToRemove)){
+                        iter.remove();
+                        events.add(EventLog.removed(v, lotName, now));
+                        removed = true;
+                    }
+                }
+                if(!removed){
+                    System.out.println("Vehicle with license " + plateToRemove 
+                            + " not found in lot " + lotName 
+                            + " (possibly assigned to a shop or is in use).");
+                } else {
+                    // If the vehicle was successfully removed, print a success message.
+                    indexChanges.put(plateToRemove, null);
+                    System.out.println("Vehicle with license " + plateToRemove + " successfully removed from lot " + lotName + ".");
+                }
+            }
+        }
+        // Process service flag, which records the service of the listed vehicles of the lot (comma separated plates).
+        if(flags.containsKey("--service")){
+            Set<String> plates = new HashSet<>();
+            for(String p : flags.get("--service").split(",")){
+                if(!p.isBlank()) plates.add(p.trim().toUpperCase());
+            }
+            int serviced = 0;
+            for(Vehicle v : lotVehicles){
+                if(plates.remove(v.getLicensePlate())){
+                    v.service();
+                    serviced++;
+                }
+            }
+            for(String p : plates){
+                System.out.println("Vehicle with license " + p + " not found in lot " + lotName + ", it was not serviced.");
+            }
+            System.out.println("Serviced " + serviced + " vehicles in lot " + lotName + ".");
+        }
+        // Process reindex flag, which puts every vehicle of the lot in the plate index (for lots created before the index existed).
+        if(flags.containsKey("--reindex")){
+            for(Vehicle v : lotVehicles){
+                indexChanges.put(v.getLicensePlate(), PlateIndex.entry(v.getLicensePlate(), PlateIndex.LOT, lotName));
             }
         }
         
         // Write the updated list of vehicles back to the lot file.
         // This ensures that the lot file is always up-to-date with the current state of the vehicles in the lot.
         writeLotFile(lotFile, lotVehicles);
+        if(!indexChanges.isEmpty()){
+            plateIndex.recordAll(indexChanges);
+        }
+        EventLog.append(EventLog.FILE, events);
         // Print a success message indicating that the lot has been updated successfully.
         System.out.println("Lot " + lotName + " updated successfully. Total vehicles: " + lotVehicles.size());
     }
     
+    // True when the run only adds vehicles and adds enough of them (or --bulk is given) to use BulkVehicleGenerator
+    private static boolean useBulk(Map<String, String> flags){
+        if(flags.containsKey("--remove-vehicle") || flags.containsKey("--service") || flags.containsKey("--reindex")){
+            if(flags.containsKey("--bulk")){
+                System.err.println("Warning: --bulk only adds vehicles, the run is done without it.");
+            }
+            return false;
+        }
+        long total = 0;
+        for(String flag : new String[]{"--add-sedan", "--add-suv", "--add-van"}){
+            total += Long.parseLong(flags.getOrDefault(flag, "0"));
+        }
+        return total > 0 && (flags.containsKey("--bulk") || total >= BulkVehicleGenerator.BULK_THRESHOLD);
+    }
+
+    // Writes the run to the recording given with --record, with the arguments that change the lot and the seed of the plates
+    private static void record(Map<String, String> flags, String[] args, Long seed){
+        if(!flags.containsKey("--record")) return;
+        List<String> recorded = new ArrayList<>();
+        for(String arg : args){
+            if(!arg.startsWith("--record") && !arg.startsWith("--seed")){
+                recorded.add(arg);
+            }
+        }
+        new CommandRecorder(flags.get("--record")).recordLot(System.currentTimeMillis(), seed, recorded);
+    }
+    
     // Parse command line arguments into a map.
     private static Map<String, String> parseArgs(String[] args){
         Map<String, String> flags = new HashMap<>();
@@ -102,61 +289,31 @@ public class LotManager {
         return flags;
     }
     
-    // Reads a lot file where each line is: licensePlate,type,kilometers
+    // Reads a lot file where each line is: licensePlate,type,kilometers[,kmAtLastService]
     private static List<Vehicle> readLotFile(String fileName){
-        // This method reads the lot file and returns a list of vehicles.
-        List<Vehicle> vehicles = new ArrayList<>();
-        // The file is read line by line, and each line is split into parts based on the comma delimiter.
-        File file = new File(fileName);
-        if(!file.exists()){
-            // If the file does not exist, it returns an empty list of vehicles.
-            return vehicles;
-        }
-        // The BufferedReader is used to read the file efficiently. BufferedReader reads text from a character-input stream, buffering characters to provide efficient reading of characters, arrays, and lines.
-        // Each line is split into parts: license plate, type, and kilometers.
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            // Read each line of the file.
-            String line;
-            while((line = br.readLine()) != null){
-                String[] parts = line.split(",");
-                // Check if the line has at least 3 parts (license plate, type, kilometers).
-                if(parts.length >= 3){
-                    String plate = parts[0].trim();
-                    String type = parts[1].trim();
-                    int km = Integer.parseInt(parts[2].trim());
-                    vehicles.add(new Vehicle(plate, type, km));
-                } else{
-                    // If the line does not have enough parts, it is ignored.
-                    // This is important to ensure that the program does not crash due to unexpected file format.
-                    System.err.println("Invalid line in lot file: " + line);
-                }
-                // If the line does not have enough parts, it is ignored.
-            }
-        } catch(IOException e){
-            System.err.println("Error reading lot file: " + e.getMessage());
-        }
-        return vehicles;
+        // LotFile checks the trailer of the file and recovers it if a previous write was interrupted.
+        // If the file does not exist, it returns an empty list of vehicles.
+        return LotFile.read(fileName);
     }
     
     // Writes the list of vehicles to the lot file.
     private static void writeLotFile(String fileName, List<Vehicle> vehicles){
-        // This method writes the list of vehicles to the lot file. PrintWriter is used to write formatted text to a file.
-        // It provides methods to write strings, characters, and other data types.
-        try (PrintWriter pw = new PrintWriter(new FileWriter(fileName))) {
-            for(Vehicle v : vehicles){
-                pw.println(v.getLicensePlate() + "," + v.getType() + "," + v.getKilometers());
-            }
+        // LotFile builds the whole lot in one buffer, writes it to a temporary file and renames it over the lot,
+        // so a crash in the middle never leaves a truncated lot.
+        try {
+            LotFile.write(fileName, vehicles);
         } catch(IOException e){
             System.err.println("Error writing lot file: " + e.getMessage());
         }
     }
     
     // Generates a unique license plate following Costa Rican rules (3 letters-dash-3 digits)
-    private static String generateUniquePlate(){
-        Set<String> registry = loadRegistry();
+    // The registry is loaded once by the caller and saved once at the end, instead of once per plate.
+    // It can be a concurrent set: add() both checks and reserves the plate, so parallel callers never get the same plate.
+    static String generateUniquePlate(Set<String> registry, Archiver.PlateArchive archived, Random random) throws IOException{
         // This method generates a unique license plate. It uses a random number generator to create a plate in the format "XXX-000".
-        Random random = new Random();
         // The license plate is generated in a loop until a unique one is found.
+        // Plates moved to the archive (see Archiver) are not in the registry anymore but were issued, they are checked too.
         String plate;
         do {
             // Generate 3 random letters (A-Z).
@@ -175,17 +332,13 @@ public class LotManager {
             }
             // Convert the StringBuilder to a string.
             plate = sb.toString();
-            // Check if the generated plate is already in the registry.
-        } while(registry.contains(plate));
-        // If the plate is unique, it is added to the registry and saved to the file.
-        registry.add(plate);
-        // The registry is saved to the file to ensure that the unique plate is not generated again in the future.
-        saveRegistry(registry);
+            // Check if the generated plate is already in the registry. If it is unique, add() puts it in the registry.
+        } while(archived.contains(plate) || !registry.add(plate));
         return plate;
     }
     
     // Loads the global registry of license plates.
-    private static Set<String> loadRegistry(){
+    static Set<String> loadRegistry(){
         // This method loads the registry of license plates from a file. The registry is stored in a text file where each line contains a unique license plate.
         Set<String> registry = new HashSet<>();
         // The registry file is read line by line, and each line is added to the set of license plates.
@@ -206,9 +359,9 @@ public class LotManager {
     }
     
     // Saves the registry of license plates.
-    private static void saveRegistry(Set<String> registry){
+    static void saveRegistry(Set<String> registry){
         // This method saves the registry of license plates to a file. The registry is stored in a text file where each line contains a unique license plate.
-        try (PrintWriter pw = new PrintWriter(new FileWriter(REGISTRY_FILE))) {
+        try (PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(REGISTRY_FILE)))) {
             // The registry is written to the file line by line.
             for(String plate : registry){
                 // Each license plate is written to the file.
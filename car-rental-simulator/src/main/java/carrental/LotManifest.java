@@ -0,0 +1,239 @@
+/*
+By Jennifer Vicentes
+Purpose: This class applies a manifest to many lots in one LotManager run (java carrental.LotManager --manifest=<file>, or --manifest=- for stdin).
+Before, restocking 30 lots meant 30 JVM startups and 30 loads of the plate registry. Now the registry is loaded once, the lots are read
+and written in parallel and every lot file is written exactly once, no matter how many lines of the manifest touch it.
+
+Manifest format, one operation per line (blank lines and lines starting with # are ignored):
+    ADD <lot> <SEDAN|SUV|VAN> <count>
+    REMOVE <lot> <plate>
+    TRANSFER <fromLot> <toLot> <plate>
+Adds and removes of each lot are applied in manifest order, then transfers are applied in manifest order.
+All the lots of the manifest are locked in alphabetical order of their normalized paths, the same order as LotTransfer (so two
+manifests or transfers can never deadlock), and then the plate registry. A manifest must name each lot with one spelling.
+*/
+package carrental;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class LotManifest {
+    // One line of the manifest
+    private static class Operation {
+        final int lineNumber;
+        final String action;
+        final String lot;
+        final String[] args;
+
+        Operation(int lineNumber, String action, String lot, String[] args) {
+            this.lineNumber = lineNumber;
+            this.action = action;
+            this.lot = lot;
+            this.args = args;
+        }
+    }
+
+    private LotManifest() {
+    }
+
+    // Reads the manifest from a file (or stdin when the name is "-") and applies it
+    public static void run(String source) {
+        List<Operation> operations;
+        try {
+            operations = parse(source.equals("-") || source.isEmpty()
+                    ? new BufferedReader(new InputStreamReader(System.in))
+                    : new BufferedReader(new FileReader(source)));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error reading manifest: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        apply(operations);
+    }
+
+    // Parses and validates every line before anything is changed
+    private static List<Operation> parse(BufferedReader reader) throws IOException {
+        List<Operation> operations = new ArrayList<>();
+        // Normalized path of every lot and the name used for it, "Central" and "./Central" would be loaded and written twice
+        Map<String, String> spellings = new HashMap<>();
+        try (BufferedReader br = reader) {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] tokens = line.split("\\s+");
+                String action = tokens[0].toUpperCase();
+                int expected = action.equals("ADD") || action.equals("TRANSFER") ? 4 : action.equals("REMOVE") ? 3 : -1;
+                if (expected < 0 || tokens.length != expected) {
+                    throw new IllegalArgumentException("line " + lineNumber + ": expected ADD <lot> <type> <count>, REMOVE <lot> <plate> or TRANSFER <from> <to> <plate>");
+                }
+                String[] args = Arrays.copyOfRange(tokens, 2, tokens.length);
+                if (action.equals("ADD")) {
+                    args[0] = args[0].toUpperCase();
+                    if (!Arrays.asList("SEDAN", "SUV", "VAN").contains(args[0])) {
+                        throw new IllegalArgumentException("line " + lineNumber + ": unknown vehicle type " + args[0]);
+                    }
+                    Integer.parseInt(args[1]);
+                }
+                checkSpelling(spellings, tokens[1], lineNumber);
+                if (action.equals("TRANSFER")) checkSpelling(spellings, args[0], lineNumber);
+                operations.add(new Operation(lineNumber, action, tokens[1], args));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid count: " + e.getMessage());
+        }
+        return operations;
+    }
+
+    private static void checkSpelling(Map<String, String> spellings, String lot, int lineNumber) {
+        String other = spellings.putIfAbsent(LotFile.pathOf(lot + ".txt"), lot);
+        if (other != null && !other.equals(lot)) {
+            throw new IllegalArgumentException("line " + lineNumber + ": lot " + lot + " is the same file as lot " + other + ", use one name");
+        }
+    }
+
+    // Locks every lot, loads them in parallel, applies the operations and writes every changed lot once
+    private static void apply(List<Operation> operations) {
+        // Every lot named in the manifest, sorted so all processes lock them in the same order
+        TreeSet<String> lotNames = new TreeSet<>(Comparator.comparing((String lot) -> LotFile.pathOf(lot + ".txt")));
+        for (Operation op : operations) {
+            lotNames.add(op.lot);
+            if (op.action.equals("TRANSFER")) lotNames.add(op.args[0]);
+        }
+        List<FileLocks.Handle> locks = new ArrayList<>();
+        try {
+            for (String lot : lotNames) {
+                locks.add(FileLocks.lock(lot + ".txt"));
+            }
+            locks.add(FileLocks.lock(LotManager.REGISTRY_FILE));
+
+            // The registry is loaded once for the whole manifest. It is a concurrent set because the lots add plates in parallel.
+            Set<String> registry = ConcurrentHashMap.newKeySet();
+            registry.addAll(LotManager.loadRegistry());
+            int registrySize = registry.size();
+            Archiver.PlateArchive archived = Archiver.PlateArchive.load();
+
+            // Read all the lots in parallel
+            Map<String, List<Vehicle>> lots = new ConcurrentHashMap<>();
+            lotNames.parallelStream().forEach(lot -> lots.put(lot, LotFile.read(lot + ".txt")));
+
+            // Adds and removes only touch their own lot, so every lot is processed in parallel (in manifest order inside the lot)
+            Map<String, List<Operation>> byLot = new TreeMap<>();
+            for (Operation op : operations) {
+                if (!op.action.equals("TRANSFER")) {
+                    byLot.computeIfAbsent(op.lot, k -> new ArrayList<>()).add(op);
+                }
+            }
+            Map<String, String> reports = new ConcurrentHashMap<>();
+            // Changes for the plate index, written once at the end. ConcurrentHashMap cannot hold null values,
+            // so a plate that left the system is marked with an empty string.
+            Map<String, String> indexChanges = new ConcurrentHashMap<>();
+            // Events for the event log, appended once every lot is written (the lots add them in parallel)
+            Queue<EventLog.Event> events = new ConcurrentLinkedQueue<>();
+            byLot.entrySet().parallelStream().forEach(e ->
+                    reports.put(e.getKey(), applyToLot(e.getKey(), lots.get(e.getKey()), e.getValue(), registry, archived, indexChanges, events)));
+            for (String report : new TreeMap<>(reports).values()) {
+                System.out.print(report);
+            }
+
+            // Transfers move records between lots already in memory
+            for (Operation op : operations) {
+                if (op.action.equals("TRANSFER")) {
+                    transfer(op, lots.get(op.lot), lots.get(op.args[0]), indexChanges, events);
+                }
+            }
+
+            // Write every lot exactly once, in parallel
+            lotNames.parallelStream().forEach(lot -> {
+                try {
+                    LotFile.write(lot + ".txt", lots.get(lot));
+                } catch (IOException e) {
+                    System.err.println("Error writing lot file (" + lot + ".txt): " + e.getMessage());
+                }
+            });
+            if (registry.size() != registrySize) {
+                LotManager.saveRegistry(registry);
+            }
+            Map<String, String> index = new HashMap<>();
+            indexChanges.forEach((plate, line) -> index.put(plate, line.isEmpty() ? null : line));
+            new PlateIndex().recordAll(index);
+            EventLog.append(EventLog.FILE, new ArrayList<>(events));
+            for (String lot : lotNames) {
+                System.out.println("Lot " + lot + " updated successfully. Total vehicles: " + lots.get(lot).size());
+            }
+        } catch (IOException e) {
+            System.err.println("Error locking lots: " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            // The plate archive could not be read while issuing plates, nothing was written
+            System.err.println("Error reading plate archive: " + e.getCause().getMessage());
+        } finally {
+            // Release in reverse order
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).close();
+            }
+        }
+    }
+
+    // Applies the adds and removes of one lot and returns what happened, so the output of the parallel lots is not mixed
+    private static String applyToLot(String lot, List<Vehicle> vehicles, List<Operation> operations, Set<String> registry,
+                                     Archiver.PlateArchive archived, Map<String, String> indexChanges, Queue<EventLog.Event> events) {
+        StringBuilder report = new StringBuilder();
+        Random random = ThreadLocalRandom.current();
+        long now = System.currentTimeMillis();
+        for (Operation op : operations) {
+            if (op.action.equals("ADD")) {
+                int n = Integer.parseInt(op.args[1]);
+                for (int i = 0; i < n; i++) {
+                    String plate;
+                    try {
+                        plate = LotManager.generateUniquePlate(registry, archived, random);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    Vehicle v = new Vehicle(plate, op.args[0], 0);
+                    vehicles.add(v);
+                    indexChanges.put(plate, PlateIndex.entry(plate, PlateIndex.LOT, op.lot));
+                    events.add(EventLog.plateIssued(plate, now));
+                    events.add(EventLog.added(v, lot, now));
+                }
+                report.append("Added ").append(n).append(' ').append(op.args[0]).append(" to lot ").append(op.lot).append(".\n");
+            } else {
+                String plate = op.args[0].toUpperCase();
+                boolean removed = vehicles.removeIf(v -> {
+                    if (!v.getLicensePlate().equalsIgnoreCase(plate)) return false;
+                    events.add(EventLog.removed(v, lot, now));
+                    return true;
+                });
+                if (removed) indexChanges.put(plate, "");
+                report.append(removed
+                        ? "Vehicle with license " + plate + " successfully removed from lot " + op.lot + ".\n"
+                        : "Line " + op.lineNumber + ": vehicle with license " + plate + " not found in lot " + op.lot + ".\n");
+            }
+        }
+        return report.toString();
+    }
+
+    // Moves one vehicle (keeping its plate and kilometers) from one lot to another
+    private static void transfer(Operation op, List<Vehicle> from, List<Vehicle> to, Map<String, String> indexChanges,
+                                 Queue<EventLog.Event> events) {
+        String plate = op.args[1];
+        Iterator<Vehicle> iter = from.iterator();
+        while (iter.hasNext()) {
+            Vehicle v = iter.next();
+            if (v.getLicensePlate().equalsIgnoreCase(plate)) {
+                iter.remove();
+                to.add(v);
+                indexChanges.put(v.getLicensePlate(), PlateIndex.entry(v.getLicensePlate(), PlateIndex.LOT, op.args[0]));
+                events.add(EventLog.movedToLot(v, op.lot, op.args[0], System.currentTimeMillis()));
+                System.out.println("Vehicle with license " + v.getLicensePlate() + " transferred from lot " + op.lot + " to lot " + op.args[0] + ".");
+                return;
+            }
+        }
+        System.out.println("Line " + op.lineNumber + ": vehicle with license " + plate + " not found in lot " + op.lot + ", not transferred.");
+    }
+}
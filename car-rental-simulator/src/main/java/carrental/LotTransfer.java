@@ -0,0 +1,123 @@
+/*
+By Jennifer Vicentes
+Purpose: This class moves vehicles from one lot to another keeping their plates and kilometers (before, the only way was to remove them
+and add them again, which issued new plates and lost the kilometers). It is used by:
+    java carrental.LotManager --lot-name=<from> --transfer-to=<to> --transfer-type=SEDAN --transfer-count=100
+    java carrental.LotManager --lot-name=<from> --transfer-to=<to> --transfer-plates=ABC-123,XYZ-999
+Both lots are locked in alphabetical order of their normalized paths (like LotManifest), so two transfers in opposite directions can
+never deadlock. The lots are compared by that path too, "Central" and "./Central" are the same lot.
+The records are streamed: the destination is copied to its temporary file, then the source is read once and every vehicle goes either
+to the new source file or to the end of the destination file. Neither lot is loaded in memory, so very large lots can be rebalanced.
+The destination is committed before the source: if the process dies in between, the moved vehicles are in both lots (which can be
+detected and fixed) instead of in none.
+The plate index and the event log only change after both lots are committed, so an aborted transfer never points at a lot the vehicle
+did not reach nor logs a move that did not happen.
+The moved vehicles are then read back from the end of the committed destination instead of being kept in memory.
+*/
+package carrental;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+public class LotTransfer {
+    // Plate index updates and events are written in batches (after the commit) so a huge transfer does not keep every plate in memory
+    private static final int INDEX_BATCH = 100_000;
+
+    private LotTransfer() {
+    }
+
+    // Moves up to count vehicles of a type (or the given plates when plates is not null) from one lot to another
+    public static void run(String fromLot, String toLot, String type, int count, Set<String> plates) {
+        String fromFile = fromLot + ".txt";
+        String toFile = toLot + ".txt";
+        if (LotFile.pathOf(fromFile).equals(LotFile.pathOf(toFile))) {
+            System.err.println("Error: the source and destination lots must be different.");
+            return;
+        }
+        // Always lock in the same order
+        boolean fromFirst = LotFile.pathOf(fromFile).compareTo(LotFile.pathOf(toFile)) < 0;
+        try (FileLocks.Handle first = FileLocks.lock(fromFirst ? fromFile : toFile);
+             FileLocks.Handle second = FileLocks.lock(fromFirst ? toFile : fromFile);
+             LotFile.Writer fromWriter = new LotFile.Writer(fromFile);
+             LotFile.Writer toWriter = new LotFile.Writer(toFile)) {
+            int[] moved = {0};
+            // Vehicles the destination had before the transfer, the moved ones come after them
+            int kept;
+            try {
+                // 1) Copy the destination as it is
+                LotFile.Status toStatus = LotFile.forEach(toFile, v -> add(toWriter, v));
+                if (toStatus == LotFile.Status.TORN) {
+                    System.err.println("Error: lot file " + toFile + " is torn, run LotManager on it to recover it first.");
+                    return;
+                }
+                kept = toWriter.getCount();
+                // 2) Split the source between the new source and the end of the destination
+                LotFile.Status fromStatus = LotFile.forEach(fromFile, v -> {
+                    boolean selected = plates != null
+                            ? plates.remove(v.getLicensePlate().toUpperCase())
+                            : moved[0] < count && v.getType().equalsIgnoreCase(type);
+                    if (selected) {
+                        add(toWriter, v);
+                        moved[0]++;
+                    } else {
+                        add(fromWriter, v);
+                    }
+                });
+                if (fromStatus == LotFile.Status.TORN) {
+                    System.err.println("Error: lot file " + fromFile + " is torn, run LotManager on it to recover it first.");
+                    return;
+                }
+                if (fromStatus == LotFile.Status.MISSING) {
+                    System.err.println("Error: lot file " + fromFile + " does not exist.");
+                    return;
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            // 3) Destination first, then source
+            toWriter.commit();
+            fromWriter.commit();
+            recordMoved(fromLot, toFile, toLot, kept);
+
+            if (plates != null && !plates.isEmpty()) {
+                System.out.println("Vehicles not found in lot " + fromLot + ": " + String.join(", ", plates));
+            }
+            System.out.println("Transferred " + moved[0] + " vehicle(s) from lot " + fromLot + " to lot " + toLot + ". "
+                    + "Total vehicles: " + fromLot + " " + fromWriter.getCount() + ", " + toLot + " " + toWriter.getCount() + ".");
+        } catch (IOException e) {
+            System.err.println("Error transferring vehicles: " + e.getMessage());
+        }
+    }
+
+    // 4) Plate index and events of the moved vehicles, read back from the end of the committed destination (still locked)
+    private static void recordMoved(String fromLot, String toFile, String toLot, int kept) {
+        PlateIndex plateIndex = new PlateIndex();
+        Map<String, String> indexChanges = new HashMap<>();
+        List<EventLog.Event> events = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        int[] seen = {0};
+        LotFile.forEach(toFile, v -> {
+            if (seen[0]++ < kept) return;
+            indexChanges.put(v.getLicensePlate(), PlateIndex.entry(v.getLicensePlate(), PlateIndex.LOT, toLot));
+            events.add(EventLog.movedToLot(v, fromLot, toLot, now));
+            if (indexChanges.size() >= INDEX_BATCH) {
+                plateIndex.recordAll(indexChanges);
+                indexChanges.clear();
+                EventLog.append(EventLog.FILE, events);
+                events.clear();
+            }
+        });
+        plateIndex.recordAll(indexChanges);
+        EventLog.append(EventLog.FILE, events);
+    }
+
+    // The consumers of LotFile.forEach cannot throw IOException
+    private static void add(LotFile.Writer writer, Vehicle v) {
+        try {
+            writer.add(v);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
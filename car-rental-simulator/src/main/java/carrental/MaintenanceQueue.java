@@ -0,0 +1,113 @@
+/*
+By Jennifer Vicentes
+Purpose: This class keeps the vehicles of a shop or a lot ordered by kilometers driven since their last service.
+There is one sorted set per vehicle type, so the most worn vehicle (first to send to service or back to a lot) and the least worn
+vehicle of a type (best one to rent) are found in O(log n), and adding, removing or servicing a vehicle is also O(log n).
+The shop keeps one for its inventory, LotManager builds one for a lot with --maintenance.
+
+A vehicle's kilometers must not change while it is inside the queue (the sets would lose it), so service() removes it, changes it and
+adds it back. Rented vehicles are not in the shop queue, they only change kilometers when they are returned.
+*/
+package carrental;
+
+import java.util.*;
+
+public class MaintenanceQueue {
+    // Kilometers between services
+    public static final int SERVICE_INTERVAL_KM = 10000;
+
+    // Most worn first, the plate breaks ties so two vehicles with the same kilometers are both kept
+    private static final Comparator<Vehicle> MOST_WORN_FIRST =
+            Comparator.comparingInt(Vehicle::getKmSinceService).reversed().thenComparing(Vehicle::getLicensePlate);
+
+    private final Map<String, TreeSet<Vehicle>> byType = new HashMap<>();
+    private final int serviceIntervalKm;
+    private int size = 0;
+
+    public MaintenanceQueue() {
+        this(SERVICE_INTERVAL_KM);
+    }
+
+    public MaintenanceQueue(int serviceIntervalKm) {
+        this.serviceIntervalKm = serviceIntervalKm;
+    }
+
+    // Builds a queue with all the given vehicles
+    public static MaintenanceQueue of(Collection<Vehicle> vehicles, int serviceIntervalKm) {
+        MaintenanceQueue queue = new MaintenanceQueue(serviceIntervalKm);
+        for (Vehicle v : vehicles) {
+            queue.add(v);
+        }
+        return queue;
+    }
+
+    public int getServiceIntervalKm() {
+        return serviceIntervalKm;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(Vehicle v) {
+        if (byType.computeIfAbsent(v.getType().toUpperCase(), k -> new TreeSet<>(MOST_WORN_FIRST)).add(v)) {
+            size++;
+        }
+    }
+
+    public boolean remove(Vehicle v) {
+        TreeSet<Vehicle> set = byType.get(v.getType().toUpperCase());
+        if (set != null && set.remove(v)) {
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    // Number of vehicles of the type in the queue
+    public int countOf(String type) {
+        TreeSet<Vehicle> set = byType.get(type.toUpperCase());
+        return set == null ? 0 : set.size();
+    }
+
+    // The vehicle of the type with the fewest kilometers since its service, or null if there is none
+    public Vehicle leastWorn(String type) {
+        TreeSet<Vehicle> set = byType.get(type.toUpperCase());
+        return set == null || set.isEmpty() ? null : set.last();
+    }
+
+    // The vehicle of any type with the most kilometers since its service, or null if the queue is empty
+    public Vehicle mostWorn() {
+        Vehicle worst = null;
+        for (TreeSet<Vehicle> set : byType.values()) {
+            if (!set.isEmpty() && (worst == null || MOST_WORN_FIRST.compare(set.first(), worst) < 0)) {
+                worst = set.first();
+            }
+        }
+        return worst;
+    }
+
+    // Vehicles that reached the service interval, most worn first. Only the due part of every set is visited.
+    public List<Vehicle> due() {
+        // A search key that sorts after every vehicle with exactly serviceIntervalKm since its service
+        Vehicle key = new Vehicle("\uffff", "", serviceIntervalKm);
+        List<Vehicle> due = new ArrayList<>();
+        for (TreeSet<Vehicle> set : byType.values()) {
+            due.addAll(set.headSet(key, false));
+        }
+        due.sort(MOST_WORN_FIRST);
+        return due;
+    }
+
+    // Services a vehicle of the queue, moving it to its new position
+    public void service(Vehicle v) {
+        boolean inQueue = remove(v);
+        v.service();
+        if (inQueue) add(v);
+    }
+
+    // True when driving from kmBefore to kmAfter (kilometers since service) reached the service interval
+    public boolean crossedInterval(int kmBefore, int kmAfter) {
+        return kmBefore < serviceIntervalKm && kmAfter >= serviceIntervalKm;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+By Jennifer Vicentes
+Purpose: This class formats amounts of money stored as a whole number of cents (long), like 4500 for $45.00.
+Amounts are kept in cents so totals stay exact no matter how many transactions are added (doubles slowly drift: 0.1 + 0.2 != 0.3).
+Formatting is done by hand with a StringBuilder because String.format parses its pattern every time and is slow
+when a report prints millions of lines.
+*/
+package carrental;
+
+public class Money {
+    private Money() {
+    }
+
+    // Returns the amount as "1234.56" (no currency sign)
+    public static String format(long cents) {
+        return appendTo(new StringBuilder(16), cents).toString();
+    }
+
+    // Appends the amount as "1234.56" to the builder and returns the builder
+    public static StringBuilder appendTo(StringBuilder sb, long cents) {
+        if (cents < 0) {
+            sb.append('-');
+            // Long.MIN_VALUE cannot be negated, but no shop will ever earn that much
+            cents = -cents;
+        }
+        long fraction = cents % 100;
+        sb.append(cents / 100).append('.');
+        if (fraction < 10) sb.append('0');
+        return sb.append(fraction);
+    }
+
+    // Converts an amount in dollars (used by old snapshots that stored doubles) to cents, rounding to the closest cent
+    public static long fromDollars(double dollars) {
+        return Math.round(dollars * 100);
+    }
+}
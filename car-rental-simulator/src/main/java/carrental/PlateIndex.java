@@ -0,0 +1,161 @@
+/*
+By Jennifer Vicentes
+Purpose: This class keeps a persistent index that tells where every vehicle is: in a lot, in the inventory of a shop, rented out by a shop
+or archived with its lot (see Archiver).
+It is stored as a ShardedRegistry ("plate_index/plates_index.<n>.txt", lines "plate,LOT|SHOP|RENTED|ARCHIVED,<name>"), so finding a plate
+only reads the small shard that owns it instead of scanning every lot file. LotManager and RentalShop update it every time they move a vehicle.
+A single move (every RENT and RETURN) is only appended to its shard, the newest line of a plate is the one that counts. Rewriting a
+shard of 40k lines on every command was most of the cost of a RENT on a big network. After COMPACT_EVERY appends to a shard, this process
+rewrites it once keeping only the newest line of every plate. Bulk changes (recordAll) still rewrite each touched shard once.
+Lots are stored by their absolute path (lotId): a shop started with --lots=tests/lot/Central and LotManager --lot-name=Central run
+from another directory name the same lot in different ways, and they must agree on whether a vehicle is in it.
+The shards are in their own directory so they are not taken for lots (every "*.txt" of the working directory is a lot for CarRentalUI).
+An index written before, with the shards in the working directory, is moved into the directory the first time it is opened (like the
+ShardedRegistry migration, that must happen while no shop is running).
+The index only gives directions: if it cannot be written, the lots and shops still work and an error is printed.
+*/
+package carrental;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Stream;
+
+public class PlateIndex {
+    public static final String LOT = "LOT";
+    public static final String SHOP = "SHOP";
+    public static final String RENTED = "RENTED";
+    public static final String ARCHIVED = "ARCHIVED";
+
+    // Many shards: every shard is read and rewritten as a whole, so they are kept small
+    private static final int INDEX_SHARDS = 256;
+
+    public static final String DIRECTORY = "plate_index";
+    private static final String BASE_NAME = "plates_index";
+    private static boolean directoryReady;
+    // Appends of this process to a shard before it is compacted
+    static final int COMPACT_EVERY = 4096;
+    private static final AtomicIntegerArray appendsSinceCompact = new AtomicIntegerArray(INDEX_SHARDS);
+
+    private final ShardedRegistry index = new ShardedRegistry(prepareDirectory(), INDEX_SHARDS);
+
+    // Creates the directory of the shards once per process and returns the base name of the registry
+    private static synchronized String prepareDirectory() {
+        if (!directoryReady) {
+            try {
+                Path dir = Paths.get(DIRECTORY);
+                if (!Files.isDirectory(dir)) {
+                    Files.createDirectories(dir);
+                    moveOldShards(dir);
+                }
+                directoryReady = true;
+            } catch (IOException e) {
+                System.err.println("Error preparing plate index directory: " + e.getMessage());
+            }
+        }
+        return DIRECTORY + File.separator + BASE_NAME;
+    }
+
+    // Moves "plates_index.*" of the working directory into the directory, the old lock files are deleted
+    private static void moveOldShards(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(Paths.get("."))) {
+            for (Path p : (Iterable<Path>) files::iterator) {
+                String name = p.getFileName().toString();
+                if (!name.startsWith(BASE_NAME + ".")) continue;
+                try {
+                    if (name.endsWith(".lock")) {
+                        Files.delete(p);
+                    } else {
+                        Files.move(p, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+                    }
+                } catch (NoSuchFileException e) {
+                    // Another process moved it first
+                }
+            }
+        }
+    }
+
+    // Records that the plate is now in a lot, in a shop inventory or rented by a shop
+    public void record(String plate, String kind, String where) {
+        try {
+            index.append(plate, entry(plate, kind, where));
+            int shard = index.shardOf(plate.hashCode()) % INDEX_SHARDS;
+            if (appendsSinceCompact.incrementAndGet(shard) >= COMPACT_EVERY) {
+                appendsSinceCompact.set(shard, 0);
+                index.compact(plate);
+            }
+        } catch (IOException e) {
+            System.err.println("Error updating plate index: " + e.getMessage());
+        }
+    }
+
+    // Forgets a plate (the vehicle left the system)
+    public void remove(String plate) {
+        try {
+            index.put(plate, null);
+        } catch (IOException e) {
+            System.err.println("Error updating plate index: " + e.getMessage());
+        }
+    }
+
+    // Updates many plates at once, plates mapped to null are removed. Each shard is rewritten once.
+    public void recordAll(Map<String, String> entries) {
+        try {
+            index.putAll(entries);
+        } catch (IOException e) {
+            System.err.println("Error updating plate index: " + e.getMessage());
+        }
+    }
+
+    // The shards of the index, BulkVehicleGenerator appends the lines of new plates to them directly
+    ShardedRegistry shards() {
+        return index;
+    }
+
+    // Line stored for a plate, also used to build the map of recordAll
+    public static String entry(String plate, String kind, String where) {
+        return plate + "," + kind + "," + (kind.equals(LOT) ? lotId(where) : where);
+    }
+
+    // Identity of a lot in the index: the absolute, normalized path of its file without ".txt"
+    public static String lotId(String lotName) {
+        String path = LotFile.pathOf(lotName + ".txt");
+        return path.substring(0, path.length() - ".txt".length());
+    }
+
+    // True when the index entry {kind, name} says the vehicle is in this lot (entries written before lotId are resolved here)
+    public static boolean isInLot(String[] location, String lotName) {
+        return location[0].equals(LOT) && lotId(location[1]).equals(lotId(lotName));
+    }
+
+    // Returns {kind, name} of the plate, or null if the plate is not indexed
+    public String[] locate(String plate) {
+        try {
+            String line = index.findLast(plate);
+            if (line == null) return null;
+            String[] parts = line.split(",", 3);
+            return parts.length == 3 ? new String[]{parts[1], parts[2]} : null;
+        } catch (IOException e) {
+            System.err.println("Error reading plate index: " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Human readable location, e.g. "in lot Central" or "rented by shop SanJose"
+    public static String describe(String[] location) {
+        switch (location[0]) {
+            case LOT:
+                return "in lot " + location[1];
+            case SHOP:
+                return "in the inventory of shop " + location[1];
+            case RENTED:
+                return "rented by shop " + location[1];
+            case ARCHIVED:
+                return "archived from lot " + location[1] + " (java carrental.Archiver --restore-lot=" + location[1] + ")";
+            default:
+                return location[0] + " " + location[1];
+        }
+    }
+}
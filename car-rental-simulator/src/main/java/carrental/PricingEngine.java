@@ -0,0 +1,277 @@
+/*
+By Jennifer Vicentes
+Purpose: This class computes the charge of a RETURN. Before, the price was hard-coded in RentalShop.returnVehicle ($1 per km and 10% off
+for vehicles that came from a lot). Now the prices come from rules in "pricing_rules.cfg" (if the file does not exist, the old
+price is used; not ".txt", every "*.txt" of the working directory is a lot for CarRentalUI). Every line of the file is one rule:
+    <name>,<SEDAN|SUV|VAN|*>,<fromKm>,<centsPerKm>,<lotDiscountPercent>[,<validFrom yyyy-mm-dd>,<validTo yyyy-mm-dd>]
+The rules of a type are tiers: kilometers from fromKm up to the next tier are charged at that tier's rate (like income tax brackets).
+Rules with dates are promotions: while they are valid they replace the normal rules of their type. Rules for "*" apply to types
+without rules of their own. Lines starting with # are comments.
+
+The rules are compiled once into a table per vehicle type: the tier of every kilometer value up to TABLE_KM and the accumulated
+price at the start of every tier. A quote is then one array lookup and one multiplication, no matter how many rules there are.
+The tables are only recompiled when a promotion starts or ends.
+*/
+package carrental;
+
+import java.io.*;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+
+public class PricingEngine {
+    // File read by default, in the working directory like the other state files
+    public static final String DEFAULT_RULES_FILE = "pricing_rules.cfg";
+    // Name the rules file had before, still read when there is no DEFAULT_RULES_FILE
+    public static final String OLD_RULES_FILE = "pricing_rules.txt";
+    // Kilometer values covered by the direct lookup table, longer rentals use a binary search over the tiers
+    private static final int TABLE_KM = 4096;
+    private static final String ANY_TYPE = "*";
+
+    // Result of pricing one rental
+    public static class Quote {
+        public final long chargeCents;
+        public final long discountCents;
+        public final String rule;
+
+        Quote(long chargeCents, long discountCents, String rule) {
+            this.chargeCents = chargeCents;
+            this.discountCents = discountCents;
+            this.rule = rule;
+        }
+    }
+
+    // One line of the rules file
+    private static class Rule {
+        String name;
+        String type;
+        int fromKm;
+        long centsPerKm;
+        int lotDiscountPercent;
+        long validFrom = Long.MIN_VALUE; // epoch millis, inclusive
+        long validTo = Long.MAX_VALUE;   // epoch millis, exclusive
+
+        boolean isPromotion() {
+            return validFrom != Long.MIN_VALUE || validTo != Long.MAX_VALUE;
+        }
+
+        boolean activeAt(long now) {
+            return now >= validFrom && now < validTo;
+        }
+    }
+
+    // Compiled tiers of one vehicle type
+    private static class RateTable {
+        int[] start;        // first kilometer of every tier, start[0] == 0
+        long[] rate;        // cents per km of every tier
+        long[] baseCents;   // price of the kilometers before the tier starts
+        int[] discount;     // lot discount percent of every tier
+        String[] rule;      // rule name of every tier
+        byte[] tierOfKm;    // tier of every km value below TABLE_KM (tiers are limited to 127)
+
+        int tierOf(int km) {
+            if (km < TABLE_KM) return tierOfKm[km];
+            // Last tier whose start <= km
+            int idx = Arrays.binarySearch(start, km);
+            return idx >= 0 ? idx : -idx - 2;
+        }
+    }
+
+    private final List<Rule> rules;
+    // Tables for the current moment, and when they stop being valid (a promotion starts or ends)
+    private Map<String, RateTable> tables;
+    private long tablesValidFrom;
+    private long tablesValidUntil;
+
+    private PricingEngine(List<Rule> rules) {
+        this.rules = rules;
+        compile(System.currentTimeMillis());
+    }
+
+    // The default price: $1 per km, 10% discount for vehicles that come from a lot
+    public static PricingEngine standard() {
+        Rule r = new Rule();
+        r.name = "standard";
+        r.type = ANY_TYPE;
+        r.fromKm = 0;
+        r.centsPerKm = 100;
+        r.lotDiscountPercent = 10;
+        return new PricingEngine(new ArrayList<>(List.of(r)));
+    }
+
+    // Loads the default rules file (or the one with the old name)
+    public static PricingEngine loadDefault() {
+        if (!new File(DEFAULT_RULES_FILE).exists() && new File(OLD_RULES_FILE).exists()) {
+            System.err.println("Warning: reading pricing rules from " + OLD_RULES_FILE + ", rename it to " + DEFAULT_RULES_FILE + ".");
+            return load(OLD_RULES_FILE);
+        }
+        return load(DEFAULT_RULES_FILE);
+    }
+
+    // Loads the rules file, or the standard price when it does not exist or is invalid
+    public static PricingEngine load(String fileName) {
+        File file = new File(fileName);
+        if (!file.exists()) {
+            return standard();
+        }
+        List<Rule> rules = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = br.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                rules.add(parseRule(line, lineNumber));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading pricing rules (" + fileName + "), using the standard price: " + e.getMessage());
+            return standard();
+        }
+        if (rules.isEmpty()) {
+            return standard();
+        }
+        // Every type is compiled here, normal rules and promotions apart (all the promotions of a type at once is the most tiers
+        // it can have), so a bad file falls back to the standard price now instead of failing later in the middle of a RETURN
+        try {
+            Map<String, List<Rule>> groups = new HashMap<>();
+            for (Rule r : rules) {
+                groups.computeIfAbsent(r.type + (r.isPromotion() ? ",promotion" : ""), k -> new ArrayList<>()).add(r);
+            }
+            for (List<Rule> tiers : groups.values()) {
+                checkDuplicateTiers(tiers);
+                compileType(tiers);
+            }
+            return new PricingEngine(rules);
+        } catch (RuntimeException e) {
+            System.err.println("Error in pricing rules (" + fileName + "), using the standard price: " + e.getMessage());
+            return standard();
+        }
+    }
+
+    private static Rule parseRule(String line, int lineNumber) {
+        String[] parts = line.split(",");
+        if (parts.length != 5 && parts.length != 7) {
+            throw new IllegalArgumentException("line " + lineNumber + ": expected name,type,fromKm,centsPerKm,lotDiscountPercent[,validFrom,validTo]");
+        }
+        Rule r = new Rule();
+        r.name = parts[0].trim();
+        r.type = parts[1].trim().toUpperCase();
+        r.fromKm = Integer.parseInt(parts[2].trim());
+        r.centsPerKm = Long.parseLong(parts[3].trim());
+        r.lotDiscountPercent = Integer.parseInt(parts[4].trim());
+        if (r.fromKm < 0 || r.centsPerKm < 0 || r.lotDiscountPercent < 0 || r.lotDiscountPercent > 100) {
+            throw new IllegalArgumentException("line " + lineNumber + ": values out of range");
+        }
+        if (parts.length == 7) {
+            ZoneId zone = ZoneId.systemDefault();
+            r.validFrom = LocalDate.parse(parts[5].trim()).atStartOfDay(zone).toInstant().toEpochMilli();
+            r.validTo = LocalDate.parse(parts[6].trim()).atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+        return r;
+    }
+
+    // Prices a rental of km kilometers returned at time now (epoch millis)
+    public synchronized Quote quote(String type, int km, boolean fromLot, long now) {
+        if (now < tablesValidFrom || now >= tablesValidUntil) {
+            compile(now);
+        }
+        RateTable table = tables.get(type.toUpperCase());
+        if (table == null) table = tables.get(ANY_TYPE);
+        if (table == null) {
+            // No rule for this type and no "*" rule: nothing to charge
+            return new Quote(0, 0, "none");
+        }
+        int t = table.tierOf(Math.max(0, km));
+        long total = table.baseCents[t] + (long) (km - table.start[t]) * table.rate[t];
+        long discount = fromLot ? (total * table.discount[t] + 50) / 100 : 0;
+        return new Quote(total - discount, discount, table.rule[t]);
+    }
+
+    // Builds the tables of every type for the rules active at time now
+    private void compile(long now) {
+        // Promotions active now replace the normal rules of their type
+        Map<String, List<Rule>> normal = new HashMap<>();
+        Map<String, List<Rule>> promos = new HashMap<>();
+        long validFrom = Long.MIN_VALUE;
+        long validUntil = Long.MAX_VALUE;
+        for (Rule r : rules) {
+            if (r.isPromotion()) {
+                // The tables change when any promotion starts or ends
+                if (r.validFrom > now) validUntil = Math.min(validUntil, r.validFrom);
+                else validFrom = Math.max(validFrom, r.validFrom);
+                if (r.validTo > now) validUntil = Math.min(validUntil, r.validTo);
+                else validFrom = Math.max(validFrom, r.validTo);
+                if (!r.activeAt(now)) continue;
+            }
+            (r.isPromotion() ? promos : normal).computeIfAbsent(r.type, k -> new ArrayList<>()).add(r);
+        }
+        Map<String, RateTable> compiled = new HashMap<>();
+        Set<String> types = new HashSet<>(normal.keySet());
+        types.addAll(promos.keySet());
+        for (String type : types) {
+            List<Rule> tiers = promos.containsKey(type) ? promos.get(type) : normal.get(type);
+            compiled.put(type, compileType(tiers));
+        }
+        tables = compiled;
+        tablesValidFrom = validFrom;
+        tablesValidUntil = validUntil;
+    }
+
+    // Two tiers of a type starting at the same km would be chosen differently by the lookup table and by the binary search above it.
+    // Promotions only clash when their dates overlap, otherwise they are never active together.
+    private static void checkDuplicateTiers(List<Rule> tiers) {
+        for (int i = 0; i < tiers.size(); i++) {
+            for (int j = i + 1; j < tiers.size(); j++) {
+                Rule a = tiers.get(i);
+                Rule b = tiers.get(j);
+                boolean together = !a.isPromotion() || (a.validFrom < b.validTo && b.validFrom < a.validTo);
+                if (a.fromKm == b.fromKm && together) {
+                    throw new IllegalArgumentException("rules " + a.name + " and " + b.name + " of type " + a.type + " both start at "
+                            + a.fromKm + " km");
+                }
+            }
+        }
+    }
+
+    // Sorts the tiers of a type and precomputes the lookup table
+    private static RateTable compileType(List<Rule> tiers) {
+        List<Rule> sorted = new ArrayList<>(tiers);
+        sorted.sort(Comparator.comparingInt(r -> r.fromKm));
+        // The first tier always starts at 0 km
+        if (sorted.get(0).fromKm != 0) {
+            Rule first = sorted.get(0);
+            Rule zero = new Rule();
+            zero.name = first.name;
+            zero.type = first.type;
+            zero.centsPerKm = first.centsPerKm;
+            zero.lotDiscountPercent = first.lotDiscountPercent;
+            sorted.add(0, zero);
+        }
+        if (sorted.size() > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("too many tiers for type " + sorted.get(0).type + " (at most " + Byte.MAX_VALUE + ")");
+        }
+        int n = sorted.size();
+        RateTable t = new RateTable();
+        t.start = new int[n];
+        t.rate = new long[n];
+        t.baseCents = new long[n];
+        t.discount = new int[n];
+        t.rule = new String[n];
+        for (int i = 0; i < n; i++) {
+            Rule r = sorted.get(i);
+            t.start[i] = r.fromKm;
+            t.rate[i] = r.centsPerKm;
+            t.discount[i] = r.lotDiscountPercent;
+            t.rule[i] = r.name;
+            t.baseCents[i] = i == 0 ? 0 : t.baseCents[i - 1] + (long) (t.start[i] - t.start[i - 1]) * t.rate[i - 1];
+        }
+        t.tierOfKm = new byte[TABLE_KM];
+        int tier = 0;
+        for (int km = 0; km < TABLE_KM; km++) {
+            while (tier + 1 < n && t.start[tier + 1] <= km) tier++;
+            t.tierOfKm[km] = (byte) tier;
+        }
+        return t;
+    }
+}
@@ -0,0 +1,485 @@
+/*
+By Jennifer Vicentes
+Purpose: This class checks that lots, shops and the two registries agree about every plate, and can repair what is wrong:
+    java carrental.Reconciler [--lots=Lot1,Lot2] [--shops=SanJose,Alajuela] [--partitions=64] [--show=20] [--repair]
+Without --shops every shop snapshot (*.ser) of the working directory is checked. Without --lots the lots of those shops and every
+file ending with the LotFile trailer are checked.
+
+It finds:
+    IN_TWO_LOTS        the plate is in more than one lot (or twice in the same lot)
+    LOT_AND_SHOP       the plate is in a lot and also in a shop (inventory or rented out)
+    IN_TWO_SHOPS       the plate is in more than one shop
+    MISSING_RENTED     a shop rents the plate but rented_registry does not have it (the shop would drop it on its next start)
+    STALE_RENTED       rented_registry has the plate but no shop rents it (another shop could "return" it)
+    DUPLICATE_RENTED   rented_registry has the plate more than once
+    UNREGISTERED       the plate exists but is not in plates_registry.txt (LotManager could issue it again)
+    ORPHAN_PLATE       plates_registry.txt has the plate but it exists nowhere
+Archived plates count as registered and archived vehicles as existing (see Archiver), they are never ORPHAN_PLATE or UNREGISTERED.
+A plate that the plate index places in a lot that was not scanned also exists (a lot of an older version has no trailer and is only
+found through the shops that use it). Without --lots, --repair is refused when a .txt file of the working directory was skipped that
+is not a registry or a shop dump, it could be such a lot and its plates would be unregistered and issued again.
+--repair removes the extra lot copies (a shop copy wins over a lot copy, otherwise the first lot by name), fixes rented_registry
+and plates_registry.txt. IN_TWO_SHOPS is only reported, shops must be fixed by hand. Repairs should run while no shop is running.
+Every removed lot copy is written to the event log (VehicleRemoved, then the event that puts the plate where the kept copy is) and the
+plate index is pointed at the kept copy, so LotManager --locate and EventReplay --verify agree with the repaired files.
+
+Every source is streamed once and every record ("plate, where") is written to one of N partition files chosen by the hash of the
+plate. Then every partition is checked on its own with a hash map, so memory only depends on the size of one partition and the
+number of problems found, not on the number of records (use more partitions for bigger fleets).
+*/
+package carrental;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class Reconciler {
+    // Kinds of records in the partition files
+    private static final char LOT = 'L', SHOP = 'S', RENTED = 'R', RENTED_REGISTRY = 'G', PLATES_REGISTRY = 'P';
+    private static final char ARCHIVED_PLATE = 'A', ARCHIVED_VEHICLE = 'V', INDEXED = 'I';
+    private static final String[] PROBLEMS = {"IN_TWO_LOTS", "LOT_AND_SHOP", "IN_TWO_SHOPS", "MISSING_RENTED", "STALE_RENTED",
+            "DUPLICATE_RENTED", "UNREGISTERED", "ORPHAN_PLATE"};
+
+    private final int partitions;
+    private final int show;
+    private final Path workDir;
+    private final BufferedWriter[] writers;
+    private long records = 0;
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+    private final Map<String, List<String>> examples = new HashMap<>();
+    // lotId of every scanned lot, the plate index can place plates in others
+    private final Set<String> scannedLots = new HashSet<>();
+
+    // Repairs found while checking, applied at the end
+    // Plates to take out of a lot, and plates listed twice in the lot that keeps them (only the first line stays)
+    private final Map<String, Set<String>> lotRemovals = new TreeMap<>();
+    private final Map<String, Set<String>> lotDuplicates = new TreeMap<>();
+    private final Map<String, String> rentedRegistryChanges = new HashMap<>();
+    private final Set<String> platesToRegister = new HashSet<>();
+    private final Set<String> platesToUnregister = new HashSet<>();
+    // Where the copy that stays is ({PlateIndex kind, lot or shop}), for the plates that lose lot copies
+    private final Map<String, String[]> keepers = new HashMap<>();
+
+    // A lot copy taken out by the repair
+    private static class RemovedCopy {
+        final Vehicle vehicle;
+        final String lot;
+
+        RemovedCopy(Vehicle vehicle, String lot) {
+            this.vehicle = vehicle;
+            this.lot = lot;
+        }
+    }
+
+    private Reconciler(int partitions, int show, Path workDir) throws IOException {
+        this.partitions = partitions;
+        this.show = show;
+        this.workDir = workDir;
+        Files.createDirectories(workDir);
+        writers = new BufferedWriter[partitions];
+        for (int i = 0; i < partitions; i++) {
+            writers[i] = Files.newBufferedWriter(partitionFile(i), StandardCharsets.UTF_8);
+        }
+        for (String p : PROBLEMS) counts.put(p, 0L);
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        int partitions = Integer.parseInt(flags.getOrDefault("--partitions", "64"));
+        int show = Integer.parseInt(flags.getOrDefault("--show", "20"));
+        boolean repair = flags.containsKey("--repair");
+        List<String> shops = flags.containsKey("--shops") ? splitList(flags.get("--shops")) : discoverShops();
+        List<String> skipped = new ArrayList<>();
+        List<String> lots = flags.containsKey("--lots") ? splitList(flags.get("--lots")) : discoverLots(shops, skipped);
+
+        Path workDir = Paths.get("reconcile.tmp");
+        try {
+            Reconciler r = new Reconciler(partitions, show, workDir);
+            try {
+                r.scan(lots, shops);
+                r.check();
+                r.report(lots.size(), shops.size());
+                if (repair && !skipped.isEmpty()) {
+                    System.err.println("Error: not repairing, these files were skipped and could be lots without a trailer: " + skipped
+                            + ". Name the lots with --lots or move the files away.");
+                } else if (repair) {
+                    r.repair();
+                }
+            } finally {
+                r.deleteWorkDir();
+            }
+        } catch (IOException e) {
+            System.err.println("Error reconciling: " + e.getMessage());
+            System.exit(1);
+        }
+        if (repair && !skipped.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    private static List<String> splitList(String text) {
+        List<String> list = new ArrayList<>();
+        for (String s : text.split(",")) {
+            if (!s.isBlank()) list.add(s.trim());
+        }
+        return list;
+    }
+
+    // Lots are the ones the shops use (lots written by older versions have no trailer) and the .txt files that end with the LotFile trailer.
+    // The other .txt files that are not registries or shop dumps go to skipped.
+    private static List<String> discoverLots(List<String> shops, List<String> skipped) {
+        Set<String> lots = new TreeSet<>();
+        for (String shop : shops) {
+            try {
+                for (String lot : RentalShop.savedLotNames(shop)) {
+                    if (!lot.isBlank() && new File(lot + ".txt").exists()) lots.add(lot);
+                }
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                // Reported again when the shop itself is scanned
+            }
+        }
+        String[] names = new File(".").list((d, n) -> n.endsWith(".txt"));
+        if (names != null) {
+            for (String name : names) {
+                String base = name.substring(0, name.length() - 4);
+                if (lastLine(name).startsWith(LotFile.TRAILER)) {
+                    lots.add(base);
+                } else if (!lots.contains(base) && !isKnownNonLot(name, shops)) {
+                    skipped.add(name);
+                }
+            }
+        }
+        return new ArrayList<>(lots);
+    }
+
+    // Registries, shop dumps, old pricing rules and the files of the test scenarios
+    private static boolean isKnownNonLot(String name, List<String> shops) {
+        String lower = name.toLowerCase();
+        return lower.equals(LotManager.REGISTRY_FILE) || lower.startsWith("rented_registry") || lower.startsWith("plates_index")
+                || lower.equals(PricingEngine.OLD_RULES_FILE) || lower.endsWith("-output.txt") || lower.endsWith("-commands.txt")
+                || shops.contains(name.substring(0, name.length() - 4));
+    }
+
+    private static List<String> discoverShops() {
+        List<String> shops = new ArrayList<>();
+        String[] names = new File(".").list((d, n) -> n.endsWith(".ser"));
+        if (names == null) return shops;
+        Arrays.sort(names);
+        for (String name : names) {
+            shops.add(name.substring(0, name.length() - 4));
+        }
+        return shops;
+    }
+
+    // Last line of a file, reading only its end
+    private static String lastLine(String fileName) {
+        try (RandomAccessFile raf = new RandomAccessFile(fileName, "r")) {
+            long length = raf.length();
+            int n = (int) Math.min(length, 128);
+            byte[] tail = new byte[n];
+            raf.seek(length - n);
+            raf.readFully(tail);
+            String text = new String(tail, StandardCharsets.ISO_8859_1).trim();
+            return text.substring(text.lastIndexOf('\n') + 1);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    // --- Pass 1: stream every source into the partitions ---
+
+    private void scan(List<String> lots, List<String> shops) throws IOException {
+        for (String lot : lots) {
+            String lotFile = lot + ".txt";
+            scannedLots.add(PlateIndex.lotId(lot));
+            try (FileLocks.Handle lock = FileLocks.lock(lotFile)) {
+                LotFile.Status status = LotFile.forEach(lotFile, v -> emit(v.getLicensePlate(), LOT, lot, ""));
+                if (status == LotFile.Status.TORN) {
+                    System.err.println("Warning: lot " + lot + " is torn, only its complete lines were checked.");
+                }
+            }
+        }
+        for (String shop : shops) {
+            try {
+                RentalShop.forEachSavedVehicle(shop, (v, rented, discount, rentedAt) -> emit(v.getLicensePlate(),
+                        rented ? RENTED : SHOP, shop,
+                        rented ? v.getLicensePlate() + "," + v.getType() + "," + discount + "," + rentedAt : ""));
+            } catch (IOException | ClassNotFoundException | ClassCastException e) {
+                System.err.println("Warning: shop " + shop + " could not be read (" + e.getMessage() + "), it was skipped.");
+            }
+        }
+        new ShardedRegistry("rented_registry").forEachLine(
+                line -> emit(ShardedRegistry.firstField(line), RENTED_REGISTRY, "", line));
+        File platesRegistry = new File(LotManager.REGISTRY_FILE);
+        if (platesRegistry.exists()) {
+            try (FileLocks.Handle lock = FileLocks.lock(LotManager.REGISTRY_FILE);
+                 BufferedReader br = Files.newBufferedReader(platesRegistry.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (!line.isBlank()) emit(line.trim(), PLATES_REGISTRY, "", "");
+                }
+            }
+        }
+        // In index order, so the last record of a plate is its newest line
+        new PlateIndex().shards().forEachLine(line -> {
+            String[] f = line.split(",", 3);
+            if (f.length == 3) emit(f[0], INDEXED, f[1], f[2]);
+        });
+        Archiver.forEachArchivedPlate(plate -> emit(plate, ARCHIVED_PLATE, "", ""));
+        Archiver.forEachArchivedVehicle((lot, v) -> emit(v.getLicensePlate(), ARCHIVED_VEHICLE, lot, ""));
+        for (BufferedWriter w : writers) {
+            w.close();
+        }
+    }
+
+    private void emit(String plate, char kind, String name, String extra) {
+        try {
+            BufferedWriter w = writers[Math.floorMod(plate.hashCode(), partitions)];
+            w.write(plate);
+            w.write('\t');
+            w.write(kind);
+            w.write('\t');
+            w.write(name);
+            w.write('\t');
+            w.write(extra);
+            w.write('\n');
+            records++;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // --- Pass 2: check every partition on its own ---
+
+    // Everything known about one plate
+    private static class Places {
+        List<String> lots = new ArrayList<>(1);
+        List<String> shops = new ArrayList<>(1);
+        String shopRentedLine;
+        List<String> registryLines = new ArrayList<>(1);
+        boolean registered;
+        boolean archivedPlate;
+        boolean archivedVehicle;
+        // Newest plate index line: kind and name
+        String indexKind;
+        String indexWhere;
+    }
+
+    private void check() throws IOException {
+        for (int i = 0; i < partitions; i++) {
+            Map<String, Places> plates = new HashMap<>();
+            try (BufferedReader br = Files.newBufferedReader(partitionFile(i), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] f = line.split("\t", 4);
+                    Places p = plates.computeIfAbsent(f[0], k -> new Places());
+                    switch (f[1].charAt(0)) {
+                        case LOT: p.lots.add(f[2]); break;
+                        case SHOP: p.shops.add(f[2]); break;
+                        case RENTED: p.shops.add(f[2]); p.shopRentedLine = f[3]; break;
+                        case RENTED_REGISTRY: p.registryLines.add(f[3]); break;
+                        case ARCHIVED_PLATE: p.archivedPlate = true; break;
+                        case ARCHIVED_VEHICLE: p.archivedVehicle = true; break;
+                        case INDEXED: p.indexKind = f[2]; p.indexWhere = f[3]; break;
+                        default: p.registered = true;
+                    }
+                }
+            }
+            for (Map.Entry<String, Places> e : plates.entrySet()) {
+                checkPlate(e.getKey(), e.getValue());
+            }
+            Files.delete(partitionFile(i));
+        }
+    }
+
+    private void checkPlate(String plate, Places p) {
+        if (p.lots.size() > 1 && p.shops.isEmpty()) {
+            problem("IN_TWO_LOTS", plate + " in lots " + p.lots);
+            // The first lot by name keeps the vehicle
+            String keeper = Collections.min(p.lots);
+            keepers.put(plate, new String[]{PlateIndex.LOT, keeper});
+            for (String lot : p.lots) {
+                if (!lot.equals(keeper)) {
+                    lotRemovals.computeIfAbsent(lot, k -> new HashSet<>()).add(plate);
+                } else if (Collections.frequency(p.lots, keeper) > 1) {
+                    lotDuplicates.computeIfAbsent(lot, k -> new HashSet<>()).add(plate);
+                }
+            }
+        }
+        if (!p.lots.isEmpty() && !p.shops.isEmpty()) {
+            problem("LOT_AND_SHOP", plate + " in lots " + p.lots + " and shops " + p.shops);
+            // With two shops there is no copy to point at until the shops are fixed by hand
+            if (p.shops.size() == 1) {
+                keepers.put(plate, new String[]{p.shopRentedLine != null ? PlateIndex.RENTED : PlateIndex.SHOP, p.shops.get(0)});
+            }
+            for (String lot : p.lots) {
+                lotRemovals.computeIfAbsent(lot, k -> new HashSet<>()).add(plate);
+            }
+        }
+        if (p.shops.size() > 1) {
+            problem("IN_TWO_SHOPS", plate + " in shops " + p.shops);
+        }
+        if (p.shopRentedLine != null && p.registryLines.isEmpty()) {
+            problem("MISSING_RENTED", plate + " rented by " + p.shops + " but not in rented_registry");
+            rentedRegistryChanges.put(plate, p.shopRentedLine);
+        }
+        if (p.shopRentedLine == null && !p.registryLines.isEmpty()) {
+            problem("STALE_RENTED", plate + " in rented_registry but no shop rents it");
+            rentedRegistryChanges.put(plate, null);
+        }
+        if (p.registryLines.size() > 1) {
+            problem("DUPLICATE_RENTED", plate + " " + p.registryLines.size() + " times in rented_registry");
+            if (p.shopRentedLine != null) rentedRegistryChanges.put(plate, p.shopRentedLine);
+        }
+        // A line in rented_registry alone does not make a vehicle exist (it is STALE_RENTED)
+        boolean exists = !p.lots.isEmpty() || !p.shops.isEmpty() || p.archivedVehicle || inUnscannedLot(p);
+        if (exists && !p.registered && !p.archivedPlate) {
+            problem("UNREGISTERED", plate + " is not in " + LotManager.REGISTRY_FILE);
+            platesToRegister.add(plate);
+        }
+        if (!exists && p.registered) {
+            problem("ORPHAN_PLATE", plate + " is in " + LotManager.REGISTRY_FILE + " but exists nowhere");
+            platesToUnregister.add(plate);
+        }
+    }
+
+    // The index places the plate in a lot that was not scanned, it is not known to be gone
+    private boolean inUnscannedLot(Places p) {
+        return PlateIndex.LOT.equals(p.indexKind) && !scannedLots.contains(PlateIndex.lotId(p.indexWhere));
+    }
+
+    private void problem(String kind, String description) {
+        counts.merge(kind, 1L, Long::sum);
+        List<String> list = examples.computeIfAbsent(kind, k -> new ArrayList<>());
+        if (list.size() < show) list.add(description);
+    }
+
+    private void report(int lots, int shops) {
+        System.out.println("Checked " + records + " records from " + lots + " lots, " + shops + " shops and both registries.");
+        long total = 0;
+        for (Map.Entry<String, Long> e : counts.entrySet()) {
+            System.out.println(e.getKey() + ": " + e.getValue());
+            for (String example : examples.getOrDefault(e.getKey(), List.of())) {
+                System.out.println("  " + example);
+            }
+            total += e.getValue();
+        }
+        System.out.println(total == 0 ? "Everything is consistent." : "Problems found: " + total);
+    }
+
+    // --- Repairs ---
+
+    private void repair() throws IOException {
+        Set<String> lotsToRepair = new TreeSet<>(lotRemovals.keySet());
+        lotsToRepair.addAll(lotDuplicates.keySet());
+        Map<String, RemovedCopy> removedCopies = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (String lot : lotsToRepair) {
+            String lotFile = lot + ".txt";
+            Set<String> remove = lotRemovals.getOrDefault(lot, Set.of());
+            Set<String> duplicates = lotDuplicates.getOrDefault(lot, Set.of());
+            int[] removed = {0};
+            List<EventLog.Event> events = new ArrayList<>();
+            // Streamed into a new lot file, so big lots are never loaded whole
+            Set<String> seen = new HashSet<>();
+            try (FileLocks.Handle lock = FileLocks.lock(lotFile);
+                 LotFile.Writer writer = new LotFile.Writer(lotFile)) {
+                LotFile.forEach(lotFile, v -> {
+                    String plate = v.getLicensePlate();
+                    boolean drop = remove.contains(plate) || (duplicates.contains(plate) && !seen.add(plate));
+                    try {
+                        if (drop) {
+                            removed[0]++;
+                            events.add(EventLog.removed(v, lot, now));
+                            removedCopies.put(plate, new RemovedCopy(v, lot));
+                        } else {
+                            writer.add(v);
+                        }
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+                writer.commit();
+            }
+            // Only after the commit, like every other writer of the log
+            EventLog.append(EventLog.FILE, events);
+            System.out.println("Repaired lot " + lot + ": removed " + removed[0] + " vehicles.");
+        }
+        recordKeepers(removedCopies, now);
+        if (!rentedRegistryChanges.isEmpty()) {
+            new ShardedRegistry("rented_registry").putAll(rentedRegistryChanges);
+            System.out.println("Repaired rented_registry: " + rentedRegistryChanges.size() + " plates.");
+        }
+        if (!platesToRegister.isEmpty() || !platesToUnregister.isEmpty()) {
+            repairPlatesRegistry();
+            System.out.println("Repaired " + LotManager.REGISTRY_FILE + ": added " + platesToRegister.size()
+                    + ", removed " + platesToUnregister.size() + " plates.");
+        }
+    }
+
+    // The removed plates are put back where their kept copy is, in the event log (after their VehicleRemoved) and in the plate index
+    private void recordKeepers(Map<String, RemovedCopy> removedCopies, long now) {
+        List<EventLog.Event> events = new ArrayList<>();
+        Map<String, String> indexChanges = new HashMap<>();
+        for (Map.Entry<String, RemovedCopy> e : removedCopies.entrySet()) {
+            String[] keeper = keepers.get(e.getKey());
+            if (keeper == null) continue;
+            Vehicle v = e.getValue().vehicle;
+            String from = e.getValue().lot;
+            switch (keeper[0]) {
+                case PlateIndex.LOT:
+                    events.add(EventLog.movedToLot(v, from, keeper[1], now));
+                    break;
+                case PlateIndex.RENTED:
+                    events.add(EventLog.rented(v, from, keeper[1], now));
+                    break;
+                default:
+                    events.add(EventLog.movedToShop(v, from, keeper[1], now));
+            }
+            indexChanges.put(e.getKey(), PlateIndex.entry(e.getKey(), keeper[0], keeper[1]));
+        }
+        EventLog.append(EventLog.FILE, events);
+        if (!indexChanges.isEmpty()) {
+            new PlateIndex().recordAll(indexChanges);
+            System.out.println("Repaired the plate index and the event log: " + indexChanges.size() + " plates.");
+        }
+    }
+
+    // Streams plates_registry.txt into a temporary file without the orphans and with the missing plates, then renames it
+    private void repairPlatesRegistry() throws IOException {
+        Path registry = Paths.get(LotManager.REGISTRY_FILE);
+        Path tmp = Paths.get(LotManager.REGISTRY_FILE + ".tmp");
+        try (FileLocks.Handle lock = FileLocks.lock(LotManager.REGISTRY_FILE)) {
+            try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                if (Files.exists(registry)) {
+                    try (BufferedReader br = Files.newBufferedReader(registry, StandardCharsets.UTF_8)) {
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            String plate = line.trim();
+                            if (plate.isEmpty() || platesToUnregister.contains(plate)) continue;
+                            w.write(plate);
+                            w.newLine();
+                        }
+                    }
+                }
+                for (String plate : platesToRegister) {
+                    w.write(plate);
+                    w.newLine();
+                }
+            }
+            Files.move(tmp, registry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private Path partitionFile(int i) {
+        return workDir.resolve("part-" + i + ".tsv");
+    }
+
+    private void deleteWorkDir() throws IOException {
+        for (int i = 0; i < partitions; i++) {
+            Files.deleteIfExists(partitionFile(i));
+        }
+        Files.deleteIfExists(workDir);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+By Jennifer Vicentes
+Purpose: This class keeps the customers of a shop that are waiting for a vehicle ("RENT <type> WAIT <seconds>").
+There is one FIFO queue per vehicle type, limited to MAX_WAITERS_PER_TYPE customers. Every waiter has its own Condition, so when a
+vehicle may have become available (a RETURN, a cancelled reservation or a lot written in this JVM) only the first customer of the
+queue is woken up, it tries the RENT again and the others keep sleeping. Nobody polls the lot files.
+
+A signal that arrives while the first customer is busy trying is remembered (the ready flag), so it is never lost.
+The waiting happens outside of the shop lock (see RentalShop.executeCommand), only the retries take it.
+*/
+package carrental;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class RentWaitQueue {
+    public static final int MAX_WAITERS_PER_TYPE = 64;
+    // Longest WAIT accepted (one day), longer timeouts would overflow the nanoTime deadline
+    public static final long MAX_WAIT_SECONDS = 24 * 60 * 60;
+
+    // One waiting customer
+    public class Waiter {
+        final String type;
+        final long deadlineNanos;
+        private final Condition turn = lock.newCondition();
+        // Set when something changed since the waiter last tried
+        private boolean ready = false;
+
+        private Waiter(String type, long deadlineNanos) {
+            this.type = type;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public String getType() {
+            return type;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+    private final Map<String, ArrayDeque<Waiter>> queues = new HashMap<>();
+
+    // Puts a customer at the end of the queue of the type, or returns null when the queue is full
+    public Waiter enqueue(String type, long timeout, TimeUnit unit) {
+        lock.lock();
+        try {
+            ArrayDeque<Waiter> queue = queues.computeIfAbsent(type, k -> new ArrayDeque<>());
+            if (queue.size() >= MAX_WAITERS_PER_TYPE) {
+                return null;
+            }
+            // toNanos saturates instead of overflowing, the cap keeps the deadline in the future
+            long nanos = Math.min(unit.toNanos(timeout), TimeUnit.SECONDS.toNanos(MAX_WAIT_SECONDS));
+            Waiter w = new Waiter(type, System.nanoTime() + nanos);
+            queue.addLast(w);
+            return w;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Number of customers waiting for the type
+    public int waiting(String type) {
+        lock.lock();
+        try {
+            ArrayDeque<Waiter> queue = queues.get(type);
+            return queue == null ? 0 : queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Position of the waiter in its queue, 1 is the first
+    public int positionOf(Waiter w) {
+        lock.lock();
+        try {
+            int position = 1;
+            for (Waiter other : queues.get(w.type)) {
+                if (other == w) return position;
+                position++;
+            }
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until the waiter is first in its queue and something changed, returns false when the deadline passes first
+    public boolean awaitTurn(Waiter w) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = w.deadlineNanos - System.nanoTime();
+            while (!w.ready) {
+                if (remaining <= 0) return false;
+                remaining = w.turn.awaitNanos(remaining);
+            }
+            w.ready = false;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Same as awaitTurn, but the first waiter of the queue also gets a turn every retryNanos even if nothing signalled it
+    // (RentalShop uses it while CapacityManager throttles the lots). The other waiters keep their place and sleep.
+    public boolean awaitTurn(Waiter w, long retryNanos) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = w.deadlineNanos - System.nanoTime();
+            while (!w.ready) {
+                if (remaining <= 0) return false;
+                long slept = Math.min(remaining, retryNanos);
+                long left = w.turn.awaitNanos(slept);
+                remaining -= slept - left;
+                if (left <= 0 && remaining > 0 && queues.get(w.type).peekFirst() == w) break;
+            }
+            w.ready = false;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes the waiter out of its queue (served, timed out or interrupted). If it was first, the next one gets a chance.
+    public void leave(Waiter w) {
+        lock.lock();
+        try {
+            ArrayDeque<Waiter> queue = queues.get(w.type);
+            boolean wasFirst = queue.peekFirst() == w;
+            queue.remove(w);
+            if (wasFirst) {
+                wakeFirst(queue);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A vehicle of the type may be available
+    public void signal(String type) {
+        lock.lock();
+        try {
+            wakeFirst(queues.get(type));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A vehicle of any type or a parking slot may be available
+    public void signalAll() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Waiter> queue : queues.values()) {
+                wakeFirst(queue);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void wakeFirst(ArrayDeque<Waiter> queue) {
+        if (queue == null || queue.isEmpty()) return;
+        Waiter first = queue.peekFirst();
+        first.ready = true;
+        first.turn.signal();
+    }
+}
@@ -14,9 +14,18 @@ All the other comments I wrote were put for me to keep track while developing, t
 package carrental;
 
 import java.io.*;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 public class RentalShop {
     // Shop state fields
@@ -29,45 +38,199 @@ public class RentalShop {
     private Map<String, RentedRecord> rentedVehicles = new HashMap<>();
     // Transaction log
     private List<Transaction> transactions = new ArrayList<>();
-    // Shop cash
-    private double cashEarned = 0.0;
+    // Shop cash and the total not charged because of discounts, in cents (see Money)
+    private long cashEarnedCents = 0;
+    private long discountLostCents = 0;
     // File to persist shop state
     private String shopStateBin;   // e.g. "SanJose.ser"
     private String shopStateTxt;   // e.g. "SanJose.txt"
-    private static final String RENTED_REGISTRY = "rented_registry.txt";
+    // Writes the state files in the background, grouping the fsync of commands that arrive together
+    private StateCommitter committer;
+    // Registry of the vehicles rented by every shop, split in shards by plate (rented_registry.<n>.txt)
+    private static final String RENTED_REGISTRY = "rented_registry";
+    // Version of the .ser snapshot format, written first so older snapshots (which start with the inventory map) can still be loaded
+    private static final int STATE_VERSION = 3;
+    private ShardedRegistry rentedRegistry;
+    // Where every plate is (lot, shop inventory or rented), kept up to date for LotManager --locate
+    private PlateIndex plateIndex;
+    // Prices of RETURN, compiled from pricing_rules.cfg (or the standard $1/km with 10% lot discount)
+    private PricingEngine pricing;
+    // Source of the rent and return times
+    private Clock clock = Clock.systemUTC();
+    // Open rentals ordered by rent time (oldest first), for OVERDUE and UTILIZATION. Not saved, it is rebuilt from rentedVehicles on load.
+    private NavigableSet<RentedRecord> openRentals = new TreeSet<>(RENTED_AT_ORDER);
+    private static final Comparator<RentedRecord> RENTED_AT_ORDER =
+            Comparator.<RentedRecord>comparingLong(r -> r.rentedAt)
+                    // Search keys (used for range scans) have no vehicle and sort before the records with the same time
+                    .thenComparing(r -> r.vehicle == null ? "" : r.vehicle.getLicensePlate());
+    private static final long HOUR_MILLIS = 3_600_000L;
+    // Shop inventory ordered by kilometers since the last service, per type. Not saved, it is rebuilt from shopInventory on load.
+    private MaintenanceQueue maintenance = new MaintenanceQueue();
+    // Rented vehicles per type, so the capacity of a type for reservations is known without going through every rental
+    private Map<String, Integer> rentedByType = new HashMap<>();
+    // Future bookings (RESERVE), saved in the .ser snapshot since version 3
+    private ReservationBook reservations = new ReservationBook(clock.millis());
+    // Customers waiting for a vehicle (RENT <type> WAIT <seconds>), and the one queued by the command being processed
+    private final RentWaitQueue waitQueue = new RentWaitQueue();
+    private RentWaitQueue.Waiter queuedWaiter;
+    // WAIT only waits when other threads can run commands (ShopServer): on the stdin loop or the Swing event thread the waiting
+    // thread is the only one that could run the RETURN that wakes the customer up, so there it is turned down
+    private volatile boolean waitingAllowed;
+    // Wakes the waiting customers when one of our lots is written in this JVM, removed by close()
+    private Consumer<String> lotCommitListener;
+    // Occupied slots, lot I/O latency and the RENT/RETURN admission decisions (see CapacityManager)
+    private final CapacityManager capacity = new CapacityManager();
+    // Events of the current command, appended to the event log when the state is saved (see EventLog)
+    private List<EventLog.Event> pendingEvents = new ArrayList<>();
+    // Lot the last vehicle taken by requestVehicleFromLots came from
+    private String lastLot = "";
+    // With --record every command is written to a recording (see CommandRecorder), the clock then moves once per command
+    private CommandRecorder recorder;
+    private CommandRecorder.SteppedClock recordingClock;
+    private long commandSequence = 0;
+    // Printed instead of a silent acknowledgement when the state of a command could not be written to disk
+    static final String SAVE_FAILED = "ERROR: The shop state could not be saved, this command is not durable and is lost on a crash.";
 
     public String executeCommand(String command) {
-        // Capture System.out output, redirecting to a ByteArrayOutputStream, this is useful for testing purposes, as we can check the output of the commands
+        // Capture the output of the command in a ByteArrayOutputStream, this is useful for testing purposes, as we can check the output of the commands
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        // Redirect System.out to the ByteArrayOutputStream, this allows us to capture the output of the commands and return it as a string
-        PrintStream  ps   = new PrintStream(baos);
-        // Save the old System.out to restore it later
-        PrintStream  old  = System.out;
-        System.setOut(ps);
-
-        // Process the command
-        processCommand(command);
-        saveState();
-
-        // Restores System.out and returns the captured output, what flush does is to ensure that all the data in the stream is written out
-        // This is important to ensure that all the data is written out before we return it
-        System.out.flush();
-        // Restore the old System.out
-        System.setOut(old);
+        // The command writes to this PrintStream directly, so System.out is never redirected and several shops can run commands at the same time
+        PrintStream ps = new PrintStream(baos);
+        executeCommand(command, ps);
+        // flush ensures that all the data in the stream is written out before we return it
+        ps.flush();
         // Convert the ByteArrayOutputStream to a string and return it
         return baos.toString();
     }
+
+    // Process one command writing its response to the given stream, then persist the state.
+    // The command runs while holding the shop lock because the network front end (ShopServer) runs one thread per connection against the same shop,
+    // but waiting for the disk happens outside of it, so commands from other connections can share the same fsync.
+    // A RENT that has to wait for a vehicle waits here too, after its first attempt was saved and without the shop lock.
+    public void executeCommand(String command, PrintStream out) {
+        // CAPACITY only reads atomic counters, it answers even while another terminal holds the shop lock on a slow lot.
+        // It changes nothing and its numbers depend on timing, so it is not saved nor recorded.
+        if (command.trim().equalsIgnoreCase("CAPACITY")) {
+            out.print(capacity.report());
+            return;
+        }
+        long ticket;
+        RentWaitQueue.Waiter waiter;
+        // While recording, the output is also checksummed so a replay can tell if it printed the same
+        CRC32 outputCrc = null;
+        PrintStream target = out;
+        if (recorder != null) {
+            outputCrc = new CRC32();
+            target = new PrintStream(new CheckedOutputStream(out, outputCrc), true);
+        }
+        long sequence = 0;
+        long time = 0;
+        synchronized (this) {
+            if (recorder != null) {
+                time = System.currentTimeMillis();
+                recordingClock.set(time);
+                sequence = ++commandSequence;
+            }
+            processCommand(command, target);
+            ticket = saveState();
+            waiter = queuedWaiter;
+            queuedWaiter = null;
+        }
+        boolean saved = committer.awaitDurable(ticket);
+        if (!saved) {
+            target.println(SAVE_FAILED);
+        }
+        if (waiter != null) {
+            waitForVehicle(waiter, target);
+        }
+        if (recorder != null) {
+            target.flush();
+            recorder.recordCommand(time, location, sequence, outputCrc.getValue(), command);
+        }
+    }
+
+    // Starts writing every command to a recording, see CommandRecorder
+    synchronized void startRecording(String fileName, String pricingRules, String durability) {
+        recordingClock = new CommandRecorder.SteppedClock(System.currentTimeMillis());
+        clock = recordingClock;
+        recorder = new CommandRecorder(fileName);
+        recorder.recordStart(recordingClock.millis(), location, spacesAvailable, lotNames, pricingRules, durability);
+    }
+
+    synchronized void usePricingRules(String fileName) {
+        pricing = PricingEngine.load(fileName);
+    }
+
+    // Writes whatever the committer still has pending and stops listening to lot commits. Called when a shop of a longer-lived JVM
+    // (CommandReplay, SimulationHarness, CarRentalUI) is done, so it is not kept alive and signalled by every later lot commit.
+    synchronized void close() {
+        if (lotCommitListener != null) {
+            LotFile.removeCommitListener(lotCommitListener);
+            lotCommitListener = null;
+        }
+        committer.close();
+    }
+
+    // RENT ... WAIT can wait, the commands come from several threads (ShopServer)
+    void allowWaiting() {
+        waitingAllowed = true;
+    }
+
+    // Waits until the customer is first in the queue of its type and something changed, then tries the RENT again.
+    private void waitForVehicle(RentWaitQueue.Waiter waiter, PrintStream out) {
+        try {
+            // While the lots are throttled the first customer also tries again every few moments, no RETURN may come to wake it up
+            while (waitQueue.awaitTurn(waiter, capacity.lotsThrottled()
+                    ? TimeUnit.MILLISECONDS.toNanos(CapacityManager.THROTTLED_RETRY_MS) : Long.MAX_VALUE)) {
+                long ticket;
+                boolean rented;
+                // The messages of a failed try are thrown away, the customer keeps waiting
+                ByteArrayOutputStream attempt = new ByteArrayOutputStream();
+                synchronized (this) {
+                    rented = rentVehicle(waiter.getType(), new PrintStream(attempt, true), false);
+                    ticket = saveState();
+                }
+                if (rented) {
+                    waitQueue.leave(waiter);
+                    boolean saved = committer.awaitDurable(ticket);
+                    out.print(attempt);
+                    if (!saved) {
+                        out.println(SAVE_FAILED);
+                    }
+                    return;
+                }
+            }
+            out.println("RENT: No " + waiter.getType() + " became available in time.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            out.println("RENT: Stopped waiting for a " + waiter.getType() + ".");
+        }
+        waitQueue.leave(waiter);
+    }
+
+    // Changes how state files are persisted: "command" (default), "interval:<ms>" or "os". See StateCommitter.
+    public synchronized void setDurability(String mode) {
+        StateCommitter next = StateCommitter.fromFlag(shopStateBin, shopStateTxt, mode);
+        // Closing the old committer writes whatever it still had pending
+        committer.close();
+        committer = next;
+        // Only COMMAND promises that an acknowledged rental survives a power loss, its registry line must too
+        rentedRegistry.setForced(next.getDurability() == StateCommitter.Durability.COMMAND);
+    }
     
-    // Inner class to store rental record (vehicle + discount flag)
+    // Inner class to store rental record (vehicle + discount flag + rent time)
     private static class RentedRecord implements Serializable {
         // Serial version UID for serialization, this means that the class can be serialized and deserialized
         private static final long serialVersionUID = 1L;
         // Vehicle object and a flag indicating if the vehicle came from a lot (thus discount applies)
         Vehicle vehicle;
         boolean discountApplied; // true if vehicle came from a lot (thus discount applies)
-        public RentedRecord(Vehicle vehicle, boolean discountApplied){
+        // When the vehicle was rented (epoch milliseconds), 0 if unknown (records saved before it was recorded)
+        long rentedAt;
+        public RentedRecord(Vehicle vehicle, boolean discountApplied, long rentedAt){
             this.vehicle = vehicle;
             this.discountApplied = discountApplied;
+            this.rentedAt = rentedAt;
         }
     }
 
@@ -81,28 +244,30 @@ public class RentalShop {
     In this case, a shared lock is used (`lock(0L, Long.MAX_VALUE, true)`) to safely read the file without allowing other processes to write to it simultaneously. 
     The method reads the global registry file to synchronize the shop's rented vehicles with the global state, ensuring consistency. 
     Any rented vehicles in the shop that are not present in the global registry are removed to avoid discrepancies.
+    Now that the registry is sharded, each rented plate is only looked up in the shard that owns it.
     */
     private void syncWithGlobalRegistryOnStartup() { // AI generated
         Set<String> globalPlates = new HashSet<>(); // AI generated
-        File file = new File(RENTED_REGISTRY); // AI generated
-        if (file.exists()) { // AI generated
-            try (RandomAccessFile raf = new RandomAccessFile(file, "r"); // AI generated
-                FileChannel ch = raf.getChannel(); // AI generated
-                FileLock lock = ch.lock(0L, Long.MAX_VALUE, true)) { // AI generated
-                String line; // AI generated
-                while ((line = raf.readLine()) != null) { // AI generated
-                    String[] parts = line.split(","); // AI generated
-                    if (parts.length>=1) globalPlates.add(parts[0]); // AI generated
-                }
-            } catch (IOException e) { // AI generated
-                System.err.println("Error reading global registry: " + e.getMessage()); // AI generated
+        try {
+            for (String plate : rentedVehicles.keySet()) {
+                if (rentedRegistry.find(plate) != null) globalPlates.add(plate);
             }
+        } catch (IOException e) {
+            System.err.println("Error reading global registry: " + e.getMessage());
+            return;
         }
         rentedVehicles.keySet().removeIf(plate -> !globalPlates.contains(plate)); // AI generated
     }
     
     // The constructor initializes the rental shop with a location, available spaces, and associated lots.
     public RentalShop(String location, int spacesAvailable, List<String> lotNames) {
+        this(location, spacesAvailable, lotNames, Clock.systemUTC());
+    }
+
+    // CommandReplay gives the shop a clock set to the recorded time of every command
+    RentalShop(String location, int spacesAvailable, List<String> lotNames, Clock clock) {
+        this.clock = clock;
+        this.reservations = new ReservationBook(clock.millis());
         // Validate input
         this.location = location;
         this.spacesAvailable = spacesAvailable;
@@ -111,6 +276,11 @@ public class RentalShop {
         // The .ser file is used for binary serialization, while the .txt file is a human-readable format
         this.shopStateBin = location + ".ser";
         this.shopStateTxt = location + ".txt";
+        this.committer = StateCommitter.fromFlag(shopStateBin, shopStateTxt, "command");
+        this.rentedRegistry = new ShardedRegistry(RENTED_REGISTRY);
+        rentedRegistry.setForced(true); // "command" durability, see setDurability
+        this.plateIndex = new PlateIndex();
+        this.pricing = PricingEngine.loadDefault();
         
         // Load shop state if it exists; otherwise, initialize.
         if (new File(shopStateTxt).exists()) {
@@ -120,11 +290,27 @@ public class RentalShop {
             loadState();
             // Synchronize the rented vehicles with the global registry
             syncWithGlobalRegistryOnStartup();
-            writeHumanState();
+            rebuildOpenRentals();
+            maintenance = MaintenanceQueue.of(shopInventory.values(), MaintenanceQueue.SERVICE_INTERVAL_KM);
+            if (!committer.awaitDurable(saveState())) {
+                System.err.println(SAVE_FAILED);
+            }
         } else {
             // Initialize the shop with the provided location, spaces, and lots
             initializeInventory();
+            flushEvents();
+        }
+        capacity.reset(this.spacesAvailable, shopInventory.size() + rentedVehicles.size());
+        // Vehicles put in one of our lots by this JVM (another shop, LotManager run in-process) wake the waiting customers.
+        // Lots written by other processes (no polling) are only seen at the next RETURN or in-JVM lot write.
+        Set<String> lotPaths = new HashSet<>();
+        for (String lotName : this.lotNames) {
+            lotPaths.add(LotFile.pathOf(lotName + ".txt"));
         }
+        lotCommitListener = path -> {
+            if (lotPaths.contains(path)) waitQueue.signalAll();
+        };
+        LotFile.addCommitListener(lotCommitListener);
     }
     
     // If no vehicle in shop, try to load one from lots.
@@ -137,6 +323,9 @@ public class RentalShop {
                 if(v != null){
                     // Add the vehicle to the shop inventory
                     shopInventory.put(v.getLicensePlate(), v);
+                    maintenance.add(v);
+                    plateIndex.record(v.getLicensePlate(), PlateIndex.SHOP, location);
+                    pendingEvents.add(EventLog.movedToShop(v, lastLot, location, clock.millis()));
                     // Add the vehicle to the global registry
                     System.out.println("Initialized shop with vehicle " + v.getLicensePlate() + " (" + v.getType() + ")");
                     break;
@@ -156,87 +345,87 @@ public class RentalShop {
         if (new File(loc + ".txt").exists()) {
             // If the shop state file exists, we load the state and run the command loop
             RentalShop shop = new RentalShop(loc, 0, List.of());
-            shop.runCommandLoop();
+            shop.run(flags);
         } else {
             // If the shop state file does not exist, we create a new shop with the provided location, spaces, and lots
             int spaces = Integer.parseInt(flags.getOrDefault("--spaces-available", "10"));
             List<String> lots = Arrays.asList(flags.getOrDefault("--lots","").split(","));
             RentalShop shop = new RentalShop(loc, spaces, lots);
-            shop.runCommandLoop();
+            shop.run(flags);
+        }
+    }
+
+    // Reads commands from stdin, or from the network when --serve=<port> is given
+    private void run(Map<String, String> flags) {
+        if (flags.containsKey("--pricing-rules")) {
+            usePricingRules(flags.get("--pricing-rules"));
+        }
+        if (flags.containsKey("--durability")) {
+            setDurability(flags.get("--durability"));
+        }
+        if (flags.containsKey("--lot-latency-limit")) {
+            capacity.setLatencyLimit(Long.parseLong(flags.get("--lot-latency-limit")));
+        }
+        if (flags.containsKey("--record")) {
+            startRecording(flags.get("--record"), flags.get("--pricing-rules"), flags.get("--durability"));
+        }
+        if (flags.containsKey("--serve")) {
+            int port = Integer.parseInt(flags.get("--serve").isEmpty() ? "5050" : flags.get("--serve"));
+            new ShopServer(this, port).serve();
+        } else {
+            runCommandLoop();
         }
     }
     
     // Add a rented vehicle to the global registry.
-    private void addToGlobalRegistry(String plate, String type, boolean discount) {
-        // Append the vehicle to the rented registry file with a lock
-        File file = new File(RENTED_REGISTRY);
-        // Access the file with a lock to ensure no other process is writing to it at the same time
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            // Acquire a lock on the file to prevent concurrent writes
-            FileChannel ch = raf.getChannel();
-            FileLock lock = ch.lock()) {
-            // Move to the end of the file to append the new vehicle
-            raf.seek(raf.length());
-            // Write the vehicle information to the file
-            raf.writeBytes(String.format("%s,%s,%b%n", plate, type, discount));
+    private void addToGlobalRegistry(String plate, String type, boolean discount, long rentedAt) {
+        // Append the vehicle to the shard that owns the plate, the registry locks only that shard
+        try {
+            rentedRegistry.append(plate, plate + "," + type + "," + discount + "," + rentedAt);
         } catch (IOException e) {
             System.err.println("Error writing to rented registry: " + e.getMessage());
         }
     }
 
     /** Search and remove a rented vehicle from the global registry.
-    @return a RentedRecord if it was found or null if it is not registeredx */
+    @return a RentedRecord if it was found or null if it is not registered */
     private RentedRecord fetchFromGlobalRegistry(String plate) {
-        File file = new File(RENTED_REGISTRY);
-        // Check if the file exists before trying to read it
-        if (!file.exists()) return null;
-        List<String> lines = new ArrayList<>();
-        RentedRecord found = null;
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-            FileChannel ch = raf.getChannel();
-            FileLock lock = ch.lock()) {
-            // Move to the beginning of the file to read all lines
-            raf.seek(0);
-            String line;
-            // Read each line and check if the vehicle is found
-            while ((line = raf.readLine()) != null) {
-                String[] parts = line.split(",");
-                // Check if the line has enough parts to avoid ArrayIndexOutOfBoundsException
-                if (parts[0].equals(plate) && found == null) {
-                    // If the vehicle is found, create a RentedRecord and set it to found
-                    boolean discount = Boolean.parseBoolean(parts[2]);
-                    found = new RentedRecord(new Vehicle(plate, parts[1], 0), discount);
-                } else {
-                    lines.add(line);
-                }
-            }
-            // rewrite the file without the found vehicle
-            raf.setLength(0);
-            for (String l : lines) raf.writeBytes(l + System.lineSeparator());
+        try {
+            // Only the shard of the plate is read and rewritten
+            String line = rentedRegistry.take(plate);
+            if (line == null) return null;
+            String[] parts = line.split(",");
+            // Check if the line has enough parts to avoid ArrayIndexOutOfBoundsException
+            if (parts.length < 3) return null;
+            boolean discount = Boolean.parseBoolean(parts[2]);
+            // Lines written before the rent time was recorded only have 3 fields
+            long rentedAt = parts.length > 3 ? Long.parseLong(parts[3]) : 0;
+            return new RentedRecord(new Vehicle(plate, parts[1], 0), discount, rentedAt);
         } catch (IOException e) {
             System.err.println("Error reading rented registry: " + e.getMessage());
+            return null;
         }
-        return found;
     }
     
     // Interactive command loop.
     private void runCommandLoop(){
         Scanner scanner = new Scanner(System.in);
-        System.out.println("Rental Shop at " + location + " ready. Type commands (RENT, RETURN, LIST, TRANSACTIONS). Type EXIT to quit.");
+        System.out.println("Rental Shop at " + location + " ready. Type commands (RENT, RETURN, LIST, TRANSACTIONS, EXPORT, OVERDUE, UTILIZATION, MAINTENANCE, SERVICE, RESERVE, AVAILABLE, PICKUP, CANCEL, RESERVATIONS, ARCHIVE, CAPACITY). Type EXIT to quit.");
         while(true){
             System.out.print("> ");
             String input = scanner.nextLine();
             if(input == null || input.trim().equalsIgnoreCase("EXIT")){
                 break;
             }
-            processCommand(input.trim());
-            saveState();
+            executeCommand(input.trim(), System.out);
         }
         scanner.close();
+        // Make sure the last snapshot is on disk before the process ends
+        close();
     }
     
     // Process one command.
-    private void processCommand(String input){
+    private void processCommand(String input, PrintStream out){
         // Split the input into tokens
         String[] tokens = input.split("\\s+");
         if(tokens.length == 0) return;
@@ -244,161 +433,569 @@ public class RentalShop {
         switch(command){
             case "RENT":
                 if(tokens.length < 2){
-                    System.out.println("Usage: RENT <VEHICLE TYPE>");
+                    out.println("Usage: RENT <VEHICLE TYPE> [WAIT <SECONDS>]");
+                } else if(tokens.length >= 4 && tokens[2].equalsIgnoreCase("WAIT")){
+                    try {
+                        long seconds = Long.parseLong(tokens[3]);
+                        if(seconds <= 0 || seconds > RentWaitQueue.MAX_WAIT_SECONDS){
+                            out.println("Invalid seconds value (1 to " + RentWaitQueue.MAX_WAIT_SECONDS + ").");
+                        } else {
+                            rentOrWait(tokens[1].toUpperCase(), seconds, out);
+                        }
+                    } catch(NumberFormatException e){
+                        out.println("Invalid seconds value.");
+                    }
                 } else {
-                    rentVehicle(tokens[1].toUpperCase());
+                    rentOrWait(tokens[1].toUpperCase(), 0, out);
                 }
                 break;
             case "RETURN":
                 if(tokens.length < 3){
-                    System.out.println("Usage: RETURN <LICENSE PLATE> <KILOMETERS>");
+                    out.println("Usage: RETURN <LICENSE PLATE> <KILOMETERS>");
                 } else {
                     try {
                         int km = Integer.parseInt(tokens[2]);
-                        returnVehicle(tokens[1].toUpperCase(), km);
+                        returnVehicle(tokens[1].toUpperCase(), km, out);
                     } catch(NumberFormatException e){
-                        System.out.println("Invalid kilometers value.");
+                        out.println("Invalid kilometers value.");
                     }
                 }
                 break;
             case "LIST":
-                listShopState();
+                listShopState(out);
                 break;
             case "TRANSACTIONS":
-                listTransactions();
+                listTransactions(out);
+                break;
+            case "EXPORT":
+                exportTransactions(tokens.length > 1 ? tokens[1] : location + ".txcol", out);
+                break;
+            case "OVERDUE":
+                if(tokens.length < 2){
+                    out.println("Usage: OVERDUE <HOURS>");
+                } else {
+                    try {
+                        listOverdue(Double.parseDouble(tokens[1]), out);
+                    } catch(NumberFormatException e){
+                        out.println("Invalid hours value.");
+                    }
+                }
+                break;
+            case "RESERVE":
+            case "AVAILABLE":
+                if(tokens.length < 4){
+                    out.println("Usage: " + command + " <VEHICLE TYPE> <FROM> <TO> (dates as yyyy-mm-dd or yyyy-mm-ddThh:mm)");
+                } else {
+                    try {
+                        long from = parseTime(tokens[2], false);
+                        long to = parseTime(tokens[3], true);
+                        if(command.equals("RESERVE")){
+                            reserveVehicle(tokens[1].toUpperCase(), from, to, out);
+                        } else {
+                            showAvailability(tokens[1].toUpperCase(), from, to, out);
+                        }
+                    } catch(DateTimeParseException e){
+                        out.println("Invalid date: " + e.getParsedString());
+                    }
+                }
+                break;
+            case "PICKUP":
+            case "CANCEL":
+                if(tokens.length < 2){
+                    out.println("Usage: " + command + " <RESERVATION ID>");
+                } else {
+                    try {
+                        int id = Integer.parseInt(tokens[1].toUpperCase().replaceFirst("^R", ""));
+                        if(command.equals("PICKUP")){
+                            pickupReservation(id, out);
+                        } else {
+                            cancelReservation(id, out);
+                        }
+                    } catch(NumberFormatException e){
+                        out.println("Invalid reservation id.");
+                    }
+                }
+                break;
+            case "RESERVATIONS":
+                listReservations(out);
+                break;
+            case "MAINTENANCE":
+                listMaintenance(out);
+                break;
+            case "SERVICE":
+                if(tokens.length < 2){
+                    out.println("Usage: SERVICE <LICENSE PLATE>");
+                } else {
+                    serviceVehicle(tokens[1].toUpperCase(), out);
+                }
+                break;
+            case "ARCHIVE":
+                if(tokens.length < 2){
+                    out.println("Usage: ARCHIVE <DAYS>");
+                } else {
+                    try {
+                        double days = Double.parseDouble(tokens[1]);
+                        // NaN and negative days would make a cutoff in the future and archive every transaction
+                        if(Double.isNaN(days) || days < 0){
+                            out.println("Invalid days value.");
+                        } else {
+                            archiveTransactions(days, out);
+                        }
+                    } catch(NumberFormatException e){
+                        out.println("Invalid days value.");
+                    }
+                }
+                break;
+            case "UTILIZATION":
+                try {
+                    showUtilization(tokens.length > 1 ? Double.parseDouble(tokens[1]) : 24, out);
+                } catch(NumberFormatException e){
+                    out.println("Invalid hours value.");
+                }
                 break;
             default:
-                System.out.println("Unknown command.");
+                out.println("Unknown command.");
         }
     }
     
-    // RENT command: check for available vehicle or request one from lots.
-    private void rentVehicle(String vehicleType){
-        int currentEmptySlots = spacesAvailable - (shopInventory.size() + rentedVehicles.size());
-        while (currentEmptySlots == 0) { // Block if no empty slots
-            System.out.println("Cannot rent more vehicles because there are no empty slots!");
+    // RENT command: customers already waiting for the type go first, otherwise try now and, if it fails and the customer
+    // accepts to wait, put them at the end of the queue (the waiting itself happens in executeCommand, outside the shop lock).
+    private void rentOrWait(String vehicleType, long waitSeconds, PrintStream out){
+        int waiting = waitQueue.waiting(vehicleType);
+        if(waiting == 0 && rentVehicle(vehicleType, out, false)){
+            return;
+        }
+        if(waitSeconds > 0 && !waitingAllowed){
+            out.println("RENT: WAIT is only available through the shop server (--serve), here nobody else could return a vehicle while waiting.");
+            return;
+        }
+        if(waitSeconds <= 0){
+            if(waiting > 0){
+                out.println("RENT: " + waiting + " customers are already waiting for a " + vehicleType + ".");
+            }
+            return;
+        }
+        RentWaitQueue.Waiter waiter = waitQueue.enqueue(vehicleType, waitSeconds, TimeUnit.SECONDS);
+        if(waiter == null){
+            out.println("RENT: Too many customers are waiting for a " + vehicleType + ", try again later.");
             return;
         }
+        queuedWaiter = waiter;
+        out.println("RENT: Waiting up to " + waitSeconds + " seconds for a " + vehicleType + " (position " + waitQueue.positionOf(waiter) + ").");
+    }
 
-        Vehicle vehicle = null;
-        // Look in shop inventory.
-        for(Vehicle v : shopInventory.values()){
-            if(v.getType().equalsIgnoreCase(vehicleType)){
-                vehicle = v;
-                break;
+    // RENT command: check for available vehicle or request one from lots. Returns true if a vehicle was rented.
+    // A PICKUP of a reservation may take the vehicles that are held back for reservations, a walk-in RENT may not.
+    private boolean rentVehicle(String vehicleType, PrintStream out, boolean pickup){
+        if (!capacity.admitRent()) { // RENT WAIT waits in the queue instead of blocking here
+            out.println("Cannot rent more vehicles because there are no empty slots!");
+            return false;
+        }
+
+        // Look in shop inventory, the vehicle of that type with the fewest kilometers since its service is rented first.
+        Vehicle vehicle = maintenance.leastWorn(vehicleType);
+        // Walk-ins leave in the shop the vehicles booked for the next hours
+        if(vehicle != null && !pickup){
+            int held = reservations.heldNow(vehicleType, clock.millis());
+            if(held > 0 && maintenance.countOf(vehicleType) <= held){
+                out.println("RENT: The " + vehicleType + " vehicles in the shop are held for reservations, trying the lots.");
+                vehicle = null;
             }
         }
         boolean discountApplied = false;
+        String fromLot = "";
         if(vehicle != null){
             // Vehicle found in shop inventory.
             // Remove it from the inventory.
             shopInventory.remove(vehicle.getLicensePlate());
-            System.out.println("RENT: Provided vehicle " + vehicle.getLicensePlate() + " (" + vehicle.getType() + ") from shop inventory.");
+            maintenance.remove(vehicle);
+            out.println("RENT: Provided vehicle " + vehicle.getLicensePlate() + " (" + vehicle.getType() + ") from shop inventory.");
         } else {
-            // Request from lots.
+            // Request from lots, unless they are too slow right now (RENT WAIT queues the customer, a plain RENT is turned away).
+            if(!capacity.admitLotRent()){
+                out.println("RENT: The lots are busy (lot I/O averages " + TimeUnit.NANOSECONDS.toMillis(capacity.lotLatencyNanos())
+                        + " ms), no " + vehicleType + " in the shop. Try again later.");
+                return false;
+            }
+            // The slot is taken before going to the lots, so two counters can never bring more vehicles than there are slots
+            if(!capacity.tryTakeSlot()){
+                out.println("Cannot rent more vehicles because there are no empty slots!");
+                return false;
+            }
             vehicle = requestVehicleFromLots(vehicleType);
             if(vehicle != null){
                 discountApplied = true;
-                System.out.println("RENT: Obtained vehicle " + vehicle.getLicensePlate() + " (" + vehicle.getType() + ") from lot with 10% discount.");
+                fromLot = lastLot;
+                out.println("RENT: Obtained vehicle " + vehicle.getLicensePlate() + " (" + vehicle.getType() + ") from lot with lot discount.");
             } else {
-                System.out.println("RENT: No available vehicle of type " + vehicleType + " in shop or lots.");
-                return;
+                capacity.releaseSlot();
+                out.println("RENT: No available vehicle of type " + vehicleType + " in shop or lots.");
+                return false;
             }
         }
-        // Record the rented vehicle.
-        rentedVehicles.put(vehicle.getLicensePlate(), new RentedRecord(vehicle, discountApplied));
+        capacity.rentDone();
+        // Record the rented vehicle with the time it left.
+        RentedRecord record = new RentedRecord(vehicle, discountApplied, clock.millis());
+        rentedVehicles.put(vehicle.getLicensePlate(), record);
+        openRentals.add(record);
+        rentedByType.merge(vehicle.getType(), 1, Integer::sum);
         // Add the rented vehicle to the global registry.
-        addToGlobalRegistry(vehicle.getLicensePlate(), vehicle.getType(), discountApplied);
+        addToGlobalRegistry(vehicle.getLicensePlate(), vehicle.getType(), discountApplied, record.rentedAt);
+        plateIndex.record(vehicle.getLicensePlate(), PlateIndex.RENTED, location);
+        pendingEvents.add(EventLog.rented(vehicle, fromLot, location, record.rentedAt));
+        return true;
     }
     
     // RETURN command: update kilometers, compute charge, and update shop cash.
-    private void returnVehicle(String licensePlate, int kilometers){
+    private void returnVehicle(String licensePlate, int kilometers, PrintStream out){
         // Check if the vehicle is rented from this shop.
         RentedRecord record = rentedVehicles.remove(licensePlate);
-        if (record == null) {
+        boolean newVehicle = false;
+        if (record != null) {
+            openRentals.remove(record);
+            rentedByType.merge(record.vehicle.getType(), -1, Integer::sum);
+            // The registry line must go too, otherwise another shop could still "return" the vehicle (Reconciler reports those lines)
+            fetchFromGlobalRegistry(licensePlate);
+        } else {
             // If not found, check the global registry.
             record = fetchFromGlobalRegistry(licensePlate);
             if (record == null) {
-                System.out.println("RETURN: Vehicle " + licensePlate + " is not rented by any shop.");
+                out.println("RETURN: Vehicle " + licensePlate + " is not rented by any shop.");
                 return;
             }
+            // Rented by another shop, it takes a new slot here
+            newVehicle = true;
         }
+        // Returns are always accepted, even when the shop is full or the lots are throttled
+        capacity.returnAccepted(newVehicle);
         Vehicle vehicle = record.vehicle;
+        int kmBefore = vehicle.getKmSinceService();
         vehicle.addKilometers(kilometers);
-        // Compute charge: $1 per km, discount applies if vehicle came from a lot.
-        double charge = kilometers;
-        // If a discount was applied, reduce the charge by 10%.
-        if(record.discountApplied){
-            double discount = 0.10 * charge;
-            charge -= discount;
-        }
-        cashEarned += charge;
-        transactions.add(new Transaction(licensePlate, kilometers, record.discountApplied, charge));
-        System.out.println("RETURN: Vehicle " + licensePlate + " returned. Km added: " + kilometers + ". Charge: $" + charge);
+        // Compute charge in cents with the pricing rules of the vehicle type, the lot discount applies if the vehicle came from a lot.
+        long now = clock.millis();
+        PricingEngine.Quote quote = pricing.quote(vehicle.getType(), kilometers, record.discountApplied, now);
+        long charge = quote.chargeCents;
+        long discount = quote.discountCents;
+        cashEarnedCents += charge;
+        discountLostCents += discount;
+        transactions.add(new Transaction(licensePlate, vehicle.getType(), kilometers, record.discountApplied, charge, discount, quote.rule,
+                record.rentedAt, now));
+        pendingEvents.add(EventLog.returned(vehicle, location, kilometers, charge, now));
+        out.println("RETURN: Vehicle " + licensePlate + " returned. Km added: " + kilometers + ". Charge: $" + Money.format(charge));
+        if(maintenance.crossedInterval(kmBefore, vehicle.getKmSinceService())){
+            out.println("MAINTENANCE: Vehicle " + licensePlate + " is due for service (" + vehicle.getKmSinceService() + " km since its last service).");
+        }
         
-        // Check parking: if after return the empty spots fall below 2, move one vehicle back to a lot.
-        int totalVehicles = shopInventory.size() + rentedVehicles.size();
-        int emptySpots = spacesAvailable - totalVehicles;
-        if(emptySpots < 2 && !shopInventory.isEmpty()){
-            // Select the vehicle with the highest kilometers.
-            Vehicle toMove = Collections.max(shopInventory.values(), Comparator.comparingInt(Vehicle::getKilometers));
+        // Check parking: if after return the empty spots fall below 2, move one vehicle back to a lot (CapacityManager decides,
+        // while the lots are throttled it waits until the shop is over its spaces).
+        if(!shopInventory.isEmpty() && capacity.shouldMoveToLot()){
+            // Select the vehicle with the most kilometers since its service, the lot is where it can be serviced.
+            Vehicle toMove = maintenance.mostWorn();
             shopInventory.remove(toMove.getLicensePlate());
+            maintenance.remove(toMove);
             String targetLot = lotNames.get(0);  // For simplicity, return to the first lot.
             returnVehicleToLot(toMove, targetLot);
-            System.out.println("RETURN: Moved vehicle " + toMove.getLicensePlate() + " (" + toMove.getType() + ") to lot " + targetLot + " due to low parking space.");
+            capacity.vehicleMovedOut();
+            plateIndex.record(toMove.getLicensePlate(), PlateIndex.LOT, targetLot);
+            pendingEvents.add(EventLog.movedToLot(toMove, location, targetLot, now));
+            out.println("RETURN: Moved vehicle " + toMove.getLicensePlate() + " (" + toMove.getType() + ") to lot " + targetLot + " due to low parking space.");
         }
         // Finally, add the returned vehicle to the shop inventory.
         shopInventory.put(licensePlate, vehicle);
-        rentedVehicles.remove(licensePlate);
+        maintenance.add(vehicle);
+        plateIndex.record(licensePlate, PlateIndex.SHOP, location);
+        // A vehicle (and maybe a parking slot) is available, the first customer waiting for each type tries again
+        waitQueue.signalAll();
     }
     
     // LIST command: display shop state.
-    private void listShopState(){
-        System.out.println("----- Shop State (" + location + ") -----");
-        System.out.println("Parking Spaces Available: " + (spacesAvailable - (shopInventory.size() + rentedVehicles.size())));
-        System.out.println("Vehicles in Shop Inventory:");
+    private void listShopState(PrintStream out){
+        out.println("----- Shop State (" + location + ") -----");
+        out.println("Parking Spaces Available: " + (spacesAvailable - (shopInventory.size() + rentedVehicles.size())));
+        out.println("Vehicles in Shop Inventory:");
         for(Vehicle v : shopInventory.values()){
-            System.out.println("  " + v);
+            out.println("  " + v);
         }
-        System.out.println("Vehicles Rented Out:");
+        out.println("Vehicles Rented Out:");
         for(RentedRecord r : rentedVehicles.values()){
-            System.out.println("  " + r.vehicle);
+            out.println("  " + r.vehicle);
         }
-        System.out.println("Cash Earned: $" + cashEarned);
+        out.println("Cash Earned: $" + Money.format(cashEarnedCents));
     }
     
     // TRANSACTIONS command: list all return transactions and totals.
-    private void listTransactions(){
-        System.out.println("----- Transaction Log (" + location + ") -----");
-        double totalDiscount = 0;
+    private void listTransactions(PrintStream out){
+        out.println("----- Transaction Log (" + location + ") -----");
         for(Transaction t : transactions){
-            System.out.println(t);
-            if(t.isDiscountApplied()){
-                // Discount amount is implicit in the charge calculation.
-                double discount = (0.10 * t.getCharge()) / 0.90;
-                totalDiscount += discount;
+            out.println(t);
+        }
+        // Older transactions moved to the archive (ARCHIVE) are only counted, Archiver --transactions lists them
+        try {
+            long archived = Archiver.archivedTransactions(location);
+            if(archived > 0){
+                out.println("(" + archived + " older transactions are archived, see java carrental.Archiver --transactions=" + location + ")");
+            }
+        } catch(IOException e){
+            System.err.println("Error reading transaction archive: " + e.getMessage());
+        }
+        // Both totals are kept up to date on every RETURN, nothing is recomputed here.
+        out.println("Total Earnings: $" + Money.format(cashEarnedCents));
+        out.println("Total Lost Due To Discounts: $" + Money.format(discountLostCents));
+    }
+    
+    // ARCHIVE command: moves the transactions returned more than the given days ago to a compressed archive segment (see Archiver).
+    // They are a prefix of the list (it is in return order), the totals of the shop do not change.
+    private void archiveTransactions(double days, PrintStream out){
+        int n = firstReturnedAtOrAfter(clock.millis() - (long) (days * 24 * HOUR_MILLIS));
+        if(n == 0){
+            out.println("ARCHIVE: No transactions older than " + days + " days.");
+            return;
+        }
+        List<Transaction> old = transactions.subList(0, n);
+        try {
+            Path segment = Archiver.archiveTransactions(location, old);
+            out.println("ARCHIVE: Moved " + n + " transactions to " + segment + ", " + (transactions.size() - n) + " stay in the shop.");
+            // The saved state of this command no longer has them
+            old.clear();
+        } catch(IOException e){
+            System.err.println("Error archiving transactions: " + e.getMessage());
+        }
+    }
+
+    // OVERDUE command: list the vehicles rented more than the given hours ago, oldest first.
+    // Only the start of the index (the rentals older than the cutoff) is visited.
+    private void listOverdue(double hours, PrintStream out){
+        long now = clock.millis();
+        long cutoff = now - (long) (hours * HOUR_MILLIS);
+        out.println("----- Overdue Rentals (" + location + ", more than " + hours + " hours) -----");
+        int count = 0;
+        for(RentedRecord r : openRentals.headSet(new RentedRecord(null, false, cutoff), false)){
+            out.println("  " + r.vehicle.getLicensePlate() + " (" + r.vehicle.getType() + ") rented at "
+                    + Instant.ofEpochMilli(r.rentedAt) + ", out for " + formatHours(now - r.rentedAt) + " hours");
+            count++;
+        }
+        out.println("Overdue: " + count + " of " + openRentals.size() + " rented vehicles.");
+    }
+
+    // UTILIZATION command: share of the fleet's time spent rented during the last window hours.
+    // Open rentals rented before the window count the full window, so only the ones that started inside it are visited,
+    // and only the transactions returned inside the window are visited (they are in return time order).
+    private void showUtilization(double hours, PrintStream out){
+        long now = clock.millis();
+        long window = Math.max(1, (long) (hours * HOUR_MILLIS));
+        long windowStart = now - window;
+        // Open rentals that started inside the window
+        NavigableSet<RentedRecord> recent = openRentals.tailSet(new RentedRecord(null, false, windowStart), true);
+        int recentCount = 0;
+        long rentedMillis = 0;
+        for(RentedRecord r : recent){
+            rentedMillis += now - r.rentedAt;
+            recentCount++;
+        }
+        rentedMillis += (long) (openRentals.size() - recentCount) * window;
+        // Rentals that ended inside the window
+        int returned = 0;
+        for(int i = firstReturnedAtOrAfter(windowStart); i < transactions.size(); i++){
+            Transaction t = transactions.get(i);
+            rentedMillis += t.getReturnedAt() - Math.max(t.getRentedAt(), windowStart);
+            returned++;
+        }
+        // ARCHIVE moved the oldest ones out: when the window starts before the oldest transaction still here, the archived returns
+        // of the window are read too (a range query, only the last blocks of the archive are inflated)
+        if(transactions.isEmpty() || transactions.get(0).getReturnedAt() >= windowStart){
+            long oldest = transactions.isEmpty() ? now : transactions.get(0).getReturnedAt();
+            long[] archived = {0, 0};
+            try {
+                Archiver.forEachArchivedTransaction(location, windowStart, oldest - 1, t -> {
+                    archived[0] += t.getReturnedAt() - Math.max(t.getRentedAt(), windowStart);
+                    archived[1]++;
+                });
+                rentedMillis += archived[0];
+                returned += (int) archived[1];
+            } catch(IOException e){
+                out.println("Warning: the window reaches into the archived transactions, which could not be read (" + e.getMessage() + ").");
             }
         }
-        System.out.println("Total Earnings: $" + cashEarned);
-        System.out.println("Total Lost Due To Discounts: $" + totalDiscount);
+        int fleet = shopInventory.size() + rentedVehicles.size();
+        out.println("----- Utilization (" + location + ", last " + hours + " hours) -----");
+        out.println("Fleet: " + fleet + " vehicles, " + rentedVehicles.size() + " rented now, " + returned + " returned in the window.");
+        if(!openRentals.isEmpty()){
+            RentedRecord oldest = openRentals.first();
+            out.println("Oldest open rental: " + oldest.vehicle.getLicensePlate() + ", out for " + formatHours(now - oldest.rentedAt) + " hours");
+        }
+        double percent = fleet == 0 ? 0 : 100.0 * rentedMillis / ((double) fleet * window);
+        out.println("Rented vehicle-hours: " + formatHours(rentedMillis) + ", utilization: " + Math.round(percent * 10) / 10.0 + "%");
+    }
+
+    // Binary search of the first transaction returned at or after the given time (transactions are added in return order)
+    private int firstReturnedAtOrAfter(long time){
+        int lo = 0, hi = transactions.size();
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(transactions.get(mid).getReturnedAt() < time) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static String formatHours(long millis){
+        return String.valueOf(Math.round(millis / (double) HOUR_MILLIS * 10) / 10.0);
+    }
+
+    // Rebuilds the rent time index after loading a snapshot.
+    // Records saved before the rent time was recorded get the load time, so they are not reported as overdue since 1970.
+    private void rebuildOpenRentals(){
+        long now = clock.millis();
+        openRentals = new TreeSet<>(RENTED_AT_ORDER);
+        rentedByType = new HashMap<>();
+        for(RentedRecord r : rentedVehicles.values()){
+            if(r.rentedAt == 0) r.rentedAt = now;
+            openRentals.add(r);
+            rentedByType.merge(r.vehicle.getType(), 1, Integer::sum);
+        }
+    }
+
+    // Vehicles of a type the shop can promise: the ones in the shop and the ones rented out (they come back)
+    private int fleetOfType(String type){
+        return maintenance.countOf(type) + rentedByType.getOrDefault(type, 0);
+    }
+
+    // Parses "yyyy-mm-ddThh:mm" or "yyyy-mm-dd" in the local time zone. A day alone is its start, or its end when endOfDay is set
+    // (so "RESERVE SUV 2026-11-02 2026-11-02" books the whole day).
+    private static long parseTime(String text, boolean endOfDay){
+        ZoneId zone = ZoneId.systemDefault();
+        if(text.indexOf('T') >= 0){
+            return LocalDateTime.parse(text).atZone(zone).toInstant().toEpochMilli();
+        }
+        LocalDate day = LocalDate.parse(text);
+        return (endOfDay ? day.plusDays(1) : day).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    // RESERVE command: book a vehicle of a type for a future period.
+    private void reserveVehicle(String vehicleType, long from, long to, PrintStream out){
+        int capacity = fleetOfType(vehicleType);
+        ReservationBook.Reservation r = reservations.reserve(vehicleType, from, to, capacity, clock.millis());
+        if(r == null){
+            out.println("RESERVE: No " + vehicleType + " available for the whole period (the shop has " + capacity
+                    + ", bookings go up to " + ReservationBook.HORIZON_DAYS + " days ahead).");
+            return;
+        }
+        out.println("RESERVE: Reservation R" + r.getId() + " for a " + vehicleType + " from " + Instant.ofEpochMilli(r.getFromMillis())
+                + " to " + Instant.ofEpochMilli(r.getToMillis()) + " confirmed.");
+    }
+
+    // AVAILABLE command: how many vehicles of a type can still be booked for a period.
+    private void showAvailability(String vehicleType, long from, long to, PrintStream out){
+        int capacity = fleetOfType(vehicleType);
+        int free = reservations.available(vehicleType, from, to, capacity, clock.millis());
+        out.println("AVAILABLE: " + free + " of " + capacity + " " + vehicleType + " can be booked for the whole period.");
+    }
+
+    // PICKUP command: the customer of a reservation takes the vehicle, it becomes a normal rental.
+    private void pickupReservation(int id, PrintStream out){
+        long now = clock.millis();
+        ReservationBook.Reservation r = reservations.get(id);
+        if(r == null){
+            out.println("PICKUP: Reservation R" + id + " does not exist, was cancelled or is over.");
+            return;
+        }
+        if(now < r.getFromMillis() - ReservationBook.HOUR_MILLIS){
+            out.println("PICKUP: Reservation R" + id + " starts at " + Instant.ofEpochMilli(r.getFromMillis()) + ", it is too early.");
+            return;
+        }
+        if(rentVehicle(r.getType(), out, true)){
+            reservations.remove(id, now);
+            out.println("PICKUP: Reservation R" + id + " picked up.");
+        }
+    }
+
+    // CANCEL command: drop a reservation, its vehicle can be booked again.
+    private void cancelReservation(int id, PrintStream out){
+        ReservationBook.Reservation r = reservations.remove(id, clock.millis());
+        if(r == null){
+            out.println("CANCEL: Reservation R" + id + " does not exist, was cancelled or is over.");
+        } else {
+            out.println("CANCEL: Reservation R" + id + " cancelled.");
+            // The vehicle held for it can go to a waiting customer
+            waitQueue.signal(r.getType());
+        }
+    }
+
+    // RESERVATIONS command: list the open reservations.
+    private void listReservations(PrintStream out){
+        out.println("----- Reservations (" + location + ") -----");
+        for(ReservationBook.Reservation r : reservations.list()){
+            out.println("  R" + r.getId() + " " + r.getType() + " from " + Instant.ofEpochMilli(r.getFromMillis())
+                    + " to " + Instant.ofEpochMilli(r.getToMillis()));
+        }
+        out.println("Open reservations: " + reservations.list().size());
+    }
+
+    // MAINTENANCE command: list the vehicles in the shop that reached the service interval, most worn first.
+    private void listMaintenance(PrintStream out){
+        List<Vehicle> due = maintenance.due();
+        out.println("----- Maintenance Due (" + location + ", every " + maintenance.getServiceIntervalKm() + " km) -----");
+        for(Vehicle v : due){
+            out.println("  " + v + ", " + v.getKmSinceService() + " km since last service");
+        }
+        out.println("Due: " + due.size() + " of " + shopInventory.size() + " vehicles in the shop.");
+    }
+
+    // SERVICE command: record the service of a vehicle that is in the shop.
+    private void serviceVehicle(String licensePlate, PrintStream out){
+        Vehicle v = shopInventory.get(licensePlate);
+        if(v == null){
+            out.println("SERVICE: Vehicle " + licensePlate + " is not in the shop inventory.");
+            return;
+        }
+        int km = v.getKmSinceService();
+        maintenance.service(v);
+        out.println("SERVICE: Vehicle " + licensePlate + " serviced after " + km + " km.");
+    }
+
+    // EXPORT command: write the transactions to a columnar file for TransactionQuery.
+    private void exportTransactions(String fileName, PrintStream out){
+        try {
+            long rows = TransactionExporter.export(transactions, fileName);
+            out.println("Exported " + rows + " transactions to " + fileName + ".");
+        } catch(IOException e){
+            System.err.println("Error exporting transactions: " + e.getMessage());
+            out.println("Export failed.");
+        }
     }
     
     // --- Concurrency-Safe Lot File Operations ---
     
     // Request a vehicle from one of the associated lots using file locking.
+    // The lock is held from the read until the write, so two shops can never take the same vehicle.
+    // LotCache only reads the lot again when another process (or another writer of this one) changed it.
     private Vehicle requestVehicleFromLots(String vehicleType){
         for(String lotName : lotNames){
             String lotFile = lotName + ".txt";
-            List<Vehicle> lotVehicles = readLotFileWithLock(lotFile);
-            Iterator<Vehicle> iter = lotVehicles.iterator();
-            while(iter.hasNext()){
-                Vehicle v = iter.next();
-                if(v.getType().equalsIgnoreCase(vehicleType)){
+            // The time of the whole lot access (lock wait, read and write) goes to the lot I/O average of CapacityManager
+            long start = System.nanoTime();
+            try (FileLocks.Handle lock = FileLocks.lock(lotFile)) {
+                List<Vehicle> lotVehicles = LotCache.read(lotFile);
+                // The whole lot is read anyway, so the vehicle of the type with the fewest kilometers since its service is picked in the same pass.
+                int best = -1;
+                for(int i = 0; i < lotVehicles.size(); i++){
+                    Vehicle v = lotVehicles.get(i);
+                    if(v.getType().equalsIgnoreCase(vehicleType)
+                            && (best < 0 || v.getKmSinceService() < lotVehicles.get(best).getKmSinceService())){
+                        best = i;
+                    }
+                }
+                if(best >= 0){
                     // Remove vehicle from list and update the lot file.
-                    iter.remove();
-                    writeLotFileWithLock(lotFile, lotVehicles);
+                    Vehicle v = lotVehicles.remove(best);
+                    LotCache.write(lotFile, lotVehicles);
+                    lastLot = lotName;
                     return v;
                 }
+            } catch(IOException e){
+                System.err.println("Error updating lot file (" + lotFile + "): " + e.getMessage());
+            } finally {
+                capacity.recordLotIo(System.nanoTime() - start);
             }
         }
         return null;
@@ -407,122 +1004,119 @@ public class RentalShop {
     // Return a vehicle back to a specified lot using file locking.
     private void returnVehicleToLot(Vehicle vehicle, String lotName){
         String lotFile = lotName + ".txt";
-        List<Vehicle> lotVehicles = readLotFileWithLock(lotFile);
-        lotVehicles.add(vehicle);
-        writeLotFileWithLock(lotFile, lotVehicles);
-    }
-    
-    // Reads a lot file using file locking.
-    private List<Vehicle> readLotFileWithLock(String fileName){
-        List<Vehicle> vehicles = new ArrayList<>();
-        File file = new File(fileName);
-        if(!file.exists()){
-            return vehicles;
-        }
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-             FileChannel channel = raf.getChannel();
-             FileLock lock = channel.lock(0L, Long.MAX_VALUE, true)) {
-             
-            raf.seek(0);
-            String line;
-            while((line = raf.readLine()) != null){
-                String[] parts = line.split(",");
-                if(parts.length >= 3){
-                    String plate = parts[0].trim();
-                    String type = parts[1].trim();
-                    int km = Integer.parseInt(parts[2].trim());
-                    vehicles.add(new Vehicle(plate, type, km));
-                }
-            }
+        long start = System.nanoTime();
+        try (FileLocks.Handle lock = FileLocks.lock(lotFile)) {
+            List<Vehicle> lotVehicles = LotCache.read(lotFile);
+            lotVehicles.add(vehicle);
+            LotCache.write(lotFile, lotVehicles);
         } catch(IOException e){
-            System.err.println("Error reading lot file (" + fileName + "): " + e.getMessage());
-        }
-        return vehicles;
-    }
-    
-    // Writes a lot file using file locking.
-    private void writeLotFileWithLock(String fileName, List<Vehicle> vehicles){
-        File file = new File(fileName);
-        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
-             FileChannel channel = raf.getChannel();
-             FileLock lock = channel.lock()) {
-             
-            // Overwrite the file contents.
-            raf.setLength(0);
-            for(Vehicle v : vehicles){
-                raf.writeBytes(v.getLicensePlate() + "," + v.getType() + "," + v.getKilometers() + System.lineSeparator());
-            }
-        } catch(IOException e){
-            System.err.println("Error writing lot file (" + fileName + "): " + e.getMessage());
+            System.err.println("Error updating lot file (" + lotFile + "): " + e.getMessage());
+        } finally {
+            capacity.recordLotIo(System.nanoTime() - start);
         }
     }
     
     // Save the shop state using serialization.
-    private void saveState() {
+    // The snapshot is built here, while the shop lock is held, and handed to the committer which writes it to disk.
+    // Returns the ticket to wait for with committer.awaitDurable.
+    private long saveState() {
+        // The events go to the log before the state that contains them
+        flushEvents();
         // Save the shop state to a binary file and a human-readable text file.
-        saveBinaryState();
-        writeHumanState();
+        return committer.submit(saveBinaryState(), writeHumanState());
+    }
+
+    // Appends the events of the last command to the event log of the network
+    private void flushEvents() {
+        if (!pendingEvents.isEmpty()) {
+            EventLog.append(EventLog.FILE, pendingEvents);
+            pendingEvents.clear();
+        }
     }
     
     // 1) Binary snapshot for fast reload:
-    private void saveBinaryState() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(shopStateBin))) {
+    private byte[] saveBinaryState() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(baos)) {
             // Serialize the shop state
+            oos.writeObject(Integer.valueOf(STATE_VERSION));
             oos.writeObject(shopInventory);
             oos.writeObject(rentedVehicles);
             oos.writeObject(transactions);
-            oos.writeDouble(cashEarned);
+            oos.writeLong(cashEarnedCents);
             oos.writeInt(spacesAvailable);
-            oos.writeObject(lotNames);
+            // As an ArrayList: the Arrays.asList of main would write a String[], and the JVM computes the serialVersionUID of an
+            // array with SHA-1, that loads the security providers in the first save of every shop (startup time, see StartupBenchmark)
+            oos.writeObject(new ArrayList<>(lotNames));
+            // Version 2
+            oos.writeLong(discountLostCents);
+            // Version 3
+            oos.writeObject(reservations.toSave());
+            oos.writeInt(reservations.getNextId());
         } catch (IOException e) {
             System.err.println("Error saving binary state: " + e.getMessage());
         }
+        return baos.toByteArray();
     }
     
     // 2) Human‐readable dump for city.txt:
-    private void writeHumanState() {
-        try (PrintWriter pw = new PrintWriter(new FileWriter(shopStateTxt))) {
-            // Headers
-            pw.println("LOCATION: " + location);
-            pw.println("SPACES_AVAILABLE: " + spacesAvailable);
-            int empty = spacesAvailable - (shopInventory.size() + rentedVehicles.size());
-            pw.println("EMPTY_SLOTS: " + empty);
-            pw.println("CASH_EARNED: $" + String.format("%.2f", cashEarned));
-            pw.println();
-    
-            // Inventory
-            pw.println("INVENTORY:");
-            for (Vehicle v : shopInventory.values()) {
-                pw.printf("  %s,%s,%d%n",
-                    v.getLicensePlate(),
-                    v.getType(),
-                    v.getKilometers());
-            }
-            pw.println();
-    
-            // Rented vehicles
-            pw.println("RENTED_OUT:");
-            for (RentedRecord r : rentedVehicles.values()) {
-                pw.printf("  %s,%s,%d,discount=%s%n",
-                    r.vehicle.getLicensePlate(),
-                    r.vehicle.getType(),
-                    r.vehicle.getKilometers(),
-                    r.discountApplied ? "10%" : "0%");
-            }
-            pw.println();
-    
-            // Transactions
-            pw.println("TRANSACTIONS:");
-            for (Transaction t : transactions) {
-                pw.printf("  %s,%d,discount=%s,$%.2f%n",
-                    t.getLicensePlate(),
-                    t.getKilometers(),
-                    t.isDiscountApplied() ? "10%" : "0%",
-                    t.getCharge());
+    // It is built with one StringBuilder (no String.format / printf), because it is rebuilt after every command.
+    private String writeHumanState() {
+        String nl = System.lineSeparator();
+        StringBuilder sb = new StringBuilder(256 + 48 * (shopInventory.size() + rentedVehicles.size() + transactions.size()));
+        // Headers
+        sb.append("LOCATION: ").append(location).append(nl);
+        sb.append("SPACES_AVAILABLE: ").append(spacesAvailable).append(nl);
+        int empty = spacesAvailable - (shopInventory.size() + rentedVehicles.size());
+        sb.append("EMPTY_SLOTS: ").append(empty).append(nl);
+        Money.appendTo(sb.append("CASH_EARNED: $"), cashEarnedCents).append(nl);
+        sb.append(nl);
+
+        // Inventory
+        sb.append("INVENTORY:").append(nl);
+        for (Vehicle v : shopInventory.values()) {
+            sb.append("  ").append(v.getLicensePlate())
+              .append(',').append(v.getType())
+              .append(',').append(v.getKilometers()).append(nl);
+        }
+        sb.append(nl);
+
+        // Rented vehicles
+        sb.append("RENTED_OUT:").append(nl);
+        for (RentedRecord r : rentedVehicles.values()) {
+            sb.append("  ").append(r.vehicle.getLicensePlate())
+              .append(',').append(r.vehicle.getType())
+              .append(',').append(r.vehicle.getKilometers())
+              .append(",discount=").append(r.discountApplied ? "lot" : "0%")
+              .append(",rentedAt=").append(Instant.ofEpochMilli(r.rentedAt)).append(nl);
+        }
+        sb.append(nl);
+
+        // Reservations
+        sb.append("RESERVATIONS:").append(nl);
+        for (ReservationBook.Reservation r : reservations.list()) {
+            sb.append("  R").append(r.getId())
+              .append(',').append(r.getType())
+              .append(',').append(Instant.ofEpochMilli(r.getFromMillis()))
+              .append(',').append(Instant.ofEpochMilli(r.getToMillis())).append(nl);
+        }
+        sb.append(nl);
+
+        // Transactions
+        sb.append("TRANSACTIONS:").append(nl);
+        for (Transaction t : transactions) {
+            sb.append("  ").append(t.getLicensePlate())
+              .append(',').append(t.getKilometers())
+              .append(",discount=");
+            if (t.isDiscountApplied()) {
+                Money.appendTo(sb.append('$'), t.getDiscountCents());
+            } else {
+                sb.append("0%");
             }
-        } catch (IOException e) {
-            System.err.println("Error writing human state: " + e.getMessage());
+            sb.append(",$");
+            Money.appendTo(sb, t.getChargeCents()).append(",rule=").append(t.getPricingRule()).append(nl);
         }
+        return sb.toString();
     }
     
     // Load the shop state from file.
@@ -533,17 +1127,67 @@ public class RentalShop {
     @SuppressWarnings("unchecked")
     private void loadState() {
         try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(shopStateBin))) {
-            shopInventory   = (Map<String, Vehicle>)     ois.readObject();
+            // Snapshots written before the format had a version start directly with the inventory map (version 1)
+            Object first = ois.readObject();
+            int version = first instanceof Integer ? (Integer) first : 1;
+            shopInventory   = (Map<String, Vehicle>)     (version == 1 ? first : ois.readObject());
             rentedVehicles  = (Map<String, RentedRecord>)ois.readObject();
             transactions    = (List<Transaction>)        ois.readObject();
-            cashEarned      = ois.readDouble();
+            // Version 1 stored the cash as a double
+            cashEarnedCents = version == 1 ? Money.fromDollars(ois.readDouble()) : ois.readLong();
             spacesAvailable = ois.readInt();
             lotNames        = (List<String>)             ois.readObject();
+            if (version >= 2) {
+                discountLostCents = ois.readLong();
+            } else {
+                discountLostCents = 0;
+                for (Transaction t : transactions) discountLostCents += t.getDiscountCents();
+            }
+            if (version >= 3) {
+                List<ReservationBook.Reservation> saved = (List<ReservationBook.Reservation>) ois.readObject();
+                reservations = ReservationBook.load(saved, ois.readInt(), clock.millis());
+            }
         } catch (Exception e) {
             System.err.println("Error loading binary state: " + e.getMessage());
         }
     }
     
+    // Receives the vehicles of a saved shop, see forEachSavedVehicle
+    interface SavedVehicleVisitor {
+        void visit(Vehicle vehicle, boolean rented, boolean discountApplied, long rentedAt);
+    }
+
+    // Reads the inventory and the rented vehicles of a saved shop (<location>.ser) without starting the shop. Used by Reconciler.
+    @SuppressWarnings("unchecked")
+    static void forEachSavedVehicle(String location, SavedVehicleVisitor visitor) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(location + ".ser")))) {
+            Object first = ois.readObject();
+            Map<String, Vehicle> inventory = (Map<String, Vehicle>) (first instanceof Integer ? ois.readObject() : first);
+            Map<String, RentedRecord> rented = (Map<String, RentedRecord>) ois.readObject();
+            for (Vehicle v : inventory.values()) {
+                visitor.visit(v, false, false, 0);
+            }
+            for (RentedRecord r : rented.values()) {
+                visitor.visit(r.vehicle, true, r.discountApplied, r.rentedAt);
+            }
+        }
+    }
+
+    // Reads the lot names of a saved shop (<location>.ser) without starting the shop. Used by Reconciler.
+    @SuppressWarnings("unchecked")
+    static List<String> savedLotNames(String location) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(location + ".ser")))) {
+            Object first = ois.readObject();
+            int version = first instanceof Integer ? (Integer) first : 1;
+            if (version > 1) ois.readObject(); // inventory
+            ois.readObject(); // rented
+            ois.readObject(); // transactions
+            if (version == 1) ois.readDouble(); else ois.readLong(); // cash
+            ois.readInt(); // spaces
+            return (List<String>) ois.readObject();
+        }
+    }
+
     // Parse command line arguments.
     public static Map<String,String> parseArgs(String[] args){
         Map<String, String> flags = new HashMap<>();
@@ -0,0 +1,218 @@
+/*
+By Jennifer Vicentes
+Purpose: This class keeps the future bookings of a shop (RESERVE, AVAILABLE, PICKUP and CANCEL commands of RentalShop).
+Time is split in one hour slots. For every vehicle type there is a segment tree over the slots of the next HORIZON_DAYS days that stores
+how many vehicles of the type are booked in every slot. Booking adds 1 to a range of slots and asking how many are free asks the
+maximum of a range, both are O(log n) with lazy propagation, no matter how many bookings the shop has.
+
+The shop can only promise the vehicles of the type it has (in its inventory or rented out and coming back), so that number is the
+capacity given to reserve() and available(). Walk-in RENTs ask heldNow() and leave that many vehicles of the type in the shop.
+
+Only the bookings are saved (with the shop .ser snapshot), the trees are rebuilt from them when the shop is loaded.
+*/
+package carrental;
+
+import java.io.Serializable;
+import java.util.*;
+
+public class ReservationBook {
+    // How far ahead bookings are accepted
+    public static final int HORIZON_DAYS = 365;
+    // Walk-in RENTs hold back the vehicles booked in the next HOLD_HOURS hours, since nobody knows when a walk-in rental comes back
+    public static final int HOLD_HOURS = 24;
+    static final long HOUR_MILLIS = 3_600_000L;
+    private static final int HORIZON_SLOTS = HORIZON_DAYS * 24;
+    // The trees cover twice the horizon so they only have to be rebuilt once per HORIZON_DAYS
+    private static final int TREE_SLOTS = 2 * HORIZON_SLOTS;
+
+    // One booking, from and to are hour numbers since the epoch (to is exclusive)
+    public static class Reservation implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int id;
+        final String type;
+        final long fromHour;
+        final long toHour;
+
+        Reservation(int id, String type, long fromHour, long toHour) {
+            this.id = id;
+            this.type = type;
+            this.fromHour = fromHour;
+            this.toHour = toHour;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getFromMillis() {
+            return fromHour * HOUR_MILLIS;
+        }
+
+        public long getToMillis() {
+            return toHour * HOUR_MILLIS;
+        }
+    }
+
+    // Segment tree with range add and range max over TREE_SLOTS slots
+    private static class SlotTree {
+        private final int[] max = new int[4 * TREE_SLOTS];
+        private final int[] pending = new int[4 * TREE_SLOTS];
+
+        void add(int from, int to, int value) {
+            add(1, 0, TREE_SLOTS - 1, from, to - 1, value);
+        }
+
+        int max(int from, int to) {
+            return max(1, 0, TREE_SLOTS - 1, from, to - 1);
+        }
+
+        private void add(int node, int lo, int hi, int from, int to, int value) {
+            if (to < lo || hi < from) return;
+            if (from <= lo && hi <= to) {
+                max[node] += value;
+                pending[node] += value;
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            add(2 * node, lo, mid, from, to, value);
+            add(2 * node + 1, mid + 1, hi, from, to, value);
+            max[node] = pending[node] + Math.max(max[2 * node], max[2 * node + 1]);
+        }
+
+        private int max(int node, int lo, int hi, int from, int to) {
+            if (to < lo || hi < from) return 0;
+            if (from <= lo && hi <= to) return max[node];
+            int mid = (lo + hi) >>> 1;
+            // pending applies to the whole range of the node, so it is added on the way up instead of pushed down
+            return pending[node] + Math.max(max(2 * node, lo, mid, from, to), max(2 * node + 1, mid + 1, hi, from, to));
+        }
+    }
+
+    private final Map<String, SlotTree> trees = new HashMap<>();
+    // Open bookings by id, and ordered by end so the ones that are over are dropped in O(log n)
+    private final Map<Integer, Reservation> open = new TreeMap<>();
+    private final TreeSet<Reservation> byEnd =
+            new TreeSet<>(Comparator.<Reservation>comparingLong(r -> r.toHour).thenComparingInt(r -> r.id));
+    // Hour of slot 0 of the trees
+    private long baseHour;
+    private int nextId = 1;
+
+    public ReservationBook(long now) {
+        baseHour = now / HOUR_MILLIS;
+    }
+
+    // Rebuilds the book from saved bookings
+    public static ReservationBook load(List<Reservation> saved, int nextId, long now) {
+        ReservationBook book = new ReservationBook(now);
+        book.nextId = nextId;
+        for (Reservation r : saved) {
+            if (r.toHour > book.baseHour) {
+                book.insert(r);
+            }
+        }
+        return book;
+    }
+
+    // Bookings to save with the shop
+    public List<Reservation> toSave() {
+        return new ArrayList<>(open.values());
+    }
+
+    public int getNextId() {
+        return nextId;
+    }
+
+    public Collection<Reservation> list() {
+        return Collections.unmodifiableCollection(open.values());
+    }
+
+    public Reservation get(int id) {
+        return open.get(id);
+    }
+
+    // Books a vehicle of the type from..to (epoch millis, rounded out to whole hours).
+    // Returns null when the period is invalid or out of the horizon, or when some hour already has capacity bookings.
+    public Reservation reserve(String type, long from, long to, int capacity, long now) {
+        advance(now);
+        long fromHour = from / HOUR_MILLIS;
+        long toHour = (to + HOUR_MILLIS - 1) / HOUR_MILLIS;
+        if (!inHorizon(fromHour, toHour, now) || booked(type, fromHour, toHour) >= capacity) {
+            return null;
+        }
+        Reservation r = new Reservation(nextId++, type, fromHour, toHour);
+        insert(r);
+        return r;
+    }
+
+    // Number of vehicles of the type that can still be booked for the whole period
+    public int available(String type, long from, long to, int capacity, long now) {
+        advance(now);
+        long fromHour = from / HOUR_MILLIS;
+        long toHour = (to + HOUR_MILLIS - 1) / HOUR_MILLIS;
+        if (!inHorizon(fromHour, toHour, now)) return 0;
+        return Math.max(0, capacity - booked(type, fromHour, toHour));
+    }
+
+    // Vehicles of the type a walk-in RENT must leave in the shop: the most booked hour of the next HOLD_HOURS
+    public int heldNow(String type, long now) {
+        advance(now);
+        long nowHour = now / HOUR_MILLIS;
+        return booked(type, nowHour, nowHour + HOLD_HOURS);
+    }
+
+    // Removes a booking (picked up or cancelled), returns it or null if there is no such open booking
+    public Reservation remove(int id, long now) {
+        advance(now);
+        Reservation r = open.remove(id);
+        if (r == null) return null;
+        byEnd.remove(r);
+        SlotTree tree = trees.get(r.type);
+        // Slots before baseHour are not in the tree any more
+        long from = Math.max(r.fromHour, baseHour);
+        if (tree != null && from < r.toHour) {
+            tree.add((int) (from - baseHour), (int) (r.toHour - baseHour), -1);
+        }
+        return r;
+    }
+
+    private void insert(Reservation r) {
+        open.put(r.id, r);
+        byEnd.add(r);
+        long from = Math.max(r.fromHour, baseHour);
+        trees.computeIfAbsent(r.type, k -> new SlotTree()).add((int) (from - baseHour), (int) (r.toHour - baseHour), 1);
+    }
+
+    private int booked(String type, long fromHour, long toHour) {
+        SlotTree tree = trees.get(type);
+        if (tree == null) return 0;
+        return tree.max((int) (fromHour - baseHour), (int) (toHour - baseHour));
+    }
+
+    private boolean inHorizon(long fromHour, long toHour, long now) {
+        long nowHour = now / HOUR_MILLIS;
+        return fromHour < toHour && fromHour >= nowHour && toHour <= nowHour + HORIZON_SLOTS;
+    }
+
+    // Drops the bookings that are over and moves the trees forward once the current hour leaves the first half of them
+    private void advance(long now) {
+        long nowHour = now / HOUR_MILLIS;
+        while (!byEnd.isEmpty() && byEnd.first().toHour <= nowHour) {
+            // Their slots are all in the past, they are never asked again, so the trees are left alone
+            open.remove(byEnd.pollFirst().id);
+        }
+        if (nowHour - baseHour >= TREE_SLOTS - HORIZON_SLOTS) {
+            baseHour = nowHour;
+            trees.clear();
+            List<Reservation> all = new ArrayList<>(open.values());
+            open.clear();
+            byEnd.clear();
+            for (Reservation r : all) {
+                insert(r);
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+By Jennifer Vicentes
+Purpose: This class stores a registry shared by all the shops (one line per plate, the plate is the first field) split in shards.
+The shard of a plate is chosen with its hash, and every shard has its own file and its own lock, so a shop renting or returning
+a plate only locks and rewrites one small file instead of the file of the whole chain.
+The number of shards is kept in "<name>.shards". When that file does not exist but the old single "<name>.txt" file does,
+the registry keeps working on the single file (1 shard) until it is migrated with:
+    java carrental.ShardedRegistry --registry=rented_registry --shards=16
+The migration must run while no shop is running.
+Writes are not forced to disk unless setForced(true) is called: a shop in COMMAND durability forces its rented_registry writes, so
+a rental it acknowledged (and forced into its .ser) cannot lose its registry line on a power loss and be dropped on the next start.
+*/
+package carrental;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public class ShardedRegistry {
+    // Shards used when a registry is created from scratch
+    public static final int DEFAULT_SHARDS = 16;
+
+    private final String baseName;
+    private final int shards;
+    // Force every write (and the directory of a new shard file) before returning
+    private volatile boolean forced;
+
+    public ShardedRegistry(String baseName) {
+        this(baseName, DEFAULT_SHARDS);
+    }
+
+    // defaultShards is only used when the registry does not exist yet
+    public ShardedRegistry(String baseName, int defaultShards) {
+        this.baseName = baseName;
+        this.shards = resolveShardCount(baseName, defaultShards);
+    }
+
+    // Reads "<name>.shards". Without it: 1 shard if an old single file exists, otherwise a new sharded registry is created.
+    private static int resolveShardCount(String baseName, int defaultShards) {
+        File meta = new File(baseName + ".shards");
+        if (meta.exists()) {
+            try {
+                return Integer.parseInt(new String(Files.readAllBytes(meta.toPath()), StandardCharsets.US_ASCII).trim());
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Error reading " + meta + ", using the single registry file: " + e.getMessage());
+                return 1;
+            }
+        }
+        if (new File(baseName + ".txt").exists()) {
+            return 1;
+        }
+        try {
+            writeShardCount(baseName, defaultShards);
+            return defaultShards;
+        } catch (IOException e) {
+            System.err.println("Error creating " + meta + ": " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private static void writeShardCount(String baseName, int shards) throws IOException {
+        StateCommitter.writeAtomically(Paths.get(baseName + ".shards"),
+                ByteBuffer.wrap((shards + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII)), true);
+    }
+
+    public void setForced(boolean forced) {
+        this.forced = forced;
+    }
+
+    public int getShardCount() {
+        return shards;
+    }
+
+    // File of the shard that owns the plate
+    String shardFile(String plate) {
+        return shardFileAt(shardOf(plate.hashCode()));
+    }
+
+    // Shard of a plate from the hashCode() of the plate (BulkVehicleGenerator computes it without building the String)
+    int shardOf(int plateHash) {
+        return Math.floorMod(plateHash, shards);
+    }
+
+    private String shardFileAt(int shard) {
+        return shards == 1 ? baseName + ".txt" : baseName + "." + shard + ".txt";
+    }
+
+    // Appends a line to the shard of the plate
+    public void append(String plate, String line) throws IOException {
+        String file = shardFile(plate);
+        try (FileLocks.Handle lock = FileLocks.lock(file)) {
+            boolean created = !Files.exists(Paths.get(file));
+            try (FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                ByteBuffer data = StandardCharsets.UTF_8.encode(line + System.lineSeparator());
+                while (data.hasRemaining()) {
+                    ch.write(data);
+                }
+                if (forced) ch.force(false);
+            }
+            if (forced && created) StateCommitter.forceDirectory(Paths.get(file).toAbsolutePath().getParent());
+        }
+    }
+
+    // Appends many lines that all belong to one shard with one locked write. Only for plates that cannot be in the shard yet
+    // (new plates), otherwise the shard would have two lines for the plate.
+    public void appendToShard(int shard, ByteBuffer lines) throws IOException {
+        String file = shardFileAt(shard);
+        try (FileLocks.Handle lock = FileLocks.lock(file);
+             FileChannel ch = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.APPEND)) {
+            while (lines.hasRemaining()) {
+                ch.write(lines);
+            }
+        }
+    }
+
+    // Returns the first line of the plate, or null
+    public String find(String plate) throws IOException {
+        String file = shardFile(plate);
+        try (FileLocks.Handle lock = FileLocks.lock(file)) {
+            for (String line : readShard(file)) {
+                if (firstField(line).equals(plate)) return line;
+            }
+        }
+        return null;
+    }
+
+    // Returns the last line of the plate, or null. For registries that add newer lines with append (see compact)
+    public String findLast(String plate) throws IOException {
+        String file = shardFile(plate);
+        String found = null;
+        try (FileLocks.Handle lock = FileLocks.lock(file)) {
+            for (String line : readShard(file)) {
+                if (firstField(line).equals(plate)) found = line;
+            }
+        }
+        return found;
+    }
+
+    // Rewrites the shard of the plate keeping only the last line of every plate, the older lines left by append are dropped
+    public void compact(String plate) throws IOException {
+        String file = shardFile(plate);
+        try (FileLocks.Handle lock = FileLocks.lock(file)) {
+            Map<String, String> latest = new LinkedHashMap<>();
+            for (String line : readShard(file)) {
+                latest.put(firstField(line), line);
+            }
+            writeShard(file, new ArrayList<>(latest.values()));
+        }
+    }
+
+    // Removes the first line of the plate from its shard and returns it, or null if the plate is not there
+    public String take(String plate) throws IOException {
+        String file = shardFile(plate);
+        try (FileLocks.Handle lock = FileLocks.lock(file)) {
+            List<String> lines = readShard(file);
+            for (int i = 0; i < lines.size(); i++) {
+                if (firstField(lines.get(i)).equals(plate)) {
+                    String found = lines.remove(i);
+                    writeShard(file, lines);
+                    return found;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Replaces the line of the plate (or adds it), a null line removes the plate
+    public void put(String plate, String line) throws IOException {
+        String file = shardFile(plate);
+        try (FileLocks.Handle lock = FileLocks.lock(file)) {
+            List<String> lines = readShard(file);
+            lines.removeIf(l -> firstField(l).equals(plate));
+            if (line != null) lines.add(line);
+            writeShard(file, lines);
+        }
+    }
+
+    // Replaces many plates at once (a null line removes the plate), rewriting every touched shard only once
+    public void putAll(Map<String, String> linesByPlate) throws IOException {
+        Map<String, Map<String, String>> byShard = new HashMap<>();
+        for (Map.Entry<String, String> e : linesByPlate.entrySet()) {
+            byShard.computeIfAbsent(shardFile(e.getKey()), k -> new HashMap<>()).put(e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String, Map<String, String>> shard : byShard.entrySet()) {
+            String file = shard.getKey();
+            Map<String, String> changes = shard.getValue();
+            try (FileLocks.Handle lock = FileLocks.lock(file)) {
+                List<String> lines = readShard(file);
+                lines.removeIf(l -> changes.containsKey(firstField(l)));
+                for (String line : changes.values()) {
+                    if (line != null) lines.add(line);
+                }
+                writeShard(file, lines);
+            }
+        }
+    }
+
+    // Streams every line of every shard, one shard (and one lock) at a time
+    public void forEachLine(Consumer<String> consumer) throws IOException {
+        for (int i = 0; i < shards; i++) {
+            String file = shardFileAt(i);
+            List<String> lines;
+            try (FileLocks.Handle lock = FileLocks.lock(file)) {
+                lines = readShard(file);
+            }
+            lines.forEach(consumer);
+        }
+    }
+
+    static String firstField(String line) {
+        int comma = line.indexOf(',');
+        return (comma < 0 ? line : line.substring(0, comma)).trim();
+    }
+
+    private static List<String> readShard(String file) throws IOException {
+        Path path = Paths.get(file);
+        List<String> lines = new ArrayList<>();
+        if (!Files.exists(path)) return lines;
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) lines.add(line);
+        }
+        return lines;
+    }
+
+    // Rewrites a shard in one buffer through a temporary file and an atomic rename
+    private void writeShard(String file, List<String> lines) throws IOException {
+        writeShard(file, lines, forced);
+    }
+
+    private static void writeShard(String file, List<String> lines, boolean force) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String l : lines) {
+            sb.append(l).append(System.lineSeparator());
+        }
+        StateCommitter.writeAtomically(Paths.get(file), StandardCharsets.UTF_8.encode(sb.toString()), force);
+    }
+
+    // Migration tool: splits the old single file into shards
+    public static void main(String[] args) {
+        java.util.Map<String, String> flags = RentalShop.parseArgs(args);
+        String baseName = flags.getOrDefault("--registry", "rented_registry");
+        int target = Integer.parseInt(flags.getOrDefault("--shards", String.valueOf(DEFAULT_SHARDS)));
+        if (target < 2) {
+            System.err.println("Error: --shards must be at least 2.");
+            System.exit(1);
+        }
+        if (new File(baseName + ".shards").exists()) {
+            System.err.println("Error: " + baseName + " is already sharded (" + baseName + ".shards exists).");
+            System.exit(1);
+        }
+        String legacy = baseName + ".txt";
+        try (FileLocks.Handle lock = FileLocks.lock(legacy)) {
+            // Distribute the old lines, writing every shard once
+            List<List<String>> buckets = new ArrayList<>();
+            for (int i = 0; i < target; i++) buckets.add(new ArrayList<>());
+            List<String> lines = readShard(legacy);
+            for (String line : lines) {
+                buckets.get(Math.floorMod(firstField(line).hashCode(), target)).add(line);
+            }
+            for (int i = 0; i < target; i++) {
+                writeShard(baseName + "." + i + ".txt", buckets.get(i), false);
+            }
+            // The .shards file switches every new process to the shards, the old file is kept as a backup
+            writeShardCount(baseName, target);
+            if (new File(legacy).exists()) {
+                Files.move(Paths.get(legacy), Paths.get(legacy + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+            }
+            System.out.println("Migrated " + lines.size() + " entries of " + legacy + " into " + target + " shards.");
+        } catch (IOException e) {
+            System.err.println("Error migrating registry: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
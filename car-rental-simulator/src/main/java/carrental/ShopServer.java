@@ -0,0 +1,81 @@
+/*
+By Jennifer Vicentes
+Purpose: This class is the network front end of a RentalShop. It listens on a local TCP port and accepts the same commands as the stdin loop
+(RENT, RETURN, LIST, TRANSACTIONS...), one command per line. Every connection gets its own thread, so many counter terminals and kiosks
+can drive the same shop process at the same time. Clients can pipeline commands (send several lines without waiting); responses come back
+in the same order, each one followed by a line with END. The response of every command is written straight into the socket,
+the shop never touches System.out for it.
+*/
+package carrental;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ShopServer {
+    // Line written after every response so the client knows where it ends
+    public static final String END_OF_RESPONSE = "END";
+
+    private final RentalShop shop;
+    private final int port;
+
+    public ShopServer(RentalShop shop, int port) {
+        this.shop = shop;
+        this.port = port;
+        // Every connection has its own thread, a RENT ... WAIT can be woken by a RETURN of another terminal
+        shop.allowWaiting();
+    }
+
+    // Accept connections forever, one thread per connection
+    public void serve() {
+        ExecutorService connections = newConnectionExecutor();
+        // Only bind to the loopback address, the shop is meant for terminals on the same machine
+        try (ServerSocket server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress())) {
+            System.out.println("Rental Shop server listening on " + server.getLocalSocketAddress() + ". One command per line, responses end with " + END_OF_RESPONSE + ".");
+            while (true) {
+                Socket socket = server.accept();
+                connections.execute(() -> handle(socket));
+            }
+        } catch (IOException e) {
+            System.err.println("Error running shop server: " + e.getMessage());
+        } finally {
+            connections.shutdown();
+        }
+    }
+
+    // Reads the commands of one connection and writes every response back directly
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+             PrintStream out = new PrintStream(new BufferedOutputStream(s.getOutputStream()), false)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                if (line.equalsIgnoreCase("EXIT")) break;
+                shop.executeCommand(line, out);
+                out.println(END_OF_RESPONSE);
+                // With pipelined requests the next command is already buffered, so we only flush when the client is waiting for us
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error handling connection: " + e.getMessage());
+        }
+    }
+
+    // Virtual threads (one per connection) when the JVM has them (Java 21+), otherwise a cached pool of platform threads.
+    // The project compiles for Java 17, so the virtual thread executor is looked up by reflection.
+    private static ExecutorService newConnectionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+By Jennifer Vicentes
+Purpose: This class is a load generator for the car rental system. It creates M lots with LotManager and starts N RentalShop instances,
+either inside this JVM or as separate JVMs (the same way run.sh starts them), and then drives them with a random mix of RENT and RETURN commands.
+Commands arrive following a Poisson process (exponential time between arrivals) and the kilometers of every RETURN follow a log-normal distribution,
+which looks much more like real rentals than a fixed number (most rentals are short, a few are very long).
+At the end it reports throughput, p50/p99 latency, how many RENT commands failed and how unbalanced the lots ended up.
+It is useful to plan capacity and to catch regressions in the locking and persistence paths of RentalShop.
+*/
+package carrental;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class SimulationHarness {
+    // Vehicle types that the generator can ask for
+    private static final String[] TYPES = {"SEDAN", "SUV", "VAN"};
+    // Plates printed by RentalShop when a RENT succeeds, e.g. "RENT: Provided vehicle ABC-123 (SEDAN) ..."
+    private static final Pattern RENTED_PLATE = Pattern.compile("vehicle ([A-Z]{3}-\\d{3})");
+
+    // Simulation settings, all of them can be changed with command line flags
+    private int shops;
+    private int lots;
+    private int vehiclesPerLot;
+    private int spaces;
+    private int commandsPerShop;
+    private double rentRatio;
+    private double crossReturnRatio;
+    private double arrivalRate;
+    private double meanKm;
+    private boolean separateJvms;
+    private long seed;
+    private String prefix;
+
+    // Plates rented by every shop that were not returned yet (shared so a shop can return a car rented somewhere else)
+    private final List<List<String>> outstanding = new ArrayList<>();
+    // Results collected by the driver threads
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicCounters counters = new AtomicCounters();
+
+    public static void main(String[] args) {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        SimulationHarness harness = new SimulationHarness();
+        harness.shops            = Integer.parseInt(flags.getOrDefault("--shops", "2"));
+        harness.lots             = Integer.parseInt(flags.getOrDefault("--lots", "2"));
+        harness.vehiclesPerLot   = Integer.parseInt(flags.getOrDefault("--vehicles-per-lot", "30"));
+        harness.spaces           = Integer.parseInt(flags.getOrDefault("--spaces-available", "10"));
+        harness.commandsPerShop  = Integer.parseInt(flags.getOrDefault("--commands", "200"));
+        harness.rentRatio        = Double.parseDouble(flags.getOrDefault("--rent-ratio", "0.5"));
+        harness.crossReturnRatio = Double.parseDouble(flags.getOrDefault("--cross-return-ratio", "0.1"));
+        harness.arrivalRate      = Double.parseDouble(flags.getOrDefault("--rate", "100"));
+        harness.meanKm           = Double.parseDouble(flags.getOrDefault("--mean-km", "120"));
+        harness.separateJvms     = "jvm".equalsIgnoreCase(flags.getOrDefault("--mode", "inproc"));
+        harness.seed             = Long.parseLong(flags.getOrDefault("--seed", "42"));
+        harness.prefix           = flags.getOrDefault("--prefix", "Sim");
+        if(harness.shops < 1 || harness.lots < 1){
+            System.err.println("Error: --shops and --lots must be at least 1.");
+            System.exit(1);
+        }
+        harness.run();
+    }
+
+    // Set up the lots, start the shops, run the workload and print the report
+    private void run() {
+        List<String> lotNames = createLots();
+        List<ShopDriver> drivers = new ArrayList<>();
+        for(int i = 0; i < shops; i++){
+            outstanding.add(Collections.synchronizedList(new ArrayList<>()));
+            // Every shop uses all the lots, starting from a different one so they do not all drain the first lot
+            List<String> shopLots = new ArrayList<>(lotNames);
+            Collections.rotate(shopLots, -i);
+            String location = prefix + "Shop" + i;
+            deleteShopState(location);
+            try {
+                drivers.add(separateJvms
+                        ? new ProcessDriver(location, spaces, shopLots)
+                        : new InProcessDriver(location, spaces, shopLots));
+            } catch(IOException e){
+                System.err.println("Error starting shop " + location + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        System.out.println("Simulating " + shops + " shop(s) (" + (separateJvms ? "separate JVMs" : "in-process") + ") against "
+                + lots + " lot(s), " + commandsPerShop + " commands per shop at " + arrivalRate + " commands/s per shop.");
+        // One thread per shop, each one with its own Poisson arrival stream
+        ExecutorService pool = Executors.newFixedThreadPool(shops);
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>();
+        for(int i = 0; i < shops; i++){
+            final int shopIndex = i;
+            final ShopDriver driver = drivers.get(i);
+            futures.add(pool.submit(() -> drive(shopIndex, driver, new Random(seed + shopIndex))));
+        }
+        for(Future<?> f : futures){
+            try {
+                f.get();
+            } catch(InterruptedException | ExecutionException e){
+                System.err.println("Shop driver failed: " + e.getMessage());
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        for(ShopDriver d : drivers){
+            d.close();
+        }
+        report(elapsed, lotNames);
+    }
+
+    // Creates the lots with LotManager, the same way the lot scenarios do it
+    private List<String> createLots() {
+        List<String> lotNames = new ArrayList<>();
+        for(int i = 0; i < lots; i++){
+            String lotName = prefix + "Lot" + i;
+            new File(lotName + ".txt").delete();
+            int each = Math.max(1, vehiclesPerLot / TYPES.length);
+            LotManager.main(new String[]{"--lot-name=" + lotName,
+                    "--add-sedan=" + each, "--add-suv=" + each, "--add-van=" + each});
+            lotNames.add(lotName);
+        }
+        return lotNames;
+    }
+
+    // A fresh simulation must not load the state of the previous one
+    private static void deleteShopState(String location) {
+        new File(location + ".txt").delete();
+        new File(location + ".ser").delete();
+    }
+
+    // Sends commandsPerShop commands to one shop following a Poisson arrival process
+    private void drive(int shopIndex, ShopDriver driver, Random random) {
+        List<String> mine = outstanding.get(shopIndex);
+        long next = System.nanoTime();
+        for(int i = 0; i < commandsPerShop; i++){
+            // Exponential time between arrivals: -ln(U) / lambda
+            next += (long) (-Math.log(1.0 - random.nextDouble()) / arrivalRate * 1_000_000_000L);
+            long wait = next - System.nanoTime();
+            if(wait > 0){
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+
+            String command;
+            String returnedPlate = null;
+            if(random.nextDouble() < rentRatio || (mine.isEmpty() && !crossReturn(random))){
+                command = "RENT " + TYPES[random.nextInt(TYPES.length)];
+            } else {
+                // Return one of our own cars, or sometimes one rented by another shop
+                List<String> source = mine;
+                if(random.nextDouble() < crossReturnRatio || mine.isEmpty()){
+                    source = outstanding.get(random.nextInt(outstanding.size()));
+                }
+                returnedPlate = takeRandom(source, random);
+                if(returnedPlate == null){
+                    command = "RENT " + TYPES[random.nextInt(TYPES.length)];
+                } else {
+                    command = "RETURN " + returnedPlate + " " + nextKilometers(random);
+                }
+            }
+
+            long t0 = System.nanoTime();
+            String output = driver.execute(command);
+            latencies.add(System.nanoTime() - t0);
+
+            if(command.startsWith("RENT")){
+                counters.rents.incrementAndGet();
+                Matcher m = RENTED_PLATE.matcher(output);
+                if(m.find()){
+                    mine.add(m.group(1));
+                } else {
+                    counters.rentFailures.incrementAndGet();
+                }
+            } else {
+                counters.returns.incrementAndGet();
+                if(!output.contains("returned")){
+                    counters.returnFailures.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    // True when some other shop has a car we could return
+    private boolean crossReturn(Random random) {
+        if(random.nextDouble() >= crossReturnRatio) return false;
+        for(List<String> l : outstanding){
+            if(!l.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    // Removes and returns a random plate of the list, or null if it is empty
+    private static String takeRandom(List<String> plates, Random random) {
+        synchronized(plates){
+            if(plates.isEmpty()) return null;
+            return plates.remove(random.nextInt(plates.size()));
+        }
+    }
+
+    // Log-normal kilometers with the configured mean (sigma 0.8 gives a long tail of road trips)
+    private int nextKilometers(Random random) {
+        double sigma = 0.8;
+        double mu = Math.log(meanKm) - sigma * sigma / 2;
+        return Math.max(1, (int) Math.round(Math.exp(mu + sigma * random.nextGaussian())));
+    }
+
+    // Prints throughput, latency percentiles, failure rate and lot imbalance
+    private void report(long elapsedNanos, List<String> lotNames) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        int total = sorted.size();
+        double seconds = elapsedNanos / 1e9;
+        System.out.println("----- Simulation Report -----");
+        System.out.println("Commands executed: " + total + " in " + String.format("%.2f", seconds) + " s");
+        System.out.println("Throughput: " + String.format("%.1f", total / seconds) + " commands/s");
+        System.out.println("Latency p50: " + String.format("%.3f", percentile(sorted, 0.50) / 1e6) + " ms"
+                + " | p99: " + String.format("%.3f", percentile(sorted, 0.99) / 1e6) + " ms"
+                + " | max: " + String.format("%.3f", (total == 0 ? 0 : sorted.get(total - 1)) / 1e6) + " ms");
+        int rents = counters.rents.get();
+        System.out.println("RENT: " + rents + " (failed: " + counters.rentFailures.get() + ", "
+                + String.format("%.1f", rents == 0 ? 0.0 : 100.0 * counters.rentFailures.get() / rents) + "%)");
+        System.out.println("RETURN: " + counters.returns.get() + " (failed: " + counters.returnFailures.get() + ")");
+        if(!separateJvms){
+            System.out.println("Lot cache: " + LotCache.stats());
+        }
+
+        // Lot imbalance: how far the fullest and emptiest lots are from the average
+        int min = Integer.MAX_VALUE, max = 0, sum = 0;
+        for(String lot : lotNames){
+            int count = countLotVehicles(lot + ".txt");
+            System.out.println("  Lot " + lot + ": " + count + " vehicles");
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+            sum += count;
+        }
+        double mean = (double) sum / lotNames.size();
+        System.out.println("Lot imbalance: min " + min + ", max " + max + ", max/mean "
+                + String.format("%.2f", mean == 0 ? 0.0 : max / mean));
+    }
+
+    // Nearest-rank percentile of an already sorted list
+    private static long percentile(List<Long> sorted, double p) {
+        if(sorted.isEmpty()) return 0;
+        int idx = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(idx, sorted.size() - 1)));
+    }
+
+    // Counts the vehicles of a lot file
+    private static int countLotVehicles(String fileName) {
+        try (FileLocks.Handle lock = FileLocks.lock(fileName)) {
+            return LotFile.read(fileName).size();
+        } catch(IOException e){
+            System.err.println("Error reading lot file (" + fileName + "): " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Counters updated by all driver threads
+    private static class AtomicCounters {
+        final AtomicInteger rents = new AtomicInteger();
+        final AtomicInteger rentFailures = new AtomicInteger();
+        final AtomicInteger returns = new AtomicInteger();
+        final AtomicInteger returnFailures = new AtomicInteger();
+    }
+
+    // A shop that the harness can send commands to
+    private interface ShopDriver {
+        String execute(String command);
+        void close();
+    }
+
+    // Shop running inside this JVM, commands go through executeCommand like the Swing UI does
+    private static class InProcessDriver implements ShopDriver {
+        private final RentalShop shop;
+
+        InProcessDriver(String location, int spaces, List<String> lots) {
+            shop = new RentalShop(location, spaces, lots);
+        }
+
+        public String execute(String command) {
+            return shop.executeCommand(command);
+        }
+
+        public void close() {
+            shop.close();
+        }
+    }
+
+    // Shop running as its own JVM, commands go through stdin like in the shop scenarios
+    private static class ProcessDriver implements ShopDriver {
+        private final Process process;
+        private final Writer in;
+        private final Reader out;
+
+        ProcessDriver(String location, int spaces, List<String> lots) throws IOException {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            // The shops start with the same CDS archive and startup options as the harness (see StartupBenchmark)
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.addAll(StartupBenchmark.startupOptions());
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                    "carrental.RentalShop", "--location=" + location, "--spaces-available=" + spaces,
+                    "--lots=" + String.join(",", lots)));
+            ProcessBuilder pb = new ProcessBuilder(command);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            process = pb.start();
+            in = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()));
+            out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            // Skip the banner until the first prompt
+            readUntilPrompt();
+        }
+
+        public String execute(String command) {
+            try {
+                in.write(command + System.lineSeparator());
+                in.flush();
+                return readUntilPrompt();
+            } catch(IOException e){
+                System.err.println("Error talking to shop process: " + e.getMessage());
+                return "";
+            }
+        }
+
+        // The shop prints "> " (without a new line) when it is ready for the next command
+        private String readUntilPrompt() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while((c = out.read()) != -1){
+                sb.append((char) c);
+                int len = sb.length();
+                if(len >= 2 && sb.charAt(len - 2) == '>' && sb.charAt(len - 1) == ' '
+                        && (len == 2 || sb.charAt(len - 3) == '\n')){
+                    sb.setLength(len - 2);
+                    break;
+                }
+            }
+            return sb.toString();
+        }
+
+        public void close() {
+            try {
+                in.write("EXIT" + System.lineSeparator());
+                in.flush();
+                process.waitFor(10, TimeUnit.SECONDS);
+            } catch(IOException | InterruptedException e){
+                System.err.println("Error stopping shop process: " + e.getMessage());
+            }
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+By Jennifer Vicentes
+Purpose: This class measures how long LotManager and RentalShop take to start, and it is also the training run of the class data
+sharing (CDS) archive that makes them start faster. Both are short-lived JVMs in run.sh and in the test scenarios, so most of every
+run is the JVM loading and verifying our classes and running them in the interpreter, not the command itself.
+
+    mvn -Pcds package                     builds the jar and target/carrental.jsa (a training run with -XX:ArchiveClassesAtExit)
+    java -cp target/car-rental-simulator-1.0-SNAPSHOT.jar carrental.StartupBenchmark [--archive=target/carrental.jsa] [--runs=10] [--work=startup.tmp]
+
+The benchmark starts every entry point --runs times in a new empty directory under --work, each time with:
+    default   plain java
+    cds       -XX:SharedArchiveFile=<archive>, the carrental classes (and the JDK classes they use) come already parsed and verified
+    cds+quick the same plus QUICK_OPTIONS (see below), the options run.sh uses with the archive
+and reports the time to the first command (median and best) for each. For LotManager the command is the whole run (adding one
+vehicle to a new lot), for RentalShop it is from starting the JVM until the answer of a LIST sent as soon as it started.
+
+The archive only works with the same jar it was trained with (same path, not rebuilt after), the cds variants run with -Xshare:on
+so a stale archive is an error here instead of silently measuring without it. Without the archive only default is measured.
+
+--train runs the training workload in the current directory, it is what the cds profile of the pom runs. The directory has to be
+empty or one that was used for training before (it has the TRAINING_MARKER file), because its files are deleted first.
+*/
+package carrental;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+public class StartupBenchmark {
+    static final String TRAINING_MARKER = ".cds-training";
+    // JVM options about startup that a JVM passes on to the JVMs it starts (SimulationHarness shops)
+    private static final String[] STARTUP_OPTIONS = {"-XX:SharedArchiveFile=", "-Xshare:", "-Xlog:cds", "-XX:TieredStopAtLevel=", "-XX:+UseSerialGC",
+            "-XX:-UsePerfData"};
+    // For short runs: only the quick JIT compiler (C1, the optimizing one never pays off before the run ends), the simple
+    // garbage collector (one thread, nothing to start) and no hsperfdata file in /tmp (jps and jstat do not see the JVM)
+    static final List<String> QUICK_OPTIONS = List.of("-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-XX:-UsePerfData");
+    private static final Pattern PLATE = Pattern.compile("[A-Z]{3}-\\d{3}");
+
+    public static void main(String[] args) {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        try {
+            if (flags.containsKey("--train")) {
+                train();
+                return;
+            }
+            Path archive = Paths.get(flags.getOrDefault("--archive", Paths.get("target", "carrental.jsa").toString()));
+            int runs = Integer.parseInt(flags.getOrDefault("--runs", "10"));
+            Path work = Paths.get(flags.getOrDefault("--work", "startup.tmp"));
+            benchmark(archive, runs, work);
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error in startup benchmark: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Startup options of this JVM, to start child JVMs the same way
+    static List<String> startupOptions() {
+        List<String> options = new ArrayList<>();
+        for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            for (String prefix : STARTUP_OPTIONS) {
+                if (arg.startsWith(prefix)) options.add(arg);
+            }
+        }
+        return options;
+    }
+
+    private static void benchmark(Path archive, int runs, Path work) throws IOException, InterruptedException {
+        String classpath = System.getProperty("java.class.path");
+        Map<String, List<String>> variants = new LinkedHashMap<>();
+        variants.put("default", List.of());
+        if (Files.exists(archive)) {
+            String shared = "-XX:SharedArchiveFile=" + archive.toAbsolutePath();
+            variants.put("cds", List.of(shared, "-Xshare:on"));
+            List<String> quick = new ArrayList<>(List.of(shared, "-Xshare:on"));
+            quick.addAll(QUICK_OPTIONS);
+            variants.put("cds+quick", quick);
+        } else {
+            System.out.println("No CDS archive at " + archive + " (build it with mvn -Pcds package), measuring only the default JVM.");
+        }
+        if (classpath.endsWith(File.separator + "classes") || classpath.endsWith(File.separator + "classes" + File.separator)) {
+            System.out.println("Warning: running from a classes directory, CDS only archives classes from the jar the archive was trained with.");
+        }
+
+        Map<String, long[]> lotTimes = new LinkedHashMap<>();
+        Map<String, long[]> shopTimes = new LinkedHashMap<>();
+        for (String name : variants.keySet()) {
+            lotTimes.put(name, new long[runs]);
+            shopTimes.put(name, new long[runs]);
+        }
+        // The variants take turns in every run, so a slower moment of the machine does not fall on only one of them
+        for (int run = 0; run < runs; run++) {
+            for (Map.Entry<String, List<String>> variant : variants.entrySet()) {
+                Path dir = work.resolve(variant.getKey().replace('+', '-') + "-" + run);
+                deleteTree(dir);
+                Files.createDirectories(dir);
+                lotTimes.get(variant.getKey())[run] = timeLotManager(classpath, variant.getValue(), dir);
+                shopTimes.get(variant.getKey())[run] = timeRentalShop(classpath, variant.getValue(), dir);
+                deleteTree(dir);
+            }
+        }
+
+        System.out.println("Time to first command over " + runs + " runs (median / best):");
+        System.out.println(String.format("%-10s %-24s %-24s", "", "LotManager", "RentalShop"));
+        long lotBase = median(lotTimes.get("default"));
+        long shopBase = median(shopTimes.get("default"));
+        for (String name : variants.keySet()) {
+            long[] lot = lotTimes.get(name);
+            long[] shop = shopTimes.get(name);
+            System.out.println(String.format("%-10s %-24s %-24s", name,
+                    millis(median(lot)) + " / " + millis(best(lot)) + change(lotBase, median(lot)),
+                    millis(median(shop)) + " / " + millis(best(shop)) + change(shopBase, median(shop))));
+        }
+    }
+
+    // LotManager adding one vehicle to a new lot, until the process ends
+    private static long timeLotManager(String classpath, List<String> options, Path dir) throws IOException, InterruptedException {
+        List<String> command = javaCommand(classpath, options, "carrental.LotManager");
+        command.add("--lot-name=BenchLot");
+        command.add("--add-sedan=1");
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true)
+                .redirectOutput(dir.resolve("lot-console.txt").toFile()).start();
+        int exit = process.waitFor();
+        long nanos = System.nanoTime() - start;
+        if (exit != 0) {
+            throw new IOException("LotManager failed (exit " + exit + "): " + firstLine(dir.resolve("lot-console.txt")));
+        }
+        return nanos;
+    }
+
+    // RentalShop started on the lot of timeLotManager with a LIST already waiting in stdin, until the prompt after the LIST answer
+    private static long timeRentalShop(String classpath, List<String> options, Path dir) throws IOException, InterruptedException {
+        List<String> command = javaCommand(classpath, options, "carrental.RentalShop");
+        command.add("--location=BenchShop");
+        command.add("--spaces-available=5");
+        command.add("--lots=BenchLot");
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true).start();
+        long nanos;
+        try (Writer in = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+             Reader out = new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)) {
+            in.write("LIST" + System.lineSeparator());
+            in.flush();
+            // The first prompt comes after the banner, the second one after the answer of LIST
+            StringBuilder console = new StringBuilder();
+            int prompts = 0;
+            int c;
+            while (prompts < 2 && (c = out.read()) != -1) {
+                console.append((char) c);
+                int len = console.length();
+                if (len >= 2 && console.charAt(len - 2) == '>' && c == ' ' && (len == 2 || console.charAt(len - 3) == '\n')) prompts++;
+            }
+            nanos = System.nanoTime() - start;
+            if (prompts < 2) {
+                process.waitFor(10, TimeUnit.SECONDS);
+                throw new IOException("RentalShop ended before answering LIST: " + console.toString().trim());
+            }
+            in.write("EXIT" + System.lineSeparator());
+            in.flush();
+            // Drain the rest so the shop never blocks on a full pipe while it exits
+            while (out.read() != -1) { }
+        }
+        if (!process.waitFor(30, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+            throw new IOException("RentalShop did not exit after EXIT");
+        }
+        return nanos;
+    }
+
+    private static List<String> javaCommand(String classpath, List<String> options, String mainClass) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options);
+        command.add("-cp");
+        command.add(classpath);
+        command.add(mainClass);
+        return command;
+    }
+
+    // Training workload: the usual LotManager runs and shop commands, so their classes (and the JDK classes they use) are loaded
+    // when the JVM writes the archive at exit. Nothing here has to be fast, it only has to touch the code the scripts run.
+    private static void train() throws IOException {
+        Path dir = Paths.get("").toAbsolutePath();
+        try (Stream<Path> files = Files.list(dir)) {
+            if (files.findAny().isPresent() && !Files.exists(dir.resolve(TRAINING_MARKER))) {
+                throw new IOException(dir + " is not empty and was not used for training before, refusing to delete its files");
+            }
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path p : (Iterable<Path>) files::iterator) deleteTree(p);
+        }
+        Files.write(dir.resolve(TRAINING_MARKER), new byte[0]);
+
+        PrintStream console = System.out;
+        try (PrintStream log = new PrintStream(new FileOutputStream(dir.resolve("training-output.txt").toFile()), true)) {
+            System.setOut(log);
+            LotManager.main(new String[]{"--lot-name=TrainLot", "--add-sedan=4", "--add-suv=2", "--add-van=2", "--seed=1"});
+            LotManager.main(new String[]{"--lot-name=TrainLot", "--maintenance"});
+
+            RentalShop shop = new RentalShop("TrainShop", 4, List.of("TrainLot"));
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(text, true);
+            shop.executeCommand("RENT SEDAN", out);
+            Matcher plate = PLATE.matcher(text.toString());
+            for (String command : new String[]{"RENT SUV", "LIST", "TRANSACTIONS", "AVAILABLE VAN 2030-01-01 2030-01-05",
+                    "RESERVATIONS", "UTILIZATION", "OVERDUE 24", "MAINTENANCE", "CAPACITY"}) {
+                shop.executeCommand(command, out);
+            }
+            if (plate.find()) {
+                shop.executeCommand("RETURN " + plate.group() + " 120", out);
+                LotManager.main(new String[]{"--locate=" + plate.group()});
+            }
+            shop.close();
+            log.print(text);
+
+            // The shop again as the scripts run it: loading its state and reading commands from stdin
+            InputStream stdin = System.in;
+            System.setIn(new ByteArrayInputStream(("LIST" + System.lineSeparator() + "TRANSACTIONS" + System.lineSeparator()
+                    + "EXIT" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8)));
+            RentalShop.main(new String[]{"--location=TrainShop"});
+            System.setIn(stdin);
+        } finally {
+            System.setOut(console);
+        }
+        System.out.println("Training run finished in " + dir + ".");
+    }
+
+    private static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static long best(long[] times) {
+        return Arrays.stream(times).min().orElse(0);
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.0f ms", nanos / 1e6);
+    }
+
+    private static String change(long base, long nanos) {
+        if (base == nanos || base == 0) return "";
+        return String.format(" (%+.0f%%)", (nanos - base) * 100.0 / base);
+    }
+
+    private static String firstLine(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        return lines.isEmpty() ? "" : lines.get(0);
+    }
+
+    private static void deleteTree(Path path) throws IOException {
+        if (!Files.exists(path)) return;
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path p : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(p);
+            }
+        }
+    }
+}
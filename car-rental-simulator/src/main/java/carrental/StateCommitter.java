@@ -0,0 +1,218 @@
+/*
+By Jennifer Vicentes
+Purpose: This class persists the state of a RentalShop (the binary .ser snapshot and the human readable .txt dump) using group commit.
+Before, every command opened a new FileOutputStream and FileWriter and never called fsync, so each command was expensive and a crash
+could still lose it. Now commands hand their snapshot to a single committer thread. If several commands arrive while a write is in progress,
+only the newest snapshot is written (it already contains the older ones) and all of them share the same FileChannel.force().
+The snapshot is written to a temporary file and then atomically renamed, so the .ser file is never left half written.
+
+Durability modes:
+- COMMAND:  the command is acknowledged only after its snapshot was forced to disk (nothing acknowledged is lost on a crash).
+- INTERVAL: the committer forces at most every N milliseconds and commands do not wait (a crash can lose the last N ms).
+- OS:       the command waits until the snapshot is handed to the operating system, but there is no fsync (survives a process crash, not a power loss).
+When a write fails (disk full, permissions) the ticket is not committed: the snapshot stays pending and is written again after
+RETRY_MILLIS, and awaitDurable returns false so the command can tell the client its state was not saved.
+*/
+package carrental;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+public class StateCommitter {
+    public enum Durability { COMMAND, INTERVAL, OS }
+
+    // Time between two tries of a snapshot whose write failed
+    static final long RETRY_MILLIS = 1000;
+
+    private final Path binFile;
+    private final Path txtFile;
+    private final Durability durability;
+    private final long intervalMillis;
+
+    // Newest snapshot waiting to be written and its ticket number
+    private byte[] pendingBin;
+    private String pendingTxt;
+    private long submitted = 0;
+    // Highest ticket that is already written (and forced, unless the mode is OS)
+    private long committed = 0;
+    // Highest ticket whose write failed (it is still pending and is tried again)
+    private long failed = 0;
+    private boolean closed = false;
+    private final Thread committerThread;
+    // Writes the pending snapshot when the JVM exits, removed again by close() so closed committers do not pile up
+    private final Thread shutdownHook;
+
+    public StateCommitter(String binFile, String txtFile, Durability durability, long intervalMillis) {
+        this.binFile = Paths.get(binFile);
+        this.txtFile = Paths.get(txtFile);
+        this.durability = durability;
+        this.intervalMillis = intervalMillis;
+        committerThread = new Thread(this::commitLoop, "state-committer-" + binFile);
+        // Daemon so it never keeps the JVM alive, the shutdown hook writes whatever is still pending
+        committerThread.setDaemon(true);
+        committerThread.start();
+        shutdownHook = new Thread(this::close);
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    // Parses the --durability flag: "command", "interval:<ms>" or "os"
+    public static StateCommitter fromFlag(String binFile, String txtFile, String flag) {
+        if (flag == null || flag.isEmpty() || flag.equalsIgnoreCase("command")) {
+            return new StateCommitter(binFile, txtFile, Durability.COMMAND, 0);
+        }
+        if (flag.toLowerCase().startsWith("interval")) {
+            int colon = flag.indexOf(':');
+            long ms = colon > 0 ? Long.parseLong(flag.substring(colon + 1)) : 50;
+            return new StateCommitter(binFile, txtFile, Durability.INTERVAL, ms);
+        }
+        if (flag.equalsIgnoreCase("os")) {
+            return new StateCommitter(binFile, txtFile, Durability.OS, 0);
+        }
+        throw new IllegalArgumentException("Unknown durability mode: " + flag + " (use command, interval:<ms> or os)");
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    // Hands a new snapshot to the committer and returns its ticket. Older pending snapshots are replaced, not written.
+    public synchronized long submit(byte[] bin, String txt) {
+        pendingBin = bin;
+        pendingTxt = txt;
+        submitted++;
+        notifyAll();
+        return submitted;
+    }
+
+    // Blocks until the snapshot with this ticket is as durable as the mode promises. Returns false when the write of this
+    // snapshot failed (or the committer stopped before writing it), the command must not be acknowledged as saved.
+    public boolean awaitDurable(long ticket) {
+        if (durability == Durability.INTERVAL) return true;
+        synchronized (this) {
+            while (committed < ticket && failed < ticket && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return committed >= ticket;
+        }
+    }
+
+    // Writes whatever is pending and stops the committer
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // The JVM is already shutting down (this is the hook running), nothing to remove
+        }
+        try {
+            committerThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Committer thread: takes the newest snapshot, writes it, forces once for the whole group and wakes up the waiting commands
+    private void commitLoop() {
+        while (true) {
+            byte[] bin;
+            String txt;
+            long ticket;
+            synchronized (this) {
+                while (submitted == committed && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (submitted == committed) return; // closed and nothing left to write
+            }
+            // In INTERVAL mode we wait a little so many commands end up in the same write
+            if (durability == Durability.INTERVAL && !isClosed()) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    // Write what we have and continue
+                }
+            }
+            synchronized (this) {
+                bin = pendingBin;
+                txt = pendingTxt;
+                ticket = submitted;
+                pendingBin = null;
+                pendingTxt = null;
+            }
+            try {
+                writeAtomically(binFile, ByteBuffer.wrap(bin), durability != Durability.OS);
+                // The .txt file is only a readable dump, it is rebuilt from the .ser file, so it is never forced
+                writeAtomically(txtFile, StandardCharsets.UTF_8.encode(txt), false);
+            } catch (IOException e) {
+                System.err.println("Error saving shop state: " + e.getMessage());
+                synchronized (this) {
+                    // Put the snapshot back unless a newer one (which contains it) arrived meanwhile
+                    if (pendingBin == null) {
+                        pendingBin = bin;
+                        pendingTxt = txt;
+                    }
+                    failed = ticket;
+                    notifyAll();
+                    if (closed) return; // nobody is left to wait for a retry
+                    try {
+                        wait(RETRY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            synchronized (this) {
+                committed = ticket;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Writes the whole buffer to a temporary file, optionally forces it, and renames it over the target
+    static void writeAtomically(Path target, ByteBuffer data, boolean force) throws IOException {
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                ch.write(data);
+            }
+            if (force) {
+                ch.force(false);
+            }
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (force) {
+            forceDirectory(target.toAbsolutePath().getParent());
+        }
+    }
+
+    // The rename itself is only durable once the directory is forced. Not every platform allows it, so errors are ignored.
+    static void forceDirectory(Path dir) {
+        if (dir == null) return;
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened on some platforms (Windows), the data itself is already forced
+        }
+    }
+}
@@ -5,26 +5,46 @@ Purpose: This class represents a transaction in the car rental system. It contai
 It also provides methods to get this information and to display the transaction details.
 This class implements Serializable to allow saving and loading of transaction objects.
 This is important for saving the state of the object to a file and loading it back.
+Amounts are stored in cents (long) so they are exact, see Money.
 
-All the comments I wrote were put for me to keep track while developing, they are not AI generated. 
+All the comments I wrote were put for me to keep track while developing, they are not AI generated.
 */
 package carrental;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 public class Transaction implements Serializable {
     private static final long serialVersionUID = 1L;
     private String licensePlate;
+    private String vehicleType;
     private int kilometers;
     private boolean discountApplied;
+    // Charge and discount given, in cents
+    private long chargeCents;
+    private long discountCents;
+    // Name of the pricing rule that was used (see PricingEngine)
+    private String pricingRule;
+    // When the vehicle was rented and returned (epoch milliseconds)
+    private long rentedAt;
+    private long returnedAt;
+    // Only filled in snapshots written before amounts were stored in cents, it is converted when the snapshot is loaded
     private double charge;
 
-    // Constructor to initialize the transaction with a license plate, kilometers, discount status, and charge
-    public Transaction(String licensePlate, int kilometers, boolean discountApplied, double charge) {
+    // Constructor to initialize the transaction with a license plate, vehicle type, kilometers, discount status,
+    // charge and discount given (in cents), the pricing rule that computed them and the times of the rent and the return
+    public Transaction(String licensePlate, String vehicleType, int kilometers, boolean discountApplied, long chargeCents, long discountCents,
+                       String pricingRule, long rentedAt, long returnedAt) {
         this.licensePlate = licensePlate;
+        this.vehicleType = vehicleType;
         this.kilometers = kilometers;
         this.discountApplied = discountApplied;
-        this.charge = charge;
+        this.chargeCents = chargeCents;
+        this.discountCents = discountCents;
+        this.pricingRule = pricingRule;
+        this.rentedAt = rentedAt;
+        this.returnedAt = returnedAt;
     }
 
     // Get the license plate of the vehicle
@@ -32,6 +52,21 @@ public class Transaction implements Serializable {
         return licensePlate;
     }
 
+    // Get the type of the vehicle ("UNKNOWN" for transactions saved before the type was recorded)
+    public String getVehicleType() {
+        return vehicleType;
+    }
+
+    // Get the time of the rent in epoch milliseconds (0 when it is not known)
+    public long getRentedAt() {
+        return rentedAt;
+    }
+
+    // Get the time of the return in epoch milliseconds (0 for transactions saved before it was recorded)
+    public long getReturnedAt() {
+        return returnedAt;
+    }
+
     // Get the kilometers driven by the vehicle
     public int getKilometers() {
         return kilometers;
@@ -43,17 +78,52 @@ public class Transaction implements Serializable {
         return discountApplied;
     }
 
-    // Get the total charge for the transaction
-    public double getCharge() {
-        return charge;
+    // Get the total charge for the transaction, in cents
+    public long getChargeCents() {
+        return chargeCents;
+    }
+
+    // Get the amount that was not charged because of the discount, in cents
+    public long getDiscountCents() {
+        return discountCents;
+    }
+
+    // Get the name of the pricing rule that computed the charge
+    public String getPricingRule() {
+        return pricingRule;
+    }
+
+    // Old snapshots stored the charge as a double and no discount amount, so both are rebuilt in cents here
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (chargeCents == 0 && charge != 0) {
+            chargeCents = Money.fromDollars(charge);
+            // The old discount was 10% of the full price, so it is 1/9 of what was charged
+            discountCents = discountApplied ? Math.round(chargeCents / 9.0) : 0;
+            charge = 0;
+        }
+        // Transactions from before the pricing rules were all priced with the standard price
+        if (pricingRule == null) {
+            pricingRule = "standard";
+        }
+        if (vehicleType == null) {
+            vehicleType = "UNKNOWN";
+        }
     }
 
     @Override
     // The string representation includes the license plate, kilometers driven, discount status, and total charge
-    // The discount status is displayed as "10%" if a discount was applied, and "0%" otherwise
+    // The discount status shows the amount that was not charged (or "0%" when there was no discount), followed by the pricing rule
     public String toString() {
-        return "Vehicle " + licensePlate + " | Km: " + kilometers 
-            + " | Discount: " + (discountApplied ? "10%" : "0%") 
-            + " | Charge: $" + charge;
+        StringBuilder sb = new StringBuilder(80);
+        sb.append("Vehicle ").append(licensePlate).append(" | Km: ").append(kilometers).append(" | Discount: ");
+        if (discountApplied) {
+            Money.appendTo(sb.append('$'), discountCents);
+        } else {
+            sb.append("0%");
+        }
+        sb.append(" | Charge: $");
+        Money.appendTo(sb, chargeCents);
+        return sb.append(" | Rule: ").append(pricingRule).toString();
     }
 }
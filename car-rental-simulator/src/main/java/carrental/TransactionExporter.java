@@ -0,0 +1,143 @@
+/*
+By Jennifer Vicentes
+Purpose: This class exports the transactions of a shop to a compressed columnar file ("<location>.txcol") for analytics, so analysts
+do not have to scrape the TRANSACTIONS section of "<location>.txt". It is used by the EXPORT command of RentalShop.
+
+The file is a sequence of blocks of up to BLOCK_ROWS transactions. Inside a block every column (plate, type, km, discount flag,
+charge, timestamp) is stored on its own and compressed with Deflater, because values of the same column look alike and compress well.
+Every block starts with its row count and the min/max of km, charge and timestamp, so TransactionQuery can skip whole blocks that
+cannot match a filter without decompressing them. Rows are written as they come, only one block is kept in memory.
+
+Layout:
+    "TXCOL" + version byte
+    block*: int rows, int minKm, int maxKm, long minCharge, long maxCharge, long minTs, long maxTs,
+            then for every column: int compressedLength + compressed bytes
+    int 0 (end of file)
+*/
+package carrental;
+
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class TransactionExporter implements Closeable {
+    static final byte[] MAGIC = {'T', 'X', 'C', 'O', 'L'};
+    static final byte VERSION = 1;
+    static final int BLOCK_ROWS = 8192;
+    static final int COLUMNS = 6;
+
+    private final DataOutputStream out;
+    // Columns of the block being filled
+    private final String[] plates = new String[BLOCK_ROWS];
+    private final String[] types = new String[BLOCK_ROWS];
+    private final int[] km = new int[BLOCK_ROWS];
+    private final boolean[] discount = new boolean[BLOCK_ROWS];
+    private final long[] charge = new long[BLOCK_ROWS];
+    private final long[] timestamp = new long[BLOCK_ROWS];
+    private int rows = 0;
+    private long total = 0;
+
+    public TransactionExporter(OutputStream target) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(target, 64 * 1024));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    // Exports all the transactions to a file and returns how many were written
+    public static long export(Iterable<Transaction> transactions, String fileName) throws IOException {
+        try (TransactionExporter exporter = new TransactionExporter(new FileOutputStream(fileName))) {
+            for (Transaction t : transactions) {
+                exporter.add(t);
+            }
+            return exporter.total;
+        }
+    }
+
+    // Adds one row, writing the block when it is full
+    public void add(Transaction t) throws IOException {
+        plates[rows] = t.getLicensePlate();
+        types[rows] = t.getVehicleType();
+        km[rows] = t.getKilometers();
+        discount[rows] = t.isDiscountApplied();
+        charge[rows] = t.getChargeCents();
+        timestamp[rows] = t.getReturnedAt();
+        rows++;
+        total++;
+        if (rows == BLOCK_ROWS) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (rows == 0) return;
+        int minKm = Integer.MAX_VALUE, maxKm = Integer.MIN_VALUE;
+        long minCharge = Long.MAX_VALUE, maxCharge = Long.MIN_VALUE;
+        long minTs = Long.MAX_VALUE, maxTs = Long.MIN_VALUE;
+        for (int i = 0; i < rows; i++) {
+            minKm = Math.min(minKm, km[i]);
+            maxKm = Math.max(maxKm, km[i]);
+            minCharge = Math.min(minCharge, charge[i]);
+            maxCharge = Math.max(maxCharge, charge[i]);
+            minTs = Math.min(minTs, timestamp[i]);
+            maxTs = Math.max(maxTs, timestamp[i]);
+        }
+        out.writeInt(rows);
+        out.writeInt(minKm);
+        out.writeInt(maxKm);
+        out.writeLong(minCharge);
+        out.writeLong(maxCharge);
+        out.writeLong(minTs);
+        out.writeLong(maxTs);
+
+        // Plates and types as strings
+        ColumnBuffer col = new ColumnBuffer();
+        for (int i = 0; i < rows; i++) col.data.writeUTF(plates[i]);
+        col.writeTo(out);
+        col = new ColumnBuffer();
+        for (int i = 0; i < rows; i++) col.data.writeUTF(types[i]);
+        col.writeTo(out);
+        // Kilometers
+        col = new ColumnBuffer();
+        for (int i = 0; i < rows; i++) col.data.writeInt(km[i]);
+        col.writeTo(out);
+        // Discount flags
+        col = new ColumnBuffer();
+        for (int i = 0; i < rows; i++) col.data.writeBoolean(discount[i]);
+        col.writeTo(out);
+        // Charges in cents
+        col = new ColumnBuffer();
+        for (int i = 0; i < rows; i++) col.data.writeLong(charge[i]);
+        col.writeTo(out);
+        // Timestamps as the difference with the previous one (small numbers compress much better)
+        col = new ColumnBuffer();
+        long previous = 0;
+        for (int i = 0; i < rows; i++) {
+            col.data.writeLong(timestamp[i] - previous);
+            previous = timestamp[i];
+        }
+        col.writeTo(out);
+        rows = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBlock();
+        out.writeInt(0);
+        out.close();
+    }
+
+    // One column of a block, compressed when it is written
+    private static class ColumnBuffer {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        final DataOutputStream data = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+
+        void writeTo(DataOutputStream out) throws IOException {
+            data.close();
+            // A Deflater given to the stream is not released by close(), it holds native memory
+            deflater.end();
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+}
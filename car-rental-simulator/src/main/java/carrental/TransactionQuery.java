@@ -0,0 +1,186 @@
+/*
+By Jennifer Vicentes
+Purpose: This class is a small query tool for the columnar transaction files written by TransactionExporter (EXPORT command).
+It aggregates the earnings of many shops by vehicle type or by plate:
+    java carrental.TransactionQuery --group-by=type [--files=SanJose.txcol,Alajuela.txcol] [--since=2026-01-01] [--until=2026-02-01] [--min-km=100]
+Without --files every *.txcol file of the working directory is read.
+The files are read block by block, so memory only depends on the number of groups, not on the number of transactions.
+Blocks whose min/max statistics cannot match the filters are skipped without being decompressed, and only the columns needed
+by the query are decompressed.
+*/
+package carrental;
+
+import java.io.*;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.zip.InflaterInputStream;
+
+public class TransactionQuery {
+    // Column positions inside a block (same order as TransactionExporter writes them)
+    private static final int PLATE = 0, TYPE = 1, KM = 2, DISCOUNT = 3, CHARGE = 4, TIMESTAMP = 5;
+
+    // Totals of one group
+    private static class Totals {
+        long rentals;
+        long km;
+        long chargeCents;
+        long discounted;
+    }
+
+    private final boolean byPlate;
+    private final long since;
+    private final long until;
+    private final int minKm;
+    private final Map<String, Totals> groups = new HashMap<>();
+    private long blocksRead = 0;
+    private long blocksSkipped = 0;
+
+    private TransactionQuery(boolean byPlate, long since, long until, int minKm) {
+        this.byPlate = byPlate;
+        this.since = since;
+        this.until = until;
+        this.minKm = minKm;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> flags = RentalShop.parseArgs(args);
+        String groupBy = flags.getOrDefault("--group-by", "type").toLowerCase();
+        if (!groupBy.equals("type") && !groupBy.equals("plate")) {
+            System.err.println("Error: --group-by must be type or plate.");
+            System.exit(1);
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        long since = flags.containsKey("--since")
+                ? LocalDate.parse(flags.get("--since")).atStartOfDay(zone).toInstant().toEpochMilli() : Long.MIN_VALUE;
+        long until = flags.containsKey("--until")
+                ? LocalDate.parse(flags.get("--until")).atStartOfDay(zone).toInstant().toEpochMilli() : Long.MAX_VALUE;
+        int minKm = Integer.parseInt(flags.getOrDefault("--min-km", String.valueOf(Integer.MIN_VALUE)));
+
+        List<String> files = new ArrayList<>();
+        if (flags.containsKey("--files")) {
+            files.addAll(Arrays.asList(flags.get("--files").split(",")));
+        } else {
+            String[] found = new File(".").list((d, n) -> n.endsWith(".txcol"));
+            if (found != null) {
+                Arrays.sort(found);
+                files.addAll(Arrays.asList(found));
+            }
+        }
+
+        TransactionQuery query = new TransactionQuery(groupBy.equals("plate"), since, until, minKm);
+        for (String file : files) {
+            try {
+                query.scan(file);
+            } catch (IOException e) {
+                System.err.println("Error reading " + file + ": " + e.getMessage());
+            }
+        }
+        query.print(groupBy);
+    }
+
+    // Reads one file block by block
+    private void scan(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 64 * 1024))) {
+            byte[] magic = new byte[TransactionExporter.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, TransactionExporter.MAGIC) || in.readByte() != TransactionExporter.VERSION) {
+                throw new IOException("not a transaction export file");
+            }
+            int rows;
+            while ((rows = in.readInt()) > 0) {
+                int blockMinKm = in.readInt();
+                int blockMaxKm = in.readInt();
+                in.readLong(); // min charge
+                in.readLong(); // max charge
+                long blockMinTs = in.readLong();
+                long blockMaxTs = in.readLong();
+                // Skip the whole block when no row can match the filters
+                if (blockMaxKm < minKm || blockMaxTs < since || blockMinTs >= until) {
+                    for (int c = 0; c < TransactionExporter.COLUMNS; c++) {
+                        in.skipNBytes(in.readInt());
+                    }
+                    blocksSkipped++;
+                    continue;
+                }
+                blocksRead++;
+                // Row filters are only needed when the block is not completely inside them
+                boolean filterKm = blockMinKm < minKm;
+                boolean filterTs = blockMinTs < since || blockMaxTs >= until;
+                readBlock(in, rows, filterKm, filterTs);
+            }
+        }
+    }
+
+    // Decompresses the columns the query needs and adds the rows to their groups
+    private void readBlock(DataInputStream in, int rows, boolean filterKm, boolean filterTs) throws IOException {
+        String[] keys = null;
+        int[] km = null;
+        boolean[] discount = null;
+        long[] charge = null;
+        long[] ts = null;
+        for (int c = 0; c < TransactionExporter.COLUMNS; c++) {
+            int length = in.readInt();
+            boolean keyColumn = c == (byPlate ? PLATE : TYPE);
+            boolean needed = keyColumn || c == KM || c == DISCOUNT || c == CHARGE || (c == TIMESTAMP && filterTs);
+            if (!needed) {
+                in.skipNBytes(length);
+                continue;
+            }
+            byte[] compressed = new byte[length];
+            in.readFully(compressed);
+            try (DataInputStream col = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(new ByteArrayInputStream(compressed))))) {
+                if (keyColumn) {
+                    keys = new String[rows];
+                    for (int i = 0; i < rows; i++) keys[i] = col.readUTF();
+                } else if (c == KM) {
+                    km = new int[rows];
+                    for (int i = 0; i < rows; i++) km[i] = col.readInt();
+                } else if (c == DISCOUNT) {
+                    discount = new boolean[rows];
+                    for (int i = 0; i < rows; i++) discount[i] = col.readBoolean();
+                } else if (c == CHARGE) {
+                    charge = new long[rows];
+                    for (int i = 0; i < rows; i++) charge[i] = col.readLong();
+                } else {
+                    // Timestamps are stored as differences with the previous row
+                    ts = new long[rows];
+                    long previous = 0;
+                    for (int i = 0; i < rows; i++) {
+                        previous += col.readLong();
+                        ts[i] = previous;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < rows; i++) {
+            if (filterKm && km[i] < minKm) continue;
+            if (filterTs && (ts[i] < since || ts[i] >= until)) continue;
+            Totals t = groups.computeIfAbsent(keys[i], k -> new Totals());
+            t.rentals++;
+            t.km += km[i];
+            t.chargeCents += charge[i];
+            if (discount[i]) t.discounted++;
+        }
+    }
+
+    // Prints the groups sorted by earnings, highest first
+    private void print(String groupBy) {
+        List<Map.Entry<String, Totals>> sorted = new ArrayList<>(groups.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue().chargeCents, a.getValue().chargeCents));
+        long rentals = 0, earnings = 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append(groupBy.toUpperCase()).append(",RENTALS,KM,DISCOUNTED,EARNINGS").append(System.lineSeparator());
+        for (Map.Entry<String, Totals> e : sorted) {
+            Totals t = e.getValue();
+            sb.append(e.getKey()).append(',').append(t.rentals).append(',').append(t.km).append(',').append(t.discounted).append(",$");
+            Money.appendTo(sb, t.chargeCents).append(System.lineSeparator());
+            rentals += t.rentals;
+            earnings += t.chargeCents;
+        }
+        System.out.print(sb);
+        System.out.println("Total: " + rentals + " rentals, $" + Money.format(earnings)
+                + " (" + blocksRead + " blocks read, " + blocksSkipped + " skipped by statistics)");
+    }
+}
@@ -2,6 +2,7 @@
 By Jennifer Vicentes
 Purpose: This class represents a vehicle in the car rental system. It contains information about the vehicle's license plate, type, and kilometers driven.
 It also provides methods to get this information and to add kilometers driven to the vehicle.
+It also remembers the kilometers it had at its last service, so MaintenanceQueue can tell which vehicles need one.
 
 All the comments I wrote were put for me to keep track while developing, they are not AI generated. 
 */
@@ -18,12 +19,20 @@ public class Vehicle implements Serializable {
     private String licensePlate;
     private String type; // "SEDAN", "SUV", or "VAN"
     private int kilometers;
+    // Kilometers of the vehicle at its last service (0 for vehicles never serviced)
+    private int kmAtLastService;
 
     // Constructor to initialize the vehicle with a license plate, type, and kilometers
     public Vehicle(String licensePlate, String type, int kilometers) {
+        this(licensePlate, type, kilometers, 0);
+    }
+
+    // Constructor for vehicles that were already serviced
+    public Vehicle(String licensePlate, String type, int kilometers, int kmAtLastService) {
         this.licensePlate = licensePlate;
         this.type = type;
         this.kilometers = kilometers;
+        this.kmAtLastService = kmAtLastService;
     }
 
     // Get the license plate of the vehicle
@@ -42,6 +51,22 @@ public class Vehicle implements Serializable {
         return kilometers;
     }
 
+    // Get the kilometers the vehicle had at its last service
+    public int getKmAtLastService() {
+        return kmAtLastService;
+    }
+
+    // Get the kilometers driven since the last service
+    public int getKmSinceService() {
+        return kilometers - kmAtLastService;
+    }
+
+    // Record a service: the kilometers since the last service go back to 0
+    // If the vehicle is in a MaintenanceQueue this must be done through MaintenanceQueue.service
+    public void service() {
+        this.kmAtLastService = kilometers;
+    }
+
     // Add kilometers to the vehicle
     // This method is used when the vehicle is returned to the rental shop
     // It updates the kilometers driven by the vehicle
@@ -0,0 +1,60 @@
+#!/usr/bin/env bash
+# tests/lot/archive-scenarios.sh
+# Archives never rented vehicles of a lot and old transactions of a shop into compressed segments (tests/lot/archive),
+# checks that the archived records are still found (LotManager --locate, Archiver --transactions, Reconciler, EventReplay)
+# and that --restore-lot brings the vehicles back.
+
+CLASSES="$1"
+# JAVA_OPTS comes from run.sh (the CDS archive and the startup options when the archive was built)
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+
+run() {
+    java $JAVA_OPTS -cp "$CLASSES" "$@" 2>&1
+}
+
+echo "--> Archive1: Archiver --lot and --restore-lot"
+rm -rf "$SCRIPT_DIR/archive"
+mkdir -p "$SCRIPT_DIR/archive"
+pushd "$SCRIPT_DIR/archive" > /dev/null
+
+run carrental.LotManager --lot-name=ArchLot --add-sedan=30 --add-suv=10 > /dev/null
+BEFORE=$(grep -c '^[A-Z]\{3\}-[0-9]\{3\},' ArchLot.txt)
+
+OUTPUT=$(run carrental.Archiver --lot=ArchLot --keep=5)
+STATUS=PASS
+echo "$OUTPUT" | grep -q "Archived 30 never rented vehicles of lot ArchLot" || { echo "$OUTPUT"; STATUS=FAIL; }
+[ "$(grep -c '^[A-Z]\{3\}-[0-9]\{3\},' ArchLot.txt)" = "10" ] || { echo "   ArchLot should keep 5 SEDAN and 5 SUV"; STATUS=FAIL; }
+# A plate that is registered but no longer in the lot file
+ARCHIVED=$(comm -23 <(sort plates_registry.txt) <(cut -d, -f1 ArchLot.txt | sort) | head -1)
+run carrental.LotManager --locate="$ARCHIVED" | grep -q "archived from lot ArchLot" || { echo "   $ARCHIVED is not located in the archive"; STATUS=FAIL; }
+run carrental.Reconciler | grep -q "Everything is consistent." || { echo "   the Reconciler does not count archived vehicles"; STATUS=FAIL; }
+run carrental.EventReplay --verify | grep -q "Verify: the lots and shops match the event log." || { echo "   the event log does not match"; STATUS=FAIL; }
+echo "   30 of $BEFORE vehicles archived, still located and consistent -> $STATUS"
+
+STATUS=PASS
+run carrental.Archiver --restore-lot=ArchLot --type=SUV --count=3 | grep -q "Restored 3 vehicles to lot ArchLot" || { echo "   3 SUVs were not restored"; STATUS=FAIL; }
+run carrental.Archiver --restore-lot=ArchLot | grep -q "Restored 27 vehicles to lot ArchLot" || { echo "   the other 27 were not restored"; STATUS=FAIL; }
+[ "$(grep -c '^[A-Z]\{3\}-[0-9]\{3\},' ArchLot.txt)" = "$BEFORE" ] || { echo "   ArchLot does not have its $BEFORE vehicles back"; STATUS=FAIL; }
+run carrental.LotManager --locate="$ARCHIVED" | grep -q "is in lot" || { echo "   $ARCHIVED is not back in the lot"; STATUS=FAIL; }
+run carrental.Archiver --restore-lot=ArchLot | grep -q "No archived vehicles for lot ArchLot." || { echo "   a vehicle was restored twice"; STATUS=FAIL; }
+run carrental.EventReplay --verify | grep -q "Verify: the lots and shops match the event log." || { echo "   the event log does not match after the restore"; STATUS=FAIL; }
+echo "   Restored 3 SUVs, then the rest, every vehicle back once -> $STATUS"
+
+echo "--> Archive2: shop ARCHIVE <DAYS> and Archiver --transactions"
+printf 'RENT SEDAN\nRENT SUV\nEXIT\n' | run carrental.RentalShop --location=ArchShop --spaces-available=5 --lots=ArchLot > /dev/null
+COMMANDS=""
+for plate in $(sed -n '/RENTED_OUT:/,/^$/p' ArchShop.txt | grep -o '[A-Z]\{3\}-[0-9]\{3\}'); do
+    COMMANDS="${COMMANDS}RETURN $plate 25\n"
+done
+OUTPUT=$(printf "${COMMANDS}UTILIZATION 1\nARCHIVE -1\nARCHIVE 0\nUTILIZATION 1\nTRANSACTIONS\nEXIT\n" | run carrental.RentalShop --location=ArchShop)
+STATUS=PASS
+echo "$OUTPUT" | grep -q "Invalid days value." || { echo "   ARCHIVE -1 was accepted"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "ARCHIVE: Moved 2 transactions to" || { echo "   the 2 transactions were not archived"; STATUS=FAIL; }
+# UTILIZATION counts the archived returns too, so it says the same before and after ARCHIVE 0
+[ "$(echo "$OUTPUT" | grep -c '2 returned in the window')" = "2" ] || { echo "   UTILIZATION changed after ARCHIVE 0"; STATUS=FAIL; }
+OUTPUT=$(run carrental.Archiver --transactions=ArchShop)
+echo "$OUTPUT" | grep -q "^2 transactions, earnings" || { echo "$OUTPUT"; STATUS=FAIL; }
+run carrental.Archiver --stats | grep -q "shops/ArchShop: 1 segments, 2 records" || { echo "   --stats does not list the shop segment"; STATUS=FAIL; }
+echo "   2 returns archived by the shop and listed by Archiver -> $STATUS"
+
+popd > /dev/null
@@ -2,12 +2,13 @@
 # tests/lot/lot-scenarios.sh
 
 CLASSES="$1"
+# JAVA_OPTS comes from run.sh (the CDS archive and the startup options when the archive was built)
 SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
 
 echo "--> Test1: create Central lot"
 pushd "$SCRIPT_DIR" > /dev/null
 
-java -cp "$CLASSES" carrental.LotManager \
+java $JAVA_OPTS -cp "$CLASSES" carrental.LotManager \
     --lot-name=Central --add-sedan=2 --add-suv=1
 echo "   Central.txt now in $SCRIPT_DIR:"
 cat Central.txt
@@ -18,7 +19,7 @@ echo
 echo "--> Test2: remove XYZ-999"
 pushd "$SCRIPT_DIR" > /dev/null
 
-java -cp "$CLASSES" carrental.LotManager \
+java $JAVA_OPTS -cp "$CLASSES" carrental.LotManager \
     --lot-name=Central --remove-vehicle=XYZ-999
 echo "   Central.txt now in $SCRIPT_DIR:"
 cat Central.txt
@@ -29,7 +30,7 @@ echo
 echo "--> Test3: create North lot"
 pushd "$SCRIPT_DIR" > /dev/null
 
-java -cp "$CLASSES" carrental.LotManager --lot-name=North --add-sedan=5 --add-suv=1 -add-van=2
+java $JAVA_OPTS -cp "$CLASSES" carrental.LotManager --lot-name=North --add-sedan=5 --add-suv=1 -add-van=2
 echo "   North.txt now in $SCRIPT_DIR:"
 cat North.txt
 
@@ -0,0 +1,63 @@
+#!/usr/bin/env bash
+# tests/lot/replay-scenarios.sh
+# Builds a small network in its own directory (tests/lot/replay) and checks that the event log replays to the same lots and shops:
+# EventReplay --verify on the whole log, then --snapshot, more changes (removals delete plates from the projection's table) and
+# --verify again starting from the snapshot, and the same with --full.
+
+CLASSES="$1"
+# JAVA_OPTS comes from run.sh (the CDS archive and the startup options when the archive was built)
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+
+run() {
+    java $JAVA_OPTS -cp "$CLASSES" "$@" 2>&1
+}
+
+# Removes n vehicles of a type from a lot, one LotManager run each
+remove_some() {
+    for plate in $(grep ",$2," "$1.txt" | head -"$3" | cut -d, -f1); do
+        run carrental.LotManager --lot-name="$1" --remove-vehicle="$plate" > /dev/null
+    done
+}
+
+echo "--> Replay1: EventReplay --verify on a new network"
+rm -rf "$SCRIPT_DIR/replay"
+mkdir -p "$SCRIPT_DIR/replay"
+pushd "$SCRIPT_DIR/replay" > /dev/null
+
+run carrental.LotManager --lot-name=ReplayA --add-sedan=40 --add-suv=20 > /dev/null
+run carrental.LotManager --lot-name=ReplayB --add-van=10 > /dev/null
+remove_some ReplayA SUV 5
+run carrental.LotManager --lot-name=ReplayA --transfer-to=ReplayB --transfer-type=SEDAN --transfer-count=15 > /dev/null
+printf 'RENT SEDAN\nRENT SEDAN\nRENT VAN\nEXIT\n' \
+    | run carrental.RentalShop --location=ReplayShop --spaces-available=5 --lots=ReplayA,ReplayB > /dev/null
+RETURNED=$(grep -A1 'RENTED_OUT:' ReplayShop.txt | tail -1 | grep -o '[A-Z]\{3\}-[0-9]\{3\}')
+printf "RETURN $RETURNED 30\nEXIT\n" | run carrental.RentalShop --location=ReplayShop > /dev/null
+
+OUTPUT=$(run carrental.EventReplay --verify)
+STATUS=PASS
+echo "$OUTPUT" | grep -q "Verify: the lots and shops match the event log." || { echo "$OUTPUT" | tail -5; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "Lot ReplayB: .*SEDAN=15" || { echo "   the 15 transferred SEDANs are not in ReplayB"; STATUS=FAIL; }
+echo "   Lots, transfer, removals and shop replayed -> $STATUS"
+
+echo "--> Replay2: --snapshot, more changes, --verify from the snapshot and with --full"
+OUTPUT=$(run carrental.EventReplay --snapshot)
+STATUS=PASS
+echo "$OUTPUT" | grep -q "Snapshot network_events.log.snap saved" || { echo "   no snapshot saved"; STATUS=FAIL; }
+
+# Removing most of a lot deletes many plates from the table, the later plates must still be found
+remove_some ReplayA SUV 12
+remove_some ReplayB VAN 6
+run carrental.LotManager --lot-name=ReplayB --transfer-to=ReplayA --transfer-type=SEDAN --transfer-count=5 > /dev/null
+
+OUTPUT=$(run carrental.EventReplay --verify)
+echo "$OUTPUT" | grep -q "Loaded snapshot at offset" || { echo "   the snapshot was not used"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "events appended after the snapshot" || { echo "   the new events were not read"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "Verify: the lots and shops match the event log." || { echo "$OUTPUT" | tail -5; STATUS=FAIL; }
+OUTPUT=$(run carrental.EventReplay --verify --full)
+echo "$OUTPUT" | grep -q "Loaded snapshot" && { echo "   --full used the snapshot"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "Verify: the lots and shops match the event log." || { echo "$OUTPUT" | tail -5; STATUS=FAIL; }
+OUTPUT=$(run carrental.EventReplay --history="$RETURNED")
+echo "$OUTPUT" | grep -q "events for plate $RETURNED" || { echo "   no history for $RETURNED"; STATUS=FAIL; }
+echo "   Snapshot, 18 removals and a transfer back, replayed from the snapshot and in full -> $STATUS"
+
+popd > /dev/null
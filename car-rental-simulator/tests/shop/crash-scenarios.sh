@@ -0,0 +1,59 @@
+#!/usr/bin/env bash
+# tests/shop/crash-scenarios.sh
+# Rents and returns vehicles through the shop server, kills the shop with SIGKILL right after the
+# acknowledgements and checks that the restarted shop still knows about every acknowledged command.
+
+CLASSES="$1"
+# JAVA_OPTS comes from run.sh (the CDS archive and the startup options when the archive was built)
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+PORT=5071
+
+echo "--> Crash1: SIGKILL after acknowledged RENT/RETURN (durability=command)"
+pushd "$SCRIPT_DIR" > /dev/null
+rm -f CrashShop.txt CrashShop.ser CrashLot.txt
+
+java $JAVA_OPTS -cp "$CLASSES" carrental.LotManager --lot-name=CrashLot --add-sedan=6 --add-suv=2 > /dev/null
+
+java $JAVA_OPTS -cp "$CLASSES" carrental.RentalShop \
+    --location=CrashShop --spaces-available=8 --lots=CrashLot \
+    --serve=$PORT --durability=command > crash-server.txt 2>&1 &
+SHOP_PID=$!
+
+# Wait until the server accepts connections
+for i in $(seq 1 50); do
+    (exec 3<>/dev/tcp/127.0.0.1/$PORT) 2>/dev/null && break
+    sleep 0.1
+done
+
+# Sends one command and prints the response (everything up to the END line)
+exec 3<>/dev/tcp/127.0.0.1/$PORT
+send() {
+    echo "$1" >&3
+    while IFS= read -r line <&3; do
+        [ "$line" = "END" ] && break
+        echo "$line"
+    done
+}
+
+RENTED=""
+for type in SEDAN SEDAN SUV; do
+    plate=$(send "RENT $type" | grep -o '[A-Z]\{3\}-[0-9]\{3\}' | head -1)
+    [ -n "$plate" ] && RENTED="$RENTED $plate"
+done
+FIRST=$(echo $RENTED | cut -d' ' -f1)
+send "RETURN $FIRST 40" > /dev/null
+
+# Crash right after the last acknowledgement
+kill -9 $SHOP_PID
+wait $SHOP_PID 2> /dev/null
+exec 3>&-
+
+OUTPUT=$(printf 'LIST\nTRANSACTIONS\nEXIT\n' | java $JAVA_OPTS -cp "$CLASSES" carrental.RentalShop --location=CrashShop)
+STATUS=PASS
+for plate in $RENTED; do
+    echo "$OUTPUT" | grep -q "$plate" || { echo "   missing vehicle $plate"; STATUS=FAIL; }
+done
+echo "$OUTPUT" | grep -q "Vehicle $FIRST | Km: 40" || { echo "   missing RETURN of $FIRST"; STATUS=FAIL; }
+echo "   Acknowledged rentals:$RENTED, returned $FIRST -> $STATUS"
+
+popd > /dev/null
@@ -0,0 +1,57 @@
+#!/usr/bin/env bash
+# tests/shop/export-scenarios.sh
+# Two shops EXPORT their transactions to columnar files (tests/shop/export) and TransactionQuery aggregates them: the totals must
+# match the shops' own TRANSACTIONS, and filters that no row of a block can match must skip the block by its statistics.
+
+CLASSES="$1"
+# JAVA_OPTS comes from run.sh (the CDS archive and the startup options when the archive was built)
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+
+run() {
+    java $JAVA_OPTS -cp "$CLASSES" "$@" 2>&1
+}
+
+# Rents a SEDAN and an SUV, returns both with the given km, exports and prints the total earnings of the shop
+shop_run() {
+    printf 'RENT SEDAN\nRENT SUV\nEXIT\n' | run carrental.RentalShop --location="$1" --spaces-available=5 --lots=ExportLot > /dev/null
+    local commands=""
+    for plate in $(sed -n '/RENTED_OUT:/,/^$/p' "$1.txt" | grep -o '[A-Z]\{3\}-[0-9]\{3\}'); do
+        commands="${commands}RETURN $plate $2\n"
+    done
+    printf "${commands}EXPORT\nTRANSACTIONS\nEXIT\n" | run carrental.RentalShop --location="$1" > "$1-output.txt"
+    grep -o 'Total Earnings: \$[0-9.,]*' "$1-output.txt" | tail -1 | sed 's/.*\$//'
+}
+
+echo "--> Export1: EXPORT and TransactionQuery"
+rm -rf "$SCRIPT_DIR/export"
+mkdir -p "$SCRIPT_DIR/export"
+pushd "$SCRIPT_DIR/export" > /dev/null
+
+run carrental.LotManager --lot-name=ExportLot --add-sedan=3 --add-suv=3 > /dev/null
+# Short trips in one shop, long trips in the other: every block of ExpShort has max km 10
+EARNED_SHORT=$(shop_run ExpShort 10)
+EARNED_LONG=$(shop_run ExpLong 500)
+TOTAL=$(echo "$EARNED_SHORT $EARNED_LONG" | tr -d , | awk '{printf "%.2f", $1 + $2}')
+
+STATUS=PASS
+grep -q "Exported 2 transactions to ExpShort.txcol." ExpShort-output.txt || { echo "   ExpShort did not export"; STATUS=FAIL; }
+grep -q "Exported 2 transactions to ExpLong.txcol." ExpLong-output.txt || { echo "   ExpLong did not export"; STATUS=FAIL; }
+OUTPUT=$(run carrental.TransactionQuery --group-by=type)
+echo "$OUTPUT" | tr -d , | grep -q "^Total: 4 rentals \$$TOTAL " || { echo "$OUTPUT"; echo "   expected 4 rentals, \$$TOTAL"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "^SEDAN,2,510," || { echo "   the SEDAN group is wrong"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "^SUV,2,510," || { echo "   the SUV group is wrong"; STATUS=FAIL; }
+OUTPUT=$(run carrental.TransactionQuery --group-by=plate --files=ExpLong.txcol)
+[ "$(echo "$OUTPUT" | grep -c '^[A-Z]\{3\}-[0-9]\{3\},1,500,')" = "2" ] || { echo "$OUTPUT"; STATUS=FAIL; }
+echo "   4 rentals of 2 shops, \$$TOTAL by type and by plate -> $STATUS"
+
+echo "--> Export2: blocks skipped by their statistics"
+STATUS=PASS
+OUTPUT=$(run carrental.TransactionQuery --min-km=100)
+echo "$OUTPUT" | grep -q "^Total: 2 rentals" || { echo "$OUTPUT"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "(1 blocks read, 1 skipped by statistics)" || { echo "   the ExpShort block was not skipped"; STATUS=FAIL; }
+OUTPUT=$(run carrental.TransactionQuery --since=$(date -d "+1 day" +%Y-%m-%d))
+echo "$OUTPUT" | grep -q "^Total: 0 rentals" || { echo "$OUTPUT"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "(0 blocks read, 2 skipped by statistics)" || { echo "   future --since read a block"; STATUS=FAIL; }
+echo "   --min-km and --since skip the blocks that cannot match -> $STATUS"
+
+popd > /dev/null
@@ -1,5 +1,6 @@
 #!/usr/bin/env bash
 CLASSES="$1"
+# JAVA_OPTS comes from run.sh (the CDS archive and the startup options when the archive was built)
 SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
 
 echo "--> Scenario shop1 (SanJose)"
@@ -7,7 +8,7 @@ echo "--> Scenario shop1 (SanJose)"
 pushd "$SCRIPT_DIR" > /dev/null
 LOT_DIR="$(dirname "$SCRIPT_DIR")/lot"
 
-java -cp "$CLASSES" carrental.RentalShop \
+java $JAVA_OPTS -cp "$CLASSES" carrental.RentalShop \
     --location=SanJose --spaces-available=5 --lots="$LOT_DIR/Central" \
     < shop1-commands.txt \
     > shop1-output.txt
@@ -20,7 +21,7 @@ echo
 echo "--> Scenario shop2 (Alajuela)"
 pushd "$SCRIPT_DIR" > /dev/null
 
-java -cp "$CLASSES" carrental.RentalShop \
+java $JAVA_OPTS -cp "$CLASSES" carrental.RentalShop \
     --location=Alajuela --spaces-available=5 --lots="$LOT_DIR/Central,$LOT_DIR/North" \
     < shop2-commands.txt \
     > shop2-output.txt
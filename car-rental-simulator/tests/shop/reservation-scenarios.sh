@@ -0,0 +1,60 @@
+#!/usr/bin/env bash
+# tests/shop/reservation-scenarios.sh
+# Books every SEDAN of a shop for a future period, checks that one more booking and AVAILABLE see the period as full,
+# that CANCEL frees a vehicle again and that the bookings (and the segment trees rebuilt from them) survive a restart.
+
+CLASSES="$1"
+# JAVA_OPTS comes from run.sh (the CDS archive and the startup options when the archive was built)
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+
+echo "--> Reservation1: RESERVE / AVAILABLE / CANCEL / PICKUP"
+pushd "$SCRIPT_DIR" > /dev/null
+rm -f ResShop.txt ResShop.ser ResLot.txt
+
+java $JAVA_OPTS -cp "$CLASSES" carrental.LotManager --lot-name=ResLot --add-sedan=3 --add-suv=1 > /dev/null
+
+# A period ten days ahead and one that overlaps its second day
+FROM=$(date -d "+10 days" +%Y-%m-%d)
+TO=$(date -d "+12 days" +%Y-%m-%d)
+OVERLAP=$(date -d "+11 days" +%Y-%m-%d)
+LATER_FROM=$(date -d "+20 days" +%Y-%m-%d)
+
+shop() {
+    java $JAVA_OPTS -cp "$CLASSES" carrental.RentalShop "$@" 2>&1
+}
+
+# The shop can only promise the SEDANs it holds (in its inventory or rented out), renting pulls them from the lot
+OUTPUT=$(printf "RENT SEDAN\nRENT SEDAN\nRENT SEDAN\nAVAILABLE SEDAN $FROM $TO\nEXIT\n" \
+    | shop --location=ResShop --spaces-available=5 --lots=ResLot)
+FLEET=$(echo "$OUTPUT" | grep -o 'AVAILABLE: [0-9]* of [0-9]*' | awk '{print $4}')
+echo "   SEDANs the shop can book: $FLEET"
+
+COMMANDS=""
+for i in $(seq 1 "$FLEET"); do
+    COMMANDS="${COMMANDS}RESERVE SEDAN $FROM $TO\n"
+done
+COMMANDS="${COMMANDS}RESERVE SEDAN $OVERLAP $OVERLAP\nAVAILABLE SEDAN $OVERLAP $OVERLAP\nAVAILABLE SEDAN $LATER_FROM $LATER_FROM\n"
+COMMANDS="${COMMANDS}PICKUP R$FLEET\nCANCEL R1\nAVAILABLE SEDAN $OVERLAP $OVERLAP\nCANCEL R1\nEXIT\n"
+OUTPUT=$(printf "$COMMANDS" | shop --location=ResShop)
+
+STATUS=PASS
+[ "$FLEET" -gt 0 ] 2> /dev/null || { echo "   the shop has no SEDAN to book"; STATUS=FAIL; }
+[ "$(echo "$OUTPUT" | grep -c 'RESERVE: Reservation R[0-9]* for a SEDAN')" = "$FLEET" ] || { echo "   not every SEDAN could be booked"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "RESERVE: No SEDAN available for the whole period" || { echo "   an overbooking was accepted"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "AVAILABLE: 0 of $FLEET SEDAN" || { echo "   the booked period is not full"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "AVAILABLE: $FLEET of $FLEET SEDAN" || { echo "   a later period is not free"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "CANCEL: Reservation R1 cancelled." || { echo "   CANCEL R1 failed"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "AVAILABLE: 1 of $FLEET SEDAN" || { echo "   the cancelled booking was not freed"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "PICKUP: Reservation R$FLEET starts at .*, it is too early." || { echo "   an early PICKUP was accepted"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "CANCEL: Reservation R1 does not exist" || { echo "   R1 was cancelled twice"; STATUS=FAIL; }
+echo "   Bookings, overbooking, AVAILABLE, CANCEL and PICKUP -> $STATUS"
+
+echo "--> Reservation2: the bookings survive a restart"
+OUTPUT=$(printf "RESERVATIONS\nRESERVE SEDAN $OVERLAP $OVERLAP\nRESERVE SEDAN $OVERLAP $OVERLAP\nEXIT\n" | shop --location=ResShop)
+STATUS=PASS
+echo "$OUTPUT" | grep -q "Open reservations: $((FLEET - 1))" || { echo "   the open reservations were not reloaded"; STATUS=FAIL; }
+[ "$(echo "$OUTPUT" | grep -c 'RESERVE: Reservation R')" = "1" ] || { echo "   the reloaded bookings do not fill the period"; STATUS=FAIL; }
+echo "$OUTPUT" | grep -q "RESERVE: No SEDAN available for the whole period" || { echo "   an overbooking was accepted after the restart"; STATUS=FAIL; }
+echo "   $((FLEET - 1)) open reservations reloaded, one free SEDAN booked again -> $STATUS"
+
+popd > /dev/null
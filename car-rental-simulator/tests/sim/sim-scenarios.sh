@@ -0,0 +1,27 @@
+#!/usr/bin/env bash
+# tests/sim/sim-scenarios.sh
+
+CLASSES="$1"
+# JAVA_OPTS comes from run.sh (the CDS archive and the startup options when the archive was built)
+SCRIPT_DIR="$(cd "$(dirname "$0")" && pwd)"
+
+echo "--> Sim1: 3 in-process shops against 2 lots"
+pushd "$SCRIPT_DIR" > /dev/null
+
+java $JAVA_OPTS -cp "$CLASSES" carrental.SimulationHarness \
+    --shops=3 --lots=2 --commands=100 --rate=200 \
+    > sim1-output.txt 2>&1
+sed -n '/Simulation Report/,$p' sim1-output.txt
+
+popd > /dev/null
+echo
+
+echo "--> Sim2: 2 shops as separate JVMs against 2 lots"
+pushd "$SCRIPT_DIR" > /dev/null
+
+java $JAVA_OPTS -cp "$CLASSES" carrental.SimulationHarness \
+    --shops=2 --lots=2 --commands=50 --rate=100 --mode=jvm \
+    > sim2-output.txt 2>&1
+sed -n '/Simulation Report/,$p' sim2-output.txt
+
+popd > /dev/null